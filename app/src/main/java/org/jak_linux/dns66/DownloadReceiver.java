@@ -0,0 +1,133 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66;
+
+import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores downloaded hosts files compressed.
+ * <p>
+ * Items are downloaded to a file next to the item file, see {@link FileHelper#DOWNLOAD_SUFFIX}.
+ * Once a download is complete, it is compressed with gzip into the item file, which is then
+ * decompressed while it is read. Lists compress well, so this saves storage and reading time
+ * when loading them. Downloads large enough to be loaded in chunks by several threads are
+ * stored uncompressed, as compressed files cannot be split. If compression fails, the
+ * download is used as it is. See {@link FileHelper#storeDownload(File, File)}.
+ * <p>
+ * The receiver has to be exported to receive the broadcasts of the download manager, so it
+ * only handles downloads that were enqueued with {@link #enqueue(Context, DownloadManager.Request)}.
+ * Files are compressed one after another on a single background thread.
+ */
+public class DownloadReceiver extends BroadcastReceiver {
+    private static final String TAG = "DownloadReceiver";
+    private static final String PREFERENCES_NAME = "downloads";
+    private static final String KEY_PENDING_IDS = "pendingIds";
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Enqueues a download, and remembers its id, so that it is handled once it completes.
+     *
+     * @param context A context to work in
+     * @param request The download request
+     * @return The id of the download.
+     */
+    public static synchronized long enqueue(Context context, DownloadManager.Request request) {
+        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        long id = dm.enqueue(request);
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        Set<String> ids = new HashSet<>(preferences.getStringSet(KEY_PENDING_IDS, Collections.<String>emptySet()));
+        ids.add(Long.toString(id));
+        preferences.edit().putStringSet(KEY_PENDING_IDS, ids).apply();
+        return id;
+    }
+
+    /**
+     * Forgets the id of a download enqueued by {@link #enqueue(Context, DownloadManager.Request)}.
+     *
+     * @param context A context to work in
+     * @param id      The id of the download
+     * @return true if the download was enqueued by us, false otherwise.
+     */
+    private static synchronized boolean removePendingId(Context context, long id) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        Set<String> ids = new HashSet<>(preferences.getStringSet(KEY_PENDING_IDS, Collections.<String>emptySet()));
+        if (!ids.remove(Long.toString(id)))
+            return false;
+        preferences.edit().putStringSet(KEY_PENDING_IDS, ids).apply();
+        return true;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+        if (!removePendingId(context, id)) {
+            Log.w(TAG, "onReceive: Ignoring download " + id + ", it was not enqueued by us");
+            return;
+        }
+        final File download = getDownloadedFile(context, id);
+        if (download == null || !download.getName().endsWith(FileHelper.DOWNLOAD_SUFFIX))
+            return;
+
+        String name = download.getName();
+        final File file = new File(download.getParentFile(), name.substring(0, name.length() - FileHelper.DOWNLOAD_SUFFIX.length()));
+        final PendingResult result = goAsync();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.d(TAG, "run: Storing " + download + " as " + file);
+                    FileHelper.storeDownload(download, file);
+                } catch (IOException e) {
+                    Log.e(TAG, "run: Could not store " + download, e);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up the file of a successful download.
+     *
+     * @param context A context to work in
+     * @param id      The id of the download
+     * @return The downloaded file, or null if the download failed.
+     */
+    private static File getDownloadedFile(Context context, long id) {
+        DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        Cursor cursor = dm.query(new DownloadManager.Query().setFilterById(id));
+        if (cursor == null)
+            return null;
+
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            if (cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS)) != DownloadManager.STATUS_SUCCESSFUL)
+                return null;
+            String uri = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI));
+            return uri == null ? null : new File(Uri.parse(uri).getPath());
+        } finally {
+            cursor.close();
+        }
+    }
+}
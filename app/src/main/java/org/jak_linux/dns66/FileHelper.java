@@ -10,22 +10,35 @@ import android.util.JsonWriter;
 import android.util.Log;
 import android.widget.Toast;
 
+import org.jak_linux.dns66.db.RuleDatabase;
+
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Utility class for working with files.
  */
 
 public final class FileHelper {
+    /**
+     * Suffix of the file an item is downloaded to, before it is compressed into the item file.
+     */
+    public static final String DOWNLOAD_SUFFIX = ".download";
+    /**
+     * Suffix of files that are being written, and renamed once they are complete.
+     */
+    public static final String TEMPORARY_SUFFIX = ".tmp";
 
     /**
      * Try open the file with {@link Context#openFileInput(String)}, falling back to a file of
@@ -124,6 +137,58 @@ public final class FileHelper {
         }
     }
 
+    /**
+     * Stores a downloaded file as the file of an item. Files are compressed, unless they are
+     * large enough to be split into chunks when loading, see
+     * {@link RuleDatabase#MIN_SPLIT_FILE_SIZE}, as compressed files cannot be split. If
+     * compression fails, the download is used as it is.
+     *
+     * @param download The downloaded file, which is removed
+     * @param target   The file of the item
+     * @throws IOException If the download could not be stored
+     */
+    public static void storeDownload(File download, File target) throws IOException {
+        if (download.length() < RuleDatabase.MIN_SPLIT_FILE_SIZE) {
+            try {
+                compressFile(download, target);
+                download.delete();
+                return;
+            } catch (IOException e) {
+                Log.e("FileHelper", "storeDownload: Could not compress " + download, e);
+            }
+        }
+        if (!download.renameTo(target))
+            throw new IOException("Could not rename " + download + " to " + target);
+    }
+
+    /**
+     * Compresses a file with gzip. The compressed data is written to a temporary file first,
+     * and then renamed, so the target is replaced atomically.
+     *
+     * @param source The file to compress
+     * @param target The file to write the compressed data to
+     * @throws IOException If the file could not be compressed
+     */
+    public static void compressFile(File source, File target) throws IOException {
+        File tmp = new File(target.getPath() + TEMPORARY_SUFFIX);
+        try {
+            try (InputStream in = new FileInputStream(source);
+                 FileOutputStream fileOut = new FileOutputStream(tmp)) {
+                GZIPOutputStream out = new GZIPOutputStream(fileOut, 64 * 1024);
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0)
+                    out.write(buffer, 0, read);
+                out.finish();
+                fileOut.getFD().sync();
+            }
+            if (!tmp.renameTo(target))
+                throw new IOException("Could not rename " + tmp + " to " + target);
+        } finally {
+            tmp.delete();
+        }
+    }
+
     /**
      * Wrapper around {@link Os#poll(StructPollfd[], int)} that automatically restarts on EINTR
      * While post-Lollipop devices handle that themselves, we need to do this for Lollipop.
@@ -21,6 +21,7 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.text.format.Formatter;
 import android.util.JsonReader;
 import android.util.JsonWriter;
 import android.util.Log;
@@ -33,11 +34,13 @@ import android.widget.Toast;
 import com.aurelhubert.ahbottomnavigation.AHBottomNavigation;
 import com.aurelhubert.ahbottomnavigation.AHBottomNavigationAdapter;
 
+import org.jak_linux.dns66.db.RuleStats;
 import org.jak_linux.dns66.main.MainFragmentPagerAdapter;
 import org.jak_linux.dns66.main.StartFragment;
 import org.jak_linux.dns66.vpn.AdVpnService;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 
@@ -145,6 +148,9 @@ public class MainActivity extends AppCompatActivity {
 
                 startActivityForResult(exportIntent, REQUEST_FILE_STORE);
                 break;
+            case R.id.action_rule_stats:
+                showRuleStats();
+                break;
             case R.id.setting_show_notification:
                 // If we are enabling notifications, we do not need to show a dialog.
                 if (!item.isChecked()) {
@@ -181,20 +187,61 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
-    private void refresh() {
-        DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+    /**
+     * Shows the statistics of the last load of the rules, and offers to share them as JSON.
+     */
+    private void showRuleStats() {
+        final RuleStats stats;
+        try {
+            stats = RuleStats.read(RuleStats.getFile(this));
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.rule_stats_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
+        StringBuilder message = new StringBuilder(getString(R.string.rule_stats_summary,
+                stats.hosts, stats.wildcards, stats.patterns,
+                Formatter.formatShortFileSize(this, stats.getTotalBytes()), stats.loadTimeMs,
+                Formatter.formatShortFileSize(this, stats.heapUsedBytes),
+                Formatter.formatShortFileSize(this, stats.heapMaxBytes)));
+        for (RuleStats.Item item : stats.items) {
+            String name = item.title == null || item.title.isEmpty() ? item.location : item.title;
+            message.append("\n\n");
+            if (item.complete)
+                message.append(getString(R.string.rule_stats_item, name, item.rules, item.duplicates, item.loadTimeMs));
+            else
+                message.append(getString(R.string.rule_stats_item_incomplete, name));
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_rule_stats)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.rule_stats_share, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        Intent shareIntent = new Intent(Intent.ACTION_SEND)
+                                .setType("application/json")
+                                .putExtra(Intent.EXTRA_TEXT, stats.toJson());
+                        startActivity(Intent.createChooser(shareIntent, getString(R.string.action_rule_stats)));
+                    }
+                }).show();
+    }
+
+    private void refresh() {
         for (Configuration.Item item : config.hosts.items) {
             File file = FileHelper.getItemFile(this, item);
 
             if (file != null && item.state != 2) {
+                // The download is compressed into the item file by the DownloadReceiver
+                File download = new File(file.getPath() + FileHelper.DOWNLOAD_SUFFIX);
                 DownloadManager.Request request = new DownloadManager.Request(Uri.parse(item.location));
-                Log.d("MainActivity", String.format("refresh: Downkoading %s to %s", item.location, file.getAbsolutePath()));
-                file.delete();
-                request.setDestinationUri(Uri.fromFile(file));
+                Log.d("MainActivity", String.format("refresh: Downkoading %s to %s", item.location, download.getAbsolutePath()));
+                download.delete();
+                request.setDestinationUri(Uri.fromFile(download));
                 request.setTitle(item.title);
                 request.setVisibleInDownloadsUi(false);
-                dm.enqueue(request);
+                DownloadReceiver.enqueue(this, request);
             }
         }
     }
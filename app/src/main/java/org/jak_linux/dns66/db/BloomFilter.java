@@ -0,0 +1,165 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frozen Bloom filter over keys of a {@link FrontCodedHostSet}.
+ * <p>
+ * If {@link #mightContain(byte[])} returns false, the key is definitely not in the set, so
+ * most lookups of names that are not blocked only cost a few bit probes. The filter uses
+ * {@link #BITS_PER_KEY} bits per key and derives its probes from a single 64 bit hash by
+ * double hashing. The layout of the buffer is:
+ * <pre>
+ *     int      hashCount
+ *     int      keyCount
+ *     byte[]   bits
+ * </pre>
+ */
+class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final int hashCount;
+    private final int keyCount;
+    private final long bitCount;
+
+    /**
+     * Creates a filter from a buffer, as returned by {@link #getBuffer()}.
+     *
+     * @param buffer A buffer containing an encoded filter
+     */
+    BloomFilter(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.hashCount = buffer.getInt(0);
+        this.keyCount = buffer.getInt(4);
+        this.bitCount = 8L * (buffer.capacity() - HEADER_SIZE);
+    }
+
+    /**
+     * Builds a filter containing all keys of a set.
+     *
+     * @param set The set to build a filter for
+     * @return A new filter.
+     */
+    static BloomFilter build(FrontCodedHostSet set) {
+        int keyCount = set.size();
+        // At least one byte, so a probe always has a bit to look at.
+        int byteCount = Math.max(1, (int) ((keyCount * (long) BITS_PER_KEY + 7) / 8));
+        // The optimal number of hashes is ln(2) * bits per key
+        int hashCount = Math.max(1, (int) Math.round(BITS_PER_KEY * Math.log(2)));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + byteCount);
+        buffer.putInt(0, hashCount);
+        buffer.putInt(4, keyCount);
+
+        final BloomFilter filter = new BloomFilter(buffer);
+        set.forEach(new FrontCodedHostSet.Visitor() {
+            @Override
+            public void visit(byte[] key, int length, long sources) {
+                filter.add(key, length);
+            }
+        });
+        return filter;
+    }
+
+    /**
+     * @return A read-only view of the encoded filter
+     */
+    ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return The number of bytes used by the encoded filter
+     */
+    int sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return The expected false positive rate of the filter, (1 - e^(-kn/m))^k.
+     */
+    double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-hashCount * (double) keyCount / bitCount), hashCount);
+    }
+
+    private void add(byte[] key, int length) {
+        long hash = hash(key, length);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bitCount;
+            int index = HEADER_SIZE + (int) (bit >>> 3);
+            buffer.put(index, (byte) (buffer.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * Checks whether a key might be in the set the filter was built for.
+     *
+     * @param key A key, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @return false if the key is definitely not in the set, true if it might be.
+     */
+    boolean mightContain(byte[] key) {
+        return mightContain(key, key.length);
+    }
+
+    /**
+     * Checks whether a key stored at the start of a buffer might be in the set the filter was
+     * built for.
+     *
+     * @param key    A buffer starting with a key
+     * @param length The length of the key
+     * @return false if the key is definitely not in the set, true if it might be.
+     */
+    boolean mightContain(byte[] key, int length) {
+        return mightContain(hash(key, length));
+    }
+
+    /**
+     * Checks whether a key might be in the set the filter was built for, given the hash of the
+     * key, so callers that need the hash anyway only compute it once.
+     *
+     * @param hash The hash of the key, as returned by {@link #hash(byte[], int)}
+     * @return false if the key is definitely not in the set, true if it might be.
+     */
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bitCount;
+            if ((buffer.get(HEADER_SIZE + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a, followed by the finalizer of MurmurHash3 so the upper and lower halves are
+     * usable as independent hashes.
+     */
+    static long hash(byte[] key, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= key[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,291 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frozen trie of domain rules, keyed by the labels of a domain from right to left.
+ * <p>
+ * Each node carries a bit mask of the sources that have a rule for the domain of the node,
+ * matching the domain and every name below it. A lookup walks the labels of a name once and
+ * returns the rule of the deepest node that has a rule from one of the active sources, so a
+ * rule for a subdomain can carve an exception out of a rule for a parent domain.
+ * <p>
+ * The trie is serialized into a single buffer. It starts with the offset of the root node,
+ * followed by the nodes:
+ * <pre>
+ *     long     sources      mask of the sources with a rule for this domain, or 0
+ *     byte     labelLength
+ *     byte[]   label
+ *     int      childCount
+ *     int[]    children     offsets of the children, sorted by their labels
+ * </pre>
+ */
+class DomainTrie {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int root;
+
+    /**
+     * Creates a trie from a buffer, as returned by {@link #getBuffer()}.
+     *
+     * @param buffer A buffer containing an encoded trie
+     */
+    DomainTrie(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.root = buffer.getInt(0);
+    }
+
+    static final DomainTrie EMPTY = new Builder().build();
+
+    /**
+     * @return The number of bytes used by the encoded trie
+     */
+    int sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return A read-only view of the encoded trie
+     */
+    ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return true if the trie has no rules.
+     */
+    boolean isEmpty() {
+        return buffer.getLong(root) == 0 && buffer.getInt(root + 9) == 0;
+    }
+
+    /**
+     * Looks up the rule for a name.
+     *
+     * @param key    A name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param active The mask of the sources whose rules are considered
+     * @return The sources of the most specific rule matching the name, or 0 if no rule matches.
+     */
+    long lookup(byte[] key, long active) {
+        return lookup(key, key.length, active);
+    }
+
+    /**
+     * Looks up the rule for a name stored at the start of a buffer.
+     *
+     * @param key    A buffer starting with a name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param length The length of the name
+     * @param active The mask of the sources whose rules are considered
+     * @return The sources of the most specific rule matching the name, or 0 if no rule matches.
+     */
+    long lookup(byte[] key, int length, long active) {
+        int node = root;
+        long sources = 0;
+        int start = 0;
+
+        while (true) {
+            int end = start;
+            while (end < length && key[end] != '.')
+                end++;
+
+            node = findChild(node, key, start, end);
+            if (node < 0)
+                return sources;
+
+            long nodeSources = buffer.getLong(node);
+            if ((nodeSources & active) != 0)
+                sources = nodeSources;
+            if (end == length)
+                return sources;
+
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Binary searches the children of a node for a label.
+     *
+     * @return The offset of the child, or -1 if there is no such child.
+     */
+    private int findChild(int node, byte[] key, int start, int end) {
+        int childrenStart = node + 9 + (buffer.get(node + 8) & 0xFF);
+        int low = 0;
+        int high = buffer.getInt(childrenStart) - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int child = buffer.getInt(childrenStart + 4 + 4 * middle);
+            int cmp = compareLabel(child, key, start, end);
+            if (cmp == 0)
+                return child;
+            if (cmp < 0)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return -1;
+    }
+
+    private int compareLabel(int node, byte[] key, int start, int end) {
+        int length = buffer.get(node + 8) & 0xFF;
+        int common = Math.min(length, end - start);
+        for (int i = 0; i < common; i++) {
+            int cmp = (buffer.get(node + 9 + i) & 0xFF) - (key[start + i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - (end - start);
+    }
+
+    /**
+     * Calls the visitor with the sources of each rule in the trie.
+     *
+     * @param visitor The visitor to call
+     */
+    void forEachRule(RuleVisitor visitor) {
+        // The nodes are stored one after another, ending with the root
+        int node = 4;
+        while (node <= root) {
+            long sources = buffer.getLong(node);
+            if (sources != 0)
+                visitor.visit(sources);
+            int childrenStart = node + 9 + (buffer.get(node + 8) & 0xFF);
+            node = childrenStart + 4 + 4 * buffer.getInt(childrenStart);
+        }
+    }
+
+    /**
+     * A callback for {@link #forEachRule(RuleVisitor)}.
+     */
+    interface RuleVisitor {
+        /**
+         * Called for each rule.
+         *
+         * @param sources The mask of sources of the rule
+         */
+        void visit(long sources);
+    }
+
+    /**
+     * Collects rules for a {@link DomainTrie}.
+     */
+    static class Builder {
+        private final Node root = new Node(new byte[0]);
+
+        /**
+         * Adds a rule matching the given name and all names below it. Adding a rule for a
+         * name that already has a rule adds the sources to it.
+         *
+         * @param domain  A lower-cased domain name
+         * @param sources A non-zero mask of the sources of the rule
+         */
+        void add(String domain, long sources) {
+            getNode(domain).sources |= sources;
+        }
+
+        private Node getNode(String host) {
+            Node node = root;
+            int end = host.length();
+            for (int i = host.length() - 1; i >= -1; i--) {
+                if (i == -1 || host.charAt(i) == '.') {
+                    String label = host.substring(i + 1, end);
+                    Node child = node.children.get(label);
+                    if (child == null) {
+                        child = new Node(label.getBytes(UTF_8));
+                        node.children.put(label, child);
+                    }
+                    node = child;
+                    end = i;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * @return A frozen trie containing the rules added so far.
+         */
+        DomainTrie build() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+
+            int rootOffset = write(out, root);
+
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            buffer.putInt(0, rootOffset);
+            return new DomainTrie(buffer);
+        }
+
+        /**
+         * Writes the children of a node, followed by the node itself.
+         *
+         * @return The offset of the node.
+         */
+        private static int write(ByteArrayOutputStream out, Node node) {
+            List<Node> children = new ArrayList<>(node.children.values());
+            Collections.sort(children, Node.LABEL_COMPARATOR);
+
+            int[] childOffsets = new int[children.size()];
+            for (int i = 0; i < childOffsets.length; i++)
+                childOffsets[i] = write(out, children.get(i));
+
+            int offset = out.size();
+            int labelLength = Math.min(node.label.length, FrontCodedHostSet.MAX_NAME_LENGTH);
+            writeLong(out, node.sources);
+            out.write(labelLength);
+            out.write(node.label, 0, labelLength);
+            writeInt(out, childOffsets.length);
+            for (int childOffset : childOffsets)
+                writeInt(out, childOffset);
+            return offset;
+        }
+
+        private static void writeLong(ByteArrayOutputStream out, long value) {
+            writeInt(out, (int) (value >>> 32));
+            writeInt(out, (int) value);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+
+    private static class Node {
+        static final Comparator<Node> LABEL_COMPARATOR = new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return FrontCodedHostSet.KEY_COMPARATOR.compare(a.label, b.label);
+            }
+        };
+
+        final byte[] label;
+        final Map<String, Node> children = new HashMap<>();
+        long sources = 0;
+
+        Node(byte[] label) {
+            this.label = label;
+        }
+    }
+}
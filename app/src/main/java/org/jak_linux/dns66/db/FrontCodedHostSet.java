@@ -0,0 +1,405 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frozen set of host names, stored as sorted, front-coded byte strings.
+ * <p>
+ * Host names are stored with their labels reversed ("ads.example.com" is stored as
+ * "com.example.ads"), so that hosts in the same domain share a long common prefix. The
+ * entries are sorted and grouped into blocks of {@link #BLOCK_SIZE} entries. The first
+ * entry of a block is stored in full, the following ones only store the length of the prefix
+ * shared with the previous entry and the remaining suffix. A lookup is a binary search over
+ * the first entries of the blocks, followed by a linear scan of a single block.
+ * <p>
+ * Each entry carries a non-zero bit mask of the sources that listed the name, so a name
+ * listed by several sources is only stored once. The masks use as few bytes as the highest
+ * source needs.
+ * <p>
+ * The layout of the buffer is:
+ * <pre>
+ *     int      size         number of entries
+ *     int      blockCount   number of blocks
+ *     int      sourceBytes  number of bytes per source mask
+ *     int[]    blockOffsets offset of each block, relative to the start of the entries
+ *     byte[]   entries      first entry of a block: [length] [bytes] [sources]
+ *                           other entries:          [shared] [suffix length] [suffix bytes] [sources]
+ * </pre>
+ * Lengths are single unsigned bytes; names longer than {@link #MAX_NAME_LENGTH} cannot
+ * appear in a DNS query and are not stored.
+ */
+class FrontCodedHostSet {
+    static final int BLOCK_SIZE = 16;
+    static final int MAX_NAME_LENGTH = 255;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int blockCount;
+    private final int sourceBytes;
+    private final int entriesStart;
+
+    /**
+     * Creates a set from a buffer, as returned by {@link #getBuffer()}.
+     *
+     * @param buffer A buffer containing an encoded set
+     */
+    FrontCodedHostSet(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.getInt(0);
+        this.blockCount = buffer.getInt(4);
+        this.sourceBytes = buffer.getInt(8);
+        this.entriesStart = HEADER_SIZE + 4 * blockCount;
+    }
+
+    /**
+     * Builds a set from a collection of host names, all listed by the first source.
+     *
+     * @param hosts Lower-cased host names
+     * @return A new frozen set containing the hosts.
+     */
+    static FrontCodedHostSet build(Collection<String> hosts) {
+        Map<String, Long> sources = new HashMap<>();
+        for (String host : hosts)
+            sources.put(host, 1L);
+        return build(sources);
+    }
+
+    /**
+     * Builds a set from host names and the sources that listed them.
+     *
+     * @param hosts Lower-cased host names, mapped to non-zero masks of their sources
+     * @return A new frozen set containing the hosts.
+     */
+    static FrontCodedHostSet build(Map<String, Long> hosts) {
+        HostKeyMap keys = new HostKeyMap();
+        for (Map.Entry<String, Long> host : hosts.entrySet()) {
+            byte[] key = reverseLabels(host.getKey());
+            if (key.length <= MAX_NAME_LENGTH)
+                keys.add(key, 0, key.length, host.getValue(), 0);
+        }
+        return build(keys);
+    }
+
+    /**
+     * Builds a set from keys and the sources that listed them.
+     *
+     * @param hosts Keys, as returned by {@link #reverseLabels(String)}, with non-zero masks of their sources
+     * @return A new frozen set containing the keys.
+     */
+    static FrontCodedHostSet build(HostKeyMap hosts) {
+        int[] sorted = hosts.sort();
+        long allSources = 0;
+        for (int entry : sorted)
+            allSources |= hosts.getSources(entry);
+
+        int sourceBytes = Math.max(1, (64 - Long.numberOfLeadingZeros(allSources) + 7) / 8);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        List<Integer> blockOffsets = new ArrayList<>();
+        byte[] key = new byte[MAX_NAME_LENGTH];
+        byte[] previous = new byte[MAX_NAME_LENGTH];
+        int previousLength = 0;
+        int size = 0;
+
+        for (int entry : sorted) {
+            int length = hosts.getKey(entry, key);
+            if (size % BLOCK_SIZE == 0) {
+                blockOffsets.add(entries.size());
+                entries.write(length);
+                entries.write(key, 0, length);
+            } else {
+                int shared = commonPrefixLength(previous, previousLength, key, length);
+                entries.write(shared);
+                entries.write(length - shared);
+                entries.write(key, shared, length - shared);
+            }
+            long sources = hosts.getSources(entry);
+            for (int i = sourceBytes - 1; i >= 0; i--)
+                entries.write((int) (sources >>> (8 * i)));
+
+            byte[] swap = previous;
+            previous = key;
+            previousLength = length;
+            key = swap;
+            size++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * blockOffsets.size() + entries.size());
+        buffer.putInt(size);
+        buffer.putInt(blockOffsets.size());
+        buffer.putInt(sourceBytes);
+        for (int offset : blockOffsets)
+            buffer.putInt(offset);
+        buffer.put(entries.toByteArray());
+
+        return new FrontCodedHostSet(buffer);
+    }
+
+    /**
+     * Converts a host name into the key format, that is, its bytes with the order of the labels
+     * reversed.
+     *
+     * @param host A lower-cased host name
+     * @return The key for the host
+     */
+    static byte[] reverseLabels(String host) {
+        byte[] name = host.getBytes(UTF_8);
+        byte[] key = new byte[name.length];
+        reverseLabels(name, 0, name.length, key);
+        return key;
+    }
+
+    /**
+     * Converts a host name stored in a buffer into the key format, without allocating.
+     *
+     * @param name  A buffer containing a lower-cased host name
+     * @param start The offset of the name in the buffer
+     * @param end   The offset after the name in the buffer
+     * @param key   A buffer of at least end - start bytes the key is written to
+     * @return The length of the key, which is the length of the name.
+     */
+    static int reverseLabels(byte[] name, int start, int end, byte[] key) {
+        int out = 0;
+        int labelEnd = end;
+        for (int i = end - 1; i >= start - 1; i--) {
+            if (i == start - 1 || name[i] == '.') {
+                System.arraycopy(name, i + 1, key, out, labelEnd - i - 1);
+                out += labelEnd - i - 1;
+                if (i >= start)
+                    key[out++] = '.';
+                labelEnd = i;
+            }
+        }
+        return out;
+    }
+
+    private static int commonPrefixLength(byte[] a, int aLength, byte[] b, int bLength) {
+        int length = Math.min(aLength, bLength);
+        int i = 0;
+        while (i < length && a[i] == b[i])
+            i++;
+        return i;
+    }
+
+    /**
+     * Compares keys as unsigned byte strings.
+     */
+    static final Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    static final FrontCodedHostSet EMPTY = build(new HostKeyMap());
+
+    /**
+     * @return The number of hosts in the set
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of bytes used by the encoded set
+     */
+    int sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return A read-only view of the encoded set
+     */
+    ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Calls the visitor for each key in the set, in order.
+     *
+     * @param visitor The visitor to call
+     */
+    void forEach(Visitor visitor) {
+        byte[] key = new byte[MAX_NAME_LENGTH];
+        int position = entriesStart;
+        int length = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                length = buffer.get(position++) & 0xFF;
+                for (int j = 0; j < length; j++)
+                    key[j] = buffer.get(position++);
+            } else {
+                int shared = buffer.get(position++) & 0xFF;
+                int suffixLength = buffer.get(position++) & 0xFF;
+                for (int j = 0; j < suffixLength; j++)
+                    key[shared + j] = buffer.get(position++);
+                length = shared + suffixLength;
+            }
+            visitor.visit(key, length, readSources(position));
+            position += sourceBytes;
+        }
+    }
+
+    private long readSources(int position) {
+        long sources = 0;
+        for (int i = 0; i < sourceBytes; i++)
+            sources = sources << 8 | (buffer.get(position + i) & 0xFF);
+        return sources;
+    }
+
+    /**
+     * Checks if a host is in the set.
+     *
+     * @param host A lower-cased host name
+     * @return true if the host is in the set, false otherwise.
+     */
+    boolean contains(String host) {
+        return getSources(reverseLabels(host)) != 0;
+    }
+
+    /**
+     * Checks if a key is in the set.
+     *
+     * @param key A key, as returned by {@link #reverseLabels(String)}
+     * @return true if the key is in the set, false otherwise.
+     */
+    boolean contains(byte[] key) {
+        return getSources(key) != 0;
+    }
+
+    /**
+     * Looks up the sources that listed a key.
+     *
+     * @param key A key, as returned by {@link #reverseLabels(String)}
+     * @return The mask of sources listing the key, or 0 if the key is not in the set.
+     */
+    long getSources(byte[] key) {
+        return getSources(key, key.length);
+    }
+
+    /**
+     * Looks up the sources that listed a key stored at the start of a buffer.
+     *
+     * @param key       A buffer starting with a key, as returned by {@link #reverseLabels(String)}
+     * @param keyLength The length of the key
+     * @return The mask of sources listing the key, or 0 if the key is not in the set.
+     */
+    long getSources(byte[] key, int keyLength) {
+        int low = 0;
+        int high = blockCount - 1;
+        int block = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareFirstEntry(middle, key, keyLength);
+            if (cmp == 0) {
+                int position = entriesStart + buffer.getInt(HEADER_SIZE + 4 * middle);
+                return readSources(position + 1 + keyLength);
+            }
+            if (cmp < 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return block >= 0 ? scanBlock(block, key, keyLength) : 0;
+    }
+
+    /**
+     * Compares the first entry of a block to the key.
+     */
+    private int compareFirstEntry(int block, byte[] key, int keyLength) {
+        int position = entriesStart + buffer.getInt(HEADER_SIZE + 4 * block);
+        int length = buffer.get(position++) & 0xFF;
+        int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            int cmp = (buffer.get(position + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - keyLength;
+    }
+
+    /**
+     * Scans a block whose first entry is smaller than the key for the key.
+     * <p>
+     * We keep track of the length of the prefix the current entry shares with the key. As the
+     * entries are sorted, an entry that shares more with its predecessor than the predecessor
+     * shares with the key is still smaller than the key, and an entry that shares less is
+     * larger than the key; only entries sharing exactly as much need to be compared.
+     */
+    private long scanBlock(int block, byte[] key, int keyLength) {
+        int position = entriesStart + buffer.getInt(HEADER_SIZE + 4 * block);
+        int entries = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+
+        // The first entry is smaller than the key, find out how much it shares.
+        int length = buffer.get(position++) & 0xFF;
+        int matched = 0;
+        while (matched < length && matched < keyLength && buffer.get(position + matched) == key[matched])
+            matched++;
+        position += length + sourceBytes;
+
+        for (int i = 1; i < entries; i++) {
+            int shared = buffer.get(position++) & 0xFF;
+            int suffixLength = buffer.get(position++) & 0xFF;
+
+            if (shared < matched)
+                return 0;
+            if (shared == matched) {
+                int j = 0;
+                while (j < suffixLength && matched + j < keyLength && buffer.get(position + j) == key[matched + j])
+                    j++;
+
+                if (j == suffixLength && matched + j == keyLength)
+                    return readSources(position + suffixLength);
+                if (j < suffixLength && (matched + j == keyLength || (buffer.get(position + j) & 0xFF) > (key[matched + j] & 0xFF)))
+                    return 0;
+                matched += j;
+            }
+            position += suffixLength + sourceBytes;
+        }
+        return 0;
+    }
+
+    /**
+     * A callback for {@link #forEach(Visitor)}.
+     */
+    interface Visitor {
+        /**
+         * Called for each key.
+         *
+         * @param key     A buffer holding the key. It is reused for the next key.
+         * @param length  The length of the key
+         * @param sources The mask of sources listing the key
+         */
+        void visit(byte[] key, int length, long sources);
+    }
+}
@@ -0,0 +1,227 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.util.Arrays;
+
+/**
+ * A mutable set of host names collected while loading, in the key format of
+ * {@link FrontCodedHostSet}, each with the mask of the sources that listed it.
+ * <p>
+ * Lists have hundreds of thousands of hosts, so the keys are not stored as objects. They are
+ * appended to a single byte array, each preceded by its length, and found through an
+ * open-addressing hash table of entry numbers with linear probing. Keys are added straight
+ * from the buffer they were built in, so adding a host does not allocate unless the arrays
+ * have to grow.
+ */
+final class HostKeyMap {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* The keys, each preceded by its length */
+    private byte[] keys;
+    private int keysLength;
+    /* The offset of the length of the key, the hash of the key, and the sources of each entry */
+    private int[] offsets;
+    private int[] hashes;
+    private long[] sources;
+    private int size;
+    /* One more than the entry stored in each slot, or 0 for empty slots */
+    private int[] table;
+
+    HostKeyMap() {
+        clear();
+    }
+
+    /**
+     * @return The number of keys in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all keys, and releases the memory used by them.
+     */
+    void clear() {
+        keys = new byte[INITIAL_CAPACITY * 16];
+        keysLength = 0;
+        offsets = new int[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        sources = new long[INITIAL_CAPACITY];
+        size = 0;
+        table = new int[2 * INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a key for a source.
+     *
+     * @param key      A buffer containing the key
+     * @param offset   The offset of the key in the buffer
+     * @param length   The length of the key, at most {@link FrontCodedHostSet#MAX_NAME_LENGTH}
+     * @param source   The bits of the source listing the key
+     * @param replaced The bits of sources the key is no longer listed by
+     * @return true if the key was already in the map, false otherwise.
+     */
+    boolean add(byte[] key, int offset, int length, long source, long replaced) {
+        if (length > FrontCodedHostSet.MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Key is too long: " + length);
+        if (size == offsets.length)
+            grow();
+
+        int hash = hash(key, offset, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) {
+                if (keysLength + 1 + length > keys.length)
+                    keys = Arrays.copyOf(keys, Math.max(2 * keys.length, keysLength + 1 + length));
+                keys[keysLength] = (byte) length;
+                System.arraycopy(key, offset, keys, keysLength + 1, length);
+                offsets[size] = keysLength;
+                hashes[size] = hash;
+                sources[size] = source;
+                keysLength += 1 + length;
+                table[slot] = ++size;
+                return false;
+            }
+            if (hashes[entry] == hash && equalsKey(entry, key, offset, length)) {
+                sources[entry] = (sources[entry] & ~replaced) | source;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds all keys of another map for a source.
+     *
+     * @param other    The map whose keys to add
+     * @param source   The bits of the source listing the keys
+     * @param replaced The bits of sources the keys are no longer listed by
+     * @return The number of keys that were already in this map.
+     */
+    int addAll(HostKeyMap other, long source, long replaced) {
+        int duplicates = 0;
+        for (int entry = 0; entry < other.size; entry++) {
+            int offset = other.offsets[entry];
+            if (add(other.keys, offset + 1, other.keys[offset] & 0xFF, source, replaced))
+                duplicates++;
+        }
+        return duplicates;
+    }
+
+    /**
+     * Copies the key of an entry into a buffer.
+     *
+     * @param entry An entry, from 0 to {@link #size()}
+     * @param key   A buffer of at least {@link FrontCodedHostSet#MAX_NAME_LENGTH} bytes
+     * @return The length of the key.
+     */
+    int getKey(int entry, byte[] key) {
+        int offset = offsets[entry];
+        int length = keys[offset] & 0xFF;
+        System.arraycopy(keys, offset + 1, key, 0, length);
+        return length;
+    }
+
+    /**
+     * @param entry An entry, from 0 to {@link #size()}
+     * @return The mask of sources listing the key of the entry.
+     */
+    long getSources(int entry) {
+        return sources[entry];
+    }
+
+    /**
+     * Sorts the entries by their keys, compared as unsigned byte strings.
+     *
+     * @return The entries, in the order of their keys.
+     */
+    int[] sort() {
+        int[] order = new int[size];
+        int[] merged = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+
+        // Bottom-up merge sort, so there are no boxed entries
+        for (int width = 1; width < size; width *= 2) {
+            for (int low = 0; low < size; low += 2 * width) {
+                int middle = Math.min(low + width, size);
+                int high = Math.min(low + 2 * width, size);
+                int i = low;
+                int j = middle;
+                int k = low;
+                while (i < middle && j < high)
+                    merged[k++] = compareKeys(order[i], order[j]) <= 0 ? order[i++] : order[j++];
+                while (i < middle)
+                    merged[k++] = order[i++];
+                while (j < high)
+                    merged[k++] = order[j++];
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        return order;
+    }
+
+    private void grow() {
+        int capacity = 2 * offsets.length;
+        offsets = Arrays.copyOf(offsets, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        sources = Arrays.copyOf(sources, capacity);
+        table = new int[2 * capacity];
+
+        int mask = table.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hashes[entry] & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = entry + 1;
+        }
+    }
+
+    private boolean equalsKey(int entry, byte[] key, int offset, int length) {
+        int position = offsets[entry];
+        if ((keys[position++] & 0xFF) != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (keys[position + i] != key[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private int compareKeys(int a, int b) {
+        int positionA = offsets[a];
+        int positionB = offsets[b];
+        int lengthA = keys[positionA++] & 0xFF;
+        int lengthB = keys[positionB++] & 0xFF;
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int cmp = (keys[positionA + i] & 0xFF) - (keys[positionB + i] & 0xFF);
+            if (cmp != 0)
+                return cmp;
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * FNV-1a, with the final mixing step of MurmurHash3, as linear probing uses the low bits.
+     */
+    private static int hash(byte[] key, int offset, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; i++)
+            hash = (hash ^ (key[offset + i] & 0xFF)) * 0x01000193;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
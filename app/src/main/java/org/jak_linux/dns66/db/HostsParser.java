@@ -0,0 +1,459 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * A parser for host lists that works on raw bytes.
+ * <p>
+ * The input is read into a reusable buffer, and each line is parsed in place: Comments and
+ * whitespace are skipped, and hosts are lower-cased inside the buffer. The parser does not
+ * allocate anything per line; the {@link Sink} gets the position of each host in the buffer
+ * and decides what to keep.
+ * <p>
+ * The following formats are understood, and unless a format is given, it is detected by
+ * looking at the first lines of the input:
+ * <ul>
+ * <li>{@link #FORMAT_HOSTS}: Hosts files. A line starts with 127.0.0.1, 0.0.0.0, :: or ::1,
+ * followed by any number of hosts. A line consisting of a single host is accepted as well.</li>
+ * <li>{@link #FORMAT_DOMAINS}: One host per line.</li>
+ * <li>{@link #FORMAT_DNSMASQ}: dnsmasq configuration lines like "address=/example.com/" or
+ * "server=/example.com/", which block the domains and all their subdomains.</li>
+ * <li>{@link #FORMAT_ADBLOCK}: Adblock filter lists. "||example.com^" blocks the domain and
+ * its subdomains, other rules are passed on as they are, so they can be handled as patterns.
+ * Exception rules starting with "@@" are passed on as they are, too, unless they have
+ * options or a path, as they then only apply to some requests. Lines starting with "!" are
+ * comments, and element hiding rules like "example.com##.ad" are skipped.</li>
+ * </ul>
+ */
+final class HostsParser {
+    /**
+     * Detect the format from the first lines of the input
+     */
+    static final int FORMAT_AUTO = 0;
+    static final int FORMAT_HOSTS = 1;
+    static final int FORMAT_DOMAINS = 2;
+    static final int FORMAT_DNSMASQ = 3;
+    static final int FORMAT_ADBLOCK = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /* The number of lines with content looked at to detect the format */
+    private static final int SNIFF_LINES = 32;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[][] ADDRESSES = {
+            "127.0.0.1".getBytes(ASCII),
+            "0.0.0.0".getBytes(ASCII),
+            "::1".getBytes(ASCII),
+            "::".getBytes(ASCII),
+    };
+    private static final byte[][] ADBLOCK_PREFIXES = {
+            "[adblock".getBytes(ASCII),
+            "[adguard".getBytes(ASCII),
+            "!".getBytes(ASCII),
+            "||".getBytes(ASCII),
+            "@@".getBytes(ASCII),
+    };
+    private static final byte[] DNSMASQ_ADDRESS = "address=/".getBytes(ASCII);
+    private static final byte[] DNSMASQ_SERVER = "server=/".getBytes(ASCII);
+    private static final byte[] DNSMASQ_LOCAL = "local=/".getBytes(ASCII);
+
+    private final Sink sink;
+    private final int requestedFormat;
+    private int format;
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Receives the hosts found by a parser.
+     */
+    interface Sink {
+        /**
+         * Called for each host. The buffer is reused for the following lines, so the host must
+         * be copied if it is kept.
+         *
+         * @param buffer     The buffer containing the lower-cased host
+         * @param start      The offset of the host in the buffer
+         * @param end        The offset after the host in the buffer
+         * @param subdomains Whether the subdomains of the host are listed as well
+         */
+        void host(byte[] buffer, int start, int end, boolean subdomains);
+    }
+
+    /**
+     * Creates a parser detecting the format of its input.
+     *
+     * @param sink The sink receiving the hosts
+     */
+    HostsParser(Sink sink) {
+        this(sink, FORMAT_AUTO);
+    }
+
+    /**
+     * Creates a parser.
+     *
+     * @param sink   The sink receiving the hosts
+     * @param format One of the FORMAT_ constants
+     */
+    HostsParser(Sink sink, int format) {
+        this.sink = sink;
+        this.requestedFormat = format;
+        this.format = format;
+    }
+
+    /**
+     * Decodes a host passed to a {@link Sink}.
+     *
+     * @param buffer The buffer containing the host
+     * @param start  The offset of the host in the buffer
+     * @param end    The offset after the host in the buffer
+     * @return The host as a string.
+     */
+    static String decode(byte[] buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            // Only ASCII letters are lower-cased in place, so lower-case anything else here.
+            if (buffer[i] < 0)
+                return new String(buffer, start, end - start, UTF_8).toLowerCase(Locale.ENGLISH);
+        }
+        return new String(buffer, start, end - start, ASCII);
+    }
+
+    /**
+     * @return The format of the last input, one of the FORMAT_ constants.
+     */
+    int getFormat() {
+        return format;
+    }
+
+    /**
+     * Parses a stream. The stream is not closed.
+     *
+     * @param in The stream to parse
+     * @return The number of hosts passed to the sink.
+     * @throws IOException          If the stream could not be read
+     * @throws InterruptedException If the thread was interrupted
+     */
+    int parse(InputStream in) throws IOException, InterruptedException {
+        if (buffer == null)
+            buffer = new byte[BUFFER_SIZE];
+
+        int fill = 0;
+        count = 0;
+        format = requestedFormat;
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException("Interrupted");
+
+            // Make room for a line that is longer than the buffer
+            if (fill == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, fill);
+                buffer = larger;
+            }
+
+            int read = in.read(buffer, fill, buffer.length - fill);
+            if (format == FORMAT_AUTO)
+                format = detectFormat(buffer, 0, read < 0 ? fill : fill + read);
+            if (read < 0) {
+                parseLine(buffer, 0, fill);
+                return count;
+            }
+
+            int scanStart = fill;
+            fill += read;
+
+            int lineStart = 0;
+            for (int i = scanStart; i < fill; i++) {
+                if (buffer[i] == '\n' || buffer[i] == '\r') {
+                    parseLine(buffer, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+
+            // Move the incomplete last line to the front
+            fill -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, fill);
+        }
+    }
+
+    /**
+     * Detects the format of an input from its first lines. Adblock and dnsmasq lists are
+     * recognized by their syntax, hosts files by addresses in front of the hosts; anything
+     * else is a list of domains.
+     *
+     * @param data  The beginning of the input
+     * @param start The offset of the input in data
+     * @param end   The offset after the input in data
+     * @return One of the FORMAT_ constants, other than {@link #FORMAT_AUTO}.
+     */
+    static int detectFormat(byte[] data, int start, int end) {
+        int lines = 0;
+        int lineStart = start;
+        while (lineStart < end && lines < SNIFF_LINES) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && data[lineEnd] != '\n' && data[lineEnd] != '\r')
+                lineEnd++;
+
+            int i = skipWhitespace(data, lineStart, lineEnd);
+            if (i < lineEnd && data[i] != '#') {
+                lines++;
+                for (byte[] prefix : ADBLOCK_PREFIXES) {
+                    if (startsWithIgnoreCase(data, i, lineEnd, prefix))
+                        return FORMAT_ADBLOCK;
+                }
+                if (startsWithIgnoreCase(data, i, lineEnd, DNSMASQ_ADDRESS)
+                        || startsWithIgnoreCase(data, i, lineEnd, DNSMASQ_SERVER)
+                        || startsWithIgnoreCase(data, i, lineEnd, DNSMASQ_LOCAL))
+                    return FORMAT_DNSMASQ;
+                if (addressLength(data, i, lineEnd) > 0)
+                    return FORMAT_HOSTS;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return lines == 0 ? FORMAT_HOSTS : FORMAT_DOMAINS;
+    }
+
+    /**
+     * Parses a single line, without its line terminator.
+     *
+     * @param line  A buffer containing the line
+     * @param start The offset of the line
+     * @param end   The offset after the line
+     */
+    void parseLine(byte[] line, int start, int end) {
+        switch (format) {
+            case FORMAT_DOMAINS:
+                parseDomainsLine(line, start, end);
+                break;
+            case FORMAT_DNSMASQ:
+                parseDnsmasqLine(line, start, end);
+                break;
+            case FORMAT_ADBLOCK:
+                parseAdblockLine(line, start, end);
+                break;
+            default:
+                parseHostsLine(line, start, end);
+                break;
+        }
+    }
+
+    private void parseHostsLine(byte[] line, int start, int end) {
+        end = trimEnd(line, start, stripComment(line, start, end));
+
+        int addressLength = addressLength(line, start, end);
+        if (addressLength == 0) {
+            // A line without an address may only contain a single host.
+            emitSingle(line, skipWhitespace(line, start, end), end, false);
+            return;
+        }
+
+        int i = start + addressLength;
+        while ((i = skipWhitespace(line, i, end)) < end) {
+            int tokenEnd = tokenEnd(line, i, end);
+            emit(line, i, tokenEnd, false);
+            i = tokenEnd;
+        }
+    }
+
+    private void parseDomainsLine(byte[] line, int start, int end) {
+        end = trimEnd(line, start, stripComment(line, start, end));
+        emitSingle(line, skipWhitespace(line, start, end), end, false);
+    }
+
+    private void parseDnsmasqLine(byte[] line, int start, int end) {
+        // Only whole lines are comments, "#" is a valid value otherwise.
+        end = trimEnd(line, start, end);
+        start = skipWhitespace(line, start, end);
+
+        boolean server;
+        if (startsWithIgnoreCase(line, start, end, DNSMASQ_ADDRESS)) {
+            start += DNSMASQ_ADDRESS.length;
+            server = false;
+        } else if (startsWithIgnoreCase(line, start, end, DNSMASQ_SERVER)) {
+            start += DNSMASQ_SERVER.length;
+            server = true;
+        } else if (startsWithIgnoreCase(line, start, end, DNSMASQ_LOCAL)) {
+            start += DNSMASQ_LOCAL.length;
+            server = false;
+        } else {
+            return;
+        }
+
+        // The domains are followed by a final "/" and the value, which for server lines
+        // is an upstream server. Only server lines without one block their domains.
+        int valueStart = end;
+        while (valueStart > start && line[valueStart - 1] != '/')
+            valueStart--;
+        if (valueStart == start || (server && valueStart != end))
+            return;
+
+        int i = start;
+        while (i < valueStart - 1) {
+            int domainEnd = i;
+            while (line[domainEnd] != '/')
+                domainEnd++;
+            // "#" matches all domains, which is not something to block
+            if (domainEnd > i && !(domainEnd == i + 1 && line[i] == '#') && tokenEnd(line, i, domainEnd) == domainEnd)
+                emit(line, i, domainEnd, true);
+            i = domainEnd + 1;
+        }
+    }
+
+    private void parseAdblockLine(byte[] line, int start, int end) {
+        // Comments and the header
+        if (start < end && (line[start] == '!' || line[start] == '['))
+            return;
+
+        for (int i = start; i < end; i++) {
+            if (line[i] == '#') {
+                if (isElementHidingRule(line, start, i, end))
+                    return;
+                end = i;
+                break;
+            }
+        }
+
+        end = trimEnd(line, start, end);
+        start = skipWhitespace(line, start, end);
+        if (start >= end || tokenEnd(line, start, end) != end)
+            return;
+
+        if (end - start >= 2 && line[start] == '@' && line[start + 1] == '@') {
+            for (int i = start + 2; i < end; i++) {
+                if (line[i] == '$' || line[i] == '/')
+                    return;
+            }
+            if (end - start > 2)
+                emit(line, start, end, false);
+            return;
+        }
+
+        // "||example.com^" lists the domain and its subdomains, anything else is a pattern.
+        if (end - start > 3 && line[start] == '|' && line[start + 1] == '|' && line[end - 1] == '^'
+                && !isPattern(line, start + 2, end - 1)) {
+            emit(line, start + 2, end - 1, true);
+            return;
+        }
+        emit(line, start, end, false);
+    }
+
+    /**
+     * Emits a host, if the given range is a single token.
+     */
+    private void emitSingle(byte[] line, int start, int end, boolean subdomains) {
+        if (start < end && tokenEnd(line, start, end) == end)
+            emit(line, start, end, subdomains);
+    }
+
+    /**
+     * Lower-cases a host in place and passes it to the sink.
+     */
+    private void emit(byte[] line, int start, int end, boolean subdomains) {
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b >= 'A' && b <= 'Z')
+                line[i] = (byte) (b + ('a' - 'A'));
+        }
+        count++;
+        sink.host(line, start, end, subdomains);
+    }
+
+    /**
+     * @return The offset of the first "#" of the line, or end if there is none.
+     */
+    private static int stripComment(byte[] line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == '#')
+                return i;
+        }
+        return end;
+    }
+
+    private static int skipWhitespace(byte[] line, int start, int end) {
+        while (start < end && isWhitespace(line[start]))
+            start++;
+        return start;
+    }
+
+    private static int trimEnd(byte[] line, int start, int end) {
+        while (end > start && isWhitespace(line[end - 1]))
+            end--;
+        return end;
+    }
+
+    /**
+     * @return The offset of the first whitespace character at or after start, or end.
+     */
+    private static int tokenEnd(byte[] line, int start, int end) {
+        while (start < end && !isWhitespace(line[start]))
+            start++;
+        return start;
+    }
+
+    private static boolean isPattern(byte[] line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b == '*' || b == '|' || b == '^')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a "#" belongs to an element hiding rule ("##", "#@#", "#?#" or "#$#"
+     * directly after a domain) rather than starting a comment.
+     */
+    private static boolean isElementHidingRule(byte[] line, int start, int hash, int end) {
+        if (hash == start || isWhitespace(line[hash - 1]) || hash + 1 == end)
+            return false;
+        byte next = line[hash + 1];
+        return next == '#' || next == '@' || next == '?' || next == '$';
+    }
+
+    /**
+     * Checks whether a line starts with one of the known addresses, followed by whitespace or
+     * the end of the line.
+     *
+     * @return The length of the address, or 0 if the line does not start with one.
+     */
+    private static int addressLength(byte[] line, int start, int end) {
+        for (byte[] address : ADDRESSES) {
+            if (startsWithIgnoreCase(line, start, end, address)
+                    && (end - start == address.length || isWhitespace(line[start + address.length])))
+                return address.length;
+        }
+        return 0;
+    }
+
+    /**
+     * Checks whether a line starts with a lower-case prefix, ignoring the case of the line.
+     */
+    private static boolean startsWithIgnoreCase(byte[] line, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            byte b = line[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The ASCII characters for which {@link Character#isWhitespace(char)} is true.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+    }
+}
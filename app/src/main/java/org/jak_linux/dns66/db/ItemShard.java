@@ -0,0 +1,288 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import android.support.annotation.Nullable;
+
+import org.jak_linux.dns66.FileHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The hosts parsed from the file of a single item, stored so they do not have to be parsed
+ * again.
+ * <p>
+ * Parsing is the most expensive part of loading the rules, and usually only some of the files
+ * changed since the last load. A shard records the size, modification time and SHA-1 digest of
+ * the file its hosts were parsed from. If the file still has the same size and modification
+ * time, the hosts are read from the shard. A file that was downloaded again without changing
+ * gets a new modification time, so if only that differs, the digest of the file decides.
+ * <p>
+ * Plain hosts are stored as the keys of {@link FrontCodedHostSet}, so they can be added to the
+ * rules as they are read. Wildcards and patterns are stored as the rules returned by the
+ * parser. Both are sorted, and each one is stored as the length of the prefix it shares with
+ * the previous one, followed by the rest of it. The layout of the file is:
+ * <pre>
+ *     int      magic
+ *     int      version
+ *     long     fileSize
+ *     long     lastModified
+ *     int      digestLength
+ *     byte[]   digest
+ *     int      hostCount
+ *     hostCount times:
+ *         varint   sharedLength
+ *         varint   suffixLength
+ *         byte[]   suffix           key
+ *     int      ruleCount
+ *     ruleCount times:
+ *         varint   sharedLength
+ *         varint   suffixLength
+ *         byte[]   suffix           UTF-8
+ * </pre>
+ */
+final class ItemShard {
+    private static final int MAGIC = 0x44363653; // "D66S"
+    /* Must be increased whenever the hosts returned by the parser change */
+    static final int VERSION = 4;
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final long fileSize;
+    final long lastModified;
+    final byte[] digest;
+
+    /**
+     * Creates a shard header.
+     *
+     * @param fileSize     The size of the file the hosts were parsed from
+     * @param lastModified The modification time of the file the hosts were parsed from
+     * @param digest       The digest of the file the hosts were parsed from
+     */
+    ItemShard(long fileSize, long lastModified, byte[] digest) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    /**
+     * Checks whether the hosts of the shard were parsed from a file, without reading it.
+     *
+     * @param file A file
+     * @return true if the file has the size and modification time recorded in the shard.
+     */
+    boolean isParsedFrom(File file) {
+        return file.length() == fileSize && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Reads a shard.
+     *
+     * @param file  The shard file
+     * @param hosts A map to add the keys of the plain hosts to, or null to only read the header
+     * @param rules A collection to add the other rules to, or null to only read the header
+     * @return The header of the shard, or null if there is no shard of the current version.
+     * @throws IOException If the shard could not be read.
+     */
+    @Nullable
+    static ItemShard read(File file, @Nullable HostKeyMap hosts, @Nullable Collection<String> rules) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), hosts == null ? 512 : BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            byte[] digest = new byte[in.readInt()];
+            in.readFully(digest);
+            if (hosts == null || rules == null)
+                return new ItemShard(fileSize, lastModified, digest);
+
+            byte[] entry = new byte[256];
+            int count = in.readInt();
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                int sharedLength = readVarInt(in);
+                int suffixLength = readVarInt(in);
+                if (sharedLength > length || suffixLength < 0 || sharedLength + suffixLength > FrontCodedHostSet.MAX_NAME_LENGTH)
+                    throw new IOException("Corrupted shard " + file);
+                length = sharedLength + suffixLength;
+                in.readFully(entry, sharedLength, suffixLength);
+                hosts.add(entry, 0, length, 1, 0);
+            }
+
+            count = in.readInt();
+            length = 0;
+            for (int i = 0; i < count; i++) {
+                int sharedLength = readVarInt(in);
+                int suffixLength = readVarInt(in);
+                if (sharedLength > length || suffixLength < 0)
+                    throw new IOException("Corrupted shard " + file);
+                length = sharedLength + suffixLength;
+                if (length > entry.length)
+                    entry = Arrays.copyOf(entry, length);
+                in.readFully(entry, sharedLength, suffixLength);
+                rules.add(new String(entry, 0, length, UTF_8));
+            }
+            return new ItemShard(fileSize, lastModified, digest);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a shard. The shard is written to a temporary file first, and then renamed, so
+     * the shard is replaced atomically.
+     *
+     * @param file  The shard file
+     * @param hosts The keys of the plain hosts parsed from the file described by this header
+     * @param rules The other rules parsed from the file described by this header
+     * @throws IOException If the shard could not be written.
+     */
+    void write(File file, HostKeyMap hosts, Collection<String> rules) throws IOException {
+        List<String> sortedRules = new ArrayList<>(rules);
+        Collections.sort(sortedRules);
+
+        File tmp = new File(file.getPath() + FileHelper.TEMPORARY_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileSize);
+            out.writeLong(lastModified);
+            out.writeInt(digest.length);
+            out.write(digest);
+
+            byte[] key = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+            byte[] previous = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+            int previousLength = 0;
+            out.writeInt(hosts.size());
+            for (int entry : hosts.sort()) {
+                int length = hosts.getKey(entry, key);
+                writeEntry(out, previous, previousLength, key, length);
+                byte[] swap = previous;
+                previous = key;
+                previousLength = length;
+                key = swap;
+            }
+
+            previous = new byte[0];
+            out.writeInt(sortedRules.size());
+            for (String rule : sortedRules) {
+                byte[] bytes = rule.getBytes(UTF_8);
+                writeEntry(out, previous, previous.length, bytes, bytes.length);
+                previous = bytes;
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Writes an entry as the length of the prefix it shares with the previous entry, followed
+     * by the rest of it.
+     */
+    private static void writeEntry(DataOutputStream out, byte[] previous, int previousLength, byte[] bytes, int length) throws IOException {
+        int sharedLength = 0;
+        while (sharedLength < length && sharedLength < previousLength && bytes[sharedLength] == previous[sharedLength])
+            sharedLength++;
+        writeVarInt(out, sharedLength);
+        writeVarInt(out, length - sharedLength);
+        out.write(bytes, sharedLength, length - sharedLength);
+    }
+
+    /**
+     * @return A new instance of the digest used for files.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Computes the digest of a file.
+     *
+     * @param file The file
+     * @return The digest of the content of the file
+     * @throws IOException If the file could not be read.
+     */
+    static byte[] digest(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Computes the digest of the remaining bytes of a buffer, such as a mapped file, without
+     * changing its position.
+     *
+     * @param buffer The buffer
+     * @return The digest of the remaining bytes
+     */
+    static byte[] digest(ByteBuffer buffer) {
+        MessageDigest digest = newDigest();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid variable length integer");
+    }
+}
@@ -0,0 +1,543 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pattern rules, compiled into deterministic automata.
+ * <p>
+ * Rules are written in the syntax of adblock filters, restricted to what can be matched
+ * against a host name: "*" matches any sequence of characters, "|" at the start or end
+ * anchors the pattern at the start or end of the name, "||" at the start anchors it at the
+ * start of a label, and "^" at the end anchors it at the end of the name. A pattern without
+ * anchors matches anywhere in the name. Rules are converted to globs that have to match the
+ * whole name, see {@link #toGlobs(String)}.
+ * <p>
+ * All globs are compiled into one DFA, so matching a name is a single pass over it, however
+ * many patterns there are. Each state of the DFA carries the mask of sources of the globs
+ * that match if the name ends in that state. If the DFA would get too large, the globs are
+ * split up into several automata. The layout of the buffer is:
+ * <pre>
+ *     int      automatonCount
+ *     automata, each:
+ *         int      stateCount
+ *         int      classCount
+ *         byte[]   classes      the character class of each of the 256 byte values
+ *         int[]    transitions  stateCount * classCount next states
+ *         long[]   sources      mask of the sources matching in each state
+ * </pre>
+ * State 0 is the dead state, which no name leaves once it is entered; state 1 is the start
+ * state.
+ */
+class PatternAutomaton {
+    static final int MAX_STATES = 8192;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte ANY = '*';
+    private static final int DEAD = 0;
+    private static final int START = 1;
+
+    private final ByteBuffer buffer;
+    private final int[] automata;
+
+    /**
+     * Creates an automaton from a buffer, as returned by {@link #getBuffer()}.
+     *
+     * @param buffer A buffer containing encoded automata
+     */
+    PatternAutomaton(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.automata = new int[buffer.getInt(0)];
+
+        int position = 4;
+        for (int i = 0; i < automata.length; i++) {
+            automata[i] = position;
+            int stateCount = buffer.getInt(position);
+            int classCount = buffer.getInt(position + 4);
+            position += 8 + 256 + 4 * stateCount * classCount + 8 * stateCount;
+        }
+    }
+
+    static final PatternAutomaton EMPTY = new Builder().build();
+
+    /**
+     * Converts a pattern rule into globs matching whole names. In a glob, "*" matches any
+     * sequence of characters, all other characters match themselves.
+     *
+     * @param rule A lower-cased rule, without the "@@" prefix if it is an exception
+     * @return The globs, which are empty if the rule cannot match a host name.
+     */
+    static List<String> toGlobs(String rule) {
+        // Options and rules for paths are not supported. Exceptions are allowing rules of
+        // their own, see RuleDatabase, so a prefix left in place is not matched either.
+        if (rule.startsWith("@@") || rule.indexOf('$') >= 0 || rule.indexOf('/') >= 0)
+            return Collections.emptyList();
+
+        String prefix = "*";
+        String pattern = rule;
+        boolean labelStart = false;
+        if (pattern.startsWith("||")) {
+            prefix = "";
+            labelStart = true;
+            pattern = pattern.substring(2);
+        } else if (pattern.startsWith("|")) {
+            prefix = "";
+            pattern = pattern.substring(1);
+        }
+
+        String suffix = "*";
+        if (pattern.endsWith("|")) {
+            suffix = "";
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.endsWith("^")) {
+            suffix = "";
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+
+        // Only characters of host names can be matched; a glob matching everything is not useful.
+        boolean hasLiteral = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*')
+                continue;
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '-' && c != '.' && c != '_')
+                return Collections.emptyList();
+            hasLiteral = true;
+        }
+        if (!hasLiteral)
+            return Collections.emptyList();
+
+        String glob = normalize(prefix + pattern + suffix);
+        if (!labelStart)
+            return Collections.singletonList(glob);
+        return Arrays.asList(glob, normalize("*." + glob));
+    }
+
+    /**
+     * Replaces runs of "*" with a single one.
+     */
+    private static String normalize(String glob) {
+        StringBuilder builder = new StringBuilder(glob.length());
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' || builder.length() == 0 || builder.charAt(builder.length() - 1) != '*')
+                builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return The number of bytes used by the encoded automata
+     */
+    int sizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return A read-only view of the encoded automata
+     */
+    ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return true if there are no patterns.
+     */
+    boolean isEmpty() {
+        return automata.length == 0;
+    }
+
+    /**
+     * Calls the visitor with the sources of each accepting state.
+     *
+     * @param visitor The visitor to call
+     */
+    void forEachRule(DomainTrie.RuleVisitor visitor) {
+        for (int automaton : automata) {
+            int stateCount = buffer.getInt(automaton);
+            int classCount = buffer.getInt(automaton + 4);
+            int sourcesStart = automaton + 8 + 256 + 4 * stateCount * classCount;
+            for (int state = 0; state < stateCount; state++) {
+                long sources = buffer.getLong(sourcesStart + 8 * state);
+                if (sources != 0)
+                    visitor.visit(sources);
+            }
+        }
+    }
+
+    /**
+     * Matches a name against all patterns.
+     *
+     * @param key A name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @return The mask of the sources of all patterns matching the name.
+     */
+    long match(byte[] key) {
+        return match(key, key.length);
+    }
+
+    /**
+     * Matches a name stored at the start of a buffer against all patterns.
+     *
+     * @param key    A buffer starting with a name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param length The length of the name
+     * @return The mask of the sources of all patterns matching the name.
+     */
+    long match(byte[] key, int length) {
+        long sources = 0;
+        for (int automaton : automata)
+            sources |= match(automaton, key, length);
+        return sources;
+    }
+
+    private long match(int automaton, byte[] key, int length) {
+        int stateCount = buffer.getInt(automaton);
+        int classCount = buffer.getInt(automaton + 4);
+        int classesStart = automaton + 8;
+        int transitionsStart = classesStart + 256;
+        int state = START;
+
+        // Walk the labels of the key in reverse, which is the order of the name.
+        int end = length;
+        for (int i = length - 1; i >= -1 && state != DEAD; i--) {
+            if (i == -1 || key[i] == '.') {
+                for (int j = i + 1; j < end && state != DEAD; j++)
+                    state = buffer.getInt(transitionsStart + 4 * (state * classCount + buffer.get(classesStart + (key[j] & 0xFF))));
+                if (i >= 0 && state != DEAD)
+                    state = buffer.getInt(transitionsStart + 4 * (state * classCount + buffer.get(classesStart + '.')));
+                end = i;
+            }
+        }
+
+        return buffer.getLong(transitionsStart + 4 * stateCount * classCount + 8 * state);
+    }
+
+    /**
+     * Collects globs for a {@link PatternAutomaton}.
+     */
+    static class Builder {
+        private final Map<String, Long> globs = new HashMap<>();
+
+        /**
+         * Adds a glob. Adding a glob that was added before adds the sources to it.
+         *
+         * @param glob    A glob, as returned by {@link #toGlobs(String)}
+         * @param sources A non-zero mask of the sources of the glob
+         */
+        void add(String glob, long sources) {
+            Long existing = globs.get(glob);
+            globs.put(glob, existing == null ? sources : existing | sources);
+        }
+
+        /**
+         * @return Automata matching the globs added so far.
+         */
+        PatternAutomaton build() {
+            List<byte[]> patterns = new ArrayList<>(globs.size());
+            List<Long> sources = new ArrayList<>(globs.size());
+            for (Map.Entry<String, Long> glob : globs.entrySet()) {
+                patterns.add(glob.getKey().getBytes(UTF_8));
+                sources.add(glob.getValue());
+            }
+
+            List<byte[]> automata = new ArrayList<>();
+            if (!patterns.isEmpty())
+                compileAll(patterns, sources, automata);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeInt(out, automata.size());
+            for (byte[] automaton : automata)
+                out.write(automaton, 0, automaton.length);
+            return new PatternAutomaton(ByteBuffer.wrap(out.toByteArray()));
+        }
+
+        /**
+         * Compiles patterns into one automaton, or into several if a single one would have too
+         * many states.
+         */
+        private static void compileAll(List<byte[]> patterns, List<Long> sources, List<byte[]> automata) {
+            byte[] automaton = new Compiler(patterns, sources).compile();
+            if (automaton != null) {
+                automata.add(automaton);
+                return;
+            }
+            // A single glob of at most 255 characters does not get near the limit.
+            if (patterns.size() == 1)
+                return;
+
+            int half = patterns.size() / 2;
+            compileAll(patterns.subList(0, half), sources.subList(0, half), automata);
+            compileAll(patterns.subList(half, patterns.size()), sources.subList(half, sources.size()), automata);
+        }
+    }
+
+    /**
+     * Compiles globs into a DFA by subset construction.
+     * <p>
+     * The NFA of a glob has a state for each position in the glob. A position holding a
+     * literal moves to the next position on that character, a position holding "*" stays on
+     * any character and can also be skipped. The "*" position at the start of a glob, and the
+     * position after it, are part of every set; such positions are kept out of the sets, and
+     * their transitions are computed once per character class. Otherwise, every set would
+     * contain a state for each pattern starting with "*".
+     */
+    private static class Compiler {
+        private final List<byte[]> patterns;
+        private final List<Long> sources;
+        /* The first NFA state of each pattern; the last one is the accepting state */
+        private final int[] firstState;
+        private final int[] stateToPattern;
+        private final byte[] classes = new byte[256];
+        private final byte[] classBytes;
+        /* NFA states in every set, and their successors for each class */
+        private final boolean[] isAlways;
+        private int[] always = new int[0];
+        private final int[][] alwaysNext;
+
+        private final Map<StateSet, Integer> dfaStates = new HashMap<>();
+        private final List<int[]> dfaSets = new ArrayList<>();
+        private final boolean[] marks;
+
+        Compiler(List<byte[]> patterns, List<Long> sources) {
+            this.patterns = patterns;
+            this.sources = sources;
+
+            firstState = new int[patterns.size()];
+            int stateCount = 0;
+            for (int p = 0; p < patterns.size(); p++) {
+                firstState[p] = stateCount;
+                stateCount += patterns.get(p).length + 1;
+            }
+            stateToPattern = new int[stateCount];
+            for (int p = 0; p < patterns.size(); p++)
+                Arrays.fill(stateToPattern, firstState[p], firstState[p] + patterns.get(p).length + 1, p);
+            marks = new boolean[stateCount];
+            isAlways = new boolean[stateCount];
+
+            // Class 0 holds all characters that do not appear in any pattern.
+            int classCount = 1;
+            for (byte[] pattern : patterns) {
+                for (byte b : pattern) {
+                    if (b != ANY && classes[b & 0xFF] == 0)
+                        classes[b & 0xFF] = (byte) classCount++;
+                }
+            }
+            classBytes = new byte[classCount];
+            classBytes[0] = ANY;
+            for (int b = 0; b < 256; b++) {
+                if (classes[b] != 0)
+                    classBytes[classes[b]] = (byte) b;
+            }
+
+            List<Integer> alwaysList = new ArrayList<>();
+            for (int p = 0; p < patterns.size(); p++) {
+                byte[] pattern = patterns.get(p);
+                if (pattern.length > 0 && pattern[0] == ANY)
+                    alwaysList.add(firstState[p]);
+            }
+            always = closure(toSortedArray(alwaysList));
+            for (int state : always)
+                isAlways[state] = true;
+            alwaysNext = new int[classCount][];
+            for (int c = 0; c < classCount; c++)
+                alwaysNext[c] = step(always, c, false);
+        }
+
+        /**
+         * @return The encoded DFA, or null if it has more than {@link #MAX_STATES} states.
+         */
+        byte[] compile() {
+            dfaSets.add(null);
+            List<Integer> start = new ArrayList<>();
+            for (int p = 0; p < patterns.size(); p++) {
+                if (patterns.get(p).length == 0 || patterns.get(p)[0] != ANY)
+                    start.add(firstState[p]);
+            }
+            addState(closure(toSortedArray(start)));
+
+            int classCount = classBytes.length;
+            List<int[]> transitions = new ArrayList<>();
+            for (int state = 0; state < dfaSets.size(); state++) {
+                int[] next = new int[classCount];
+                if (state != DEAD) {
+                    for (int c = 0; c < classCount; c++) {
+                        next[c] = addState(step(dfaSets.get(state), c, true));
+                        if (next[c] < 0)
+                            return null;
+                    }
+                }
+                transitions.add(next);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeInt(out, dfaSets.size());
+            writeInt(out, classCount);
+            out.write(classes, 0, classes.length);
+            for (int[] next : transitions) {
+                for (int state : next)
+                    writeInt(out, state);
+            }
+            for (int state = 0; state < dfaSets.size(); state++) {
+                long stateSources = state == DEAD ? 0 : getSources(dfaSets.get(state));
+                writeInt(out, (int) (stateSources >>> 32));
+                writeInt(out, (int) stateSources);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * @return The DFA state for a set of NFA states, or -1 if there are too many states.
+         */
+        private int addState(int[] set) {
+            // Without states that are always present, no name can match from an empty set.
+            if (set.length == 0 && always.length == 0)
+                return DEAD;
+
+            StateSet key = new StateSet(set);
+            Integer state = dfaStates.get(key);
+            if (state != null)
+                return state;
+            if (dfaSets.size() >= MAX_STATES)
+                return -1;
+            dfaStates.put(key, dfaSets.size());
+            dfaSets.add(set);
+            return dfaSets.size() - 1;
+        }
+
+        /**
+         * Computes the NFA states following a set on a character class.
+         *
+         * @param set          A set of NFA states, without the ones that are always present
+         * @param characterClass The class
+         * @param withAlways   Whether to add the successors of the states that are always present
+         * @return The following set, without the states that are always present.
+         */
+        private int[] step(int[] set, int characterClass, boolean withAlways) {
+            byte b = classBytes[characterClass];
+            List<Integer> next = new ArrayList<>();
+            for (int state : set)
+                addSuccessors(state, b, characterClass, next);
+            if (withAlways) {
+                for (int state : alwaysNext[characterClass]) {
+                    if (!marks[state]) {
+                        marks[state] = true;
+                        next.add(state);
+                    }
+                }
+            }
+            for (int state : next)
+                marks[state] = false;
+            return closure(toSortedArray(next));
+        }
+
+        private void addSuccessors(int state, byte b, int characterClass, List<Integer> next) {
+            int p = stateToPattern[state];
+            int position = state - firstState[p];
+            byte[] pattern = patterns.get(p);
+            if (position == pattern.length)
+                return;
+
+            int successor;
+            if (pattern[position] == ANY)
+                successor = state;
+            else if (characterClass != 0 && pattern[position] == b)
+                successor = state + 1;
+            else
+                return;
+
+            if (!marks[successor]) {
+                marks[successor] = true;
+                next.add(successor);
+            }
+        }
+
+        /**
+         * Adds the states reached by skipping "*" positions, leaving out the states that are
+         * always present.
+         */
+        private int[] closure(int[] set) {
+            List<Integer> result = new ArrayList<>();
+            for (int state : set) {
+                // The closure of a state that is always present is always present.
+                while (!isAlways[state]) {
+                    if (!marks[state]) {
+                        marks[state] = true;
+                        result.add(state);
+                    }
+                    int p = stateToPattern[state];
+                    int position = state - firstState[p];
+                    if (position == patterns.get(p).length || patterns.get(p)[position] != ANY)
+                        break;
+                    state++;
+                }
+            }
+            for (int state : result)
+                marks[state] = false;
+            return toSortedArray(result);
+        }
+
+        private long getSources(int[] set) {
+            long result = 0;
+            for (int state : set) {
+                int p = stateToPattern[state];
+                if (state - firstState[p] == patterns.get(p).length)
+                    result |= sources.get(p);
+            }
+            return result;
+        }
+
+        private static int[] toSortedArray(List<Integer> list) {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+            Arrays.sort(array);
+            return array;
+        }
+    }
+
+    /**
+     * A set of NFA states, as key of a map.
+     */
+    private static class StateSet {
+        private final int[] states;
+        private final int hashCode;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hashCode = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof StateSet && Arrays.equals(states, ((StateSet) other).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
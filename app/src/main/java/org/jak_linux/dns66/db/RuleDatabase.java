@@ -8,31 +8,138 @@
 package org.jak_linux.dns66.db;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.jak_linux.dns66.Configuration;
 import org.jak_linux.dns66.FileHelper;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Represents hosts that are blocked.
  * <p>
- * This is a very basic set of hosts.
+ * Hosts are collected as keys in a {@link HostKeyMap} while loading, and then frozen into a
+ * compact {@link FrontCodedHostSet} that is used for lookups. A {@link BloomFilter} in front
+ * of the set rejects most names that are not blocked without searching the set.
+ * <p>
+ * The frozen structures form a {@link RuleIndex}, which is immutable. Loading builds a new
+ * index while lookups continue to use the old one, and then replaces it with a single
+ * volatile write, so the database can be reloaded while it is in use.
+ * <p>
+ * Hosts files, plain lists of domains, dnsmasq configurations and adblock filter lists are
+ * read by a {@link HostsParser}, which detects the format of each file. Files compressed with
+ * gzip are decompressed while they are read. Large uncompressed files are memory-mapped and
+ * parsed in chunks by several threads. The hosts parsed from each file are stored in an
+ * {@link ItemShard}, so only files that changed need to be parsed again.
+ * <p>
+ * A host of the form "*.example.com" or "||example.com^" is a wildcard rule, matching
+ * example.com and every name below it. Wildcard rules are stored in a {@link DomainTrie}. Any
+ * other host containing "*", "|" or "^" is an adblock-style pattern rule, and is compiled into
+ * a {@link PatternAutomaton}. A host listed exactly wins over any wildcard, the most specific
+ * wildcard wins over less specific ones, and patterns are only used for names that no other
+ * rule matches. Adblock exception rules like "@@||example.com^" or "@@example.com" are rules
+ * of the same kinds that allow the names they match.
+ * <p>
+ * Each configured item is a source of rules, and every rule remembers the sources that listed
+ * it. The exceptions of an item are a source of their own right above it, so they win over
+ * the rules of the item, but not over later items. Ignored items with small files are loaded as well, so that changing their state only
+ * changes which sources are active, without loading anything. Ignored items with files larger
+ * than {@link #MAX_IGNORED_FILE_SIZE} are not loaded, as they would cost memory and loading
+ * time while they are not used; enabling one needs a reload, which reads the other items
+ * from their shards. The first {@link #MAX_SOURCES} items have sources of their own; any
+ * further items share two sources, one for blocking and one for allowing and exceptions, so
+ * changing their state needs a reload.
+ * <p>
+ * Until the files of the items are downloaded, the rules of the default items are mapped from
+ * an index built into the app, if the items were not changed.
  */
 public class RuleDatabase {
 
     private static final String TAG = "RuleDatabase";
-    private final Set<String> blockedHosts = new HashSet<>();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String WILDCARD_PREFIX = "*.";
+    private static final String DOMAIN_PREFIX = "||";
+    private static final String DOMAIN_SUFFIX = "^";
+    private static final String EXCEPTION_PREFIX = "@@";
+    private static final String INDEX_FILE_NAME = "rules.idx";
+    /* The asset containing the rules of the default items, see RuleIndexCompiler */
+    static final String PREBUILT_INDEX_NAME = "default_rules.idx";
+    private static final String SHARD_DIRECTORY_NAME = "shards";
+    private static final int MAX_LOADER_THREADS = 4;
+    /* Items with sources of their own, each has one for its rules and one for its exceptions */
+    static final int MAX_SOURCES = 31;
+    /* Ignored items with larger files are only loaded once they are enabled */
+    static final long MAX_IGNORED_FILE_SIZE = 1024 * 1024;
+    private static final byte[] GZIP_MAGIC = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] XZ_MAGIC = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final int DECOMPRESSION_BUFFER_SIZE = 64 * 1024;
+    /* Files are only split into chunks of at least this size */
+    private static final int MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+    /* Uncompressed files of at least this size are split into chunks, if there are threads */
+    public static final long MIN_SPLIT_FILE_SIZE = 2L * MIN_CHUNK_SIZE;
+    private static final int FORMAT_DETECTION_SIZE = 64 * 1024;
+    /* Minimum time between commits when loading progressively */
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+    private static final long SHARED_DENY_SOURCE = 1L << (2 * MAX_SOURCES);
+    private static final long SHARED_ALLOW_SOURCE = 1L << (2 * MAX_SOURCES + 1);
+    private static final int MAX_LABEL_LENGTH = 63;
+    /* Buffers for building keys from names in DNS wire format, see isBlocked(byte[], int, int) */
+    private static final ThreadLocal<byte[]> keyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+        }
+    };
+    /* Rules collected while loading, before they are committed, with the sources listing them */
+    private final HostKeyMap pendingHosts = new HostKeyMap();
+    private final Map<String, Long> pendingWildcards = new HashMap<>();
+    private final Map<String, Long> pendingPatterns = new HashMap<>();
+    /* The states of the items loaded so far, one per source */
+    private final List<Integer> pendingStates = new ArrayList<>();
+    /* Statistics about the items loaded so far, one per source */
+    private final List<RuleStats.Item> pendingItemStats = new ArrayList<>();
+    /* The rules used for lookups. Replaced as a whole, so lookups never see a partial update */
+    private volatile RuleIndex index = RuleIndex.EMPTY;
+    /* Incremented whenever the index is replaced, invalidating the cached verdicts */
+    private volatile int generation = 0;
+    /* Verdicts for recently looked up names */
+    private final VerdictCache verdicts = new VerdictCache();
+    /* Statistics about the committed rules, or null if they were not loaded by this instance */
+    private volatile RuleStats stats = null;
+    /* The key of the sources the current index was loaded from, or null */
+    private byte[] indexKey = null;
 
     /**
      * Parse a single line in a hosts file
@@ -42,51 +149,101 @@ public class RuleDatabase {
      */
     @Nullable
     static String parseLine(String line) {
-        int endOfLine = line.indexOf('#');
-
-        if (endOfLine == -1)
-            endOfLine = line.length();
-
-        // Trim spaces
-        while (endOfLine > 0 && Character.isWhitespace(line.charAt(endOfLine - 1)))
-            endOfLine--;
-
-        // The line is empty.
-        if (endOfLine <= 0)
-            return null;
-
-        // Find beginning of host field
-        int startOfHost = 0;
-
-        if (line.regionMatches(0, "127.0.0.1", 0, 9) && (endOfLine <= 9 || Character.isWhitespace(line.charAt(9))))
-            startOfHost += 10;
-        else if (line.regionMatches(0, "0.0.0.0", 0, 7) && (endOfLine <= 7 || Character.isWhitespace(line.charAt(7))))
-            startOfHost += 8;
+        final String[] result = new String[1];
+        byte[] bytes = line.getBytes(UTF_8);
+        new HostsParser(new HostsParser.Sink() {
+            @Override
+            public void host(byte[] buffer, int start, int end, boolean subdomains) {
+                result[0] = HostsParser.decode(buffer, start, end);
+            }
+        }, HostsParser.FORMAT_HOSTS).parseLine(bytes, 0, bytes.length);
+        return result[0];
+    }
 
-        // Trim of space at the beginning of the host.
-        while (startOfHost < endOfLine && Character.isWhitespace(line.charAt(startOfHost)))
-            startOfHost++;
+    /**
+     * Checks if a host is blocked.
+     *
+     * @param host A hostname
+     * @return true if the host is blocked, false otherwise.
+     */
+    public boolean isBlocked(String host) {
+        byte[] key = FrontCodedHostSet.reverseLabels(host);
+        return isBlocked(key, key.length);
+    }
 
-        // Reject lines containing a space
-        for (int i = startOfHost; i < endOfLine; i++) {
-            if (Character.isWhitespace(line.charAt(i)))
-                return null;
+    /**
+     * Checks if a name in DNS wire format is blocked, such as the name of a question in a DNS
+     * message. The labels are read straight from the buffer and lower-cased while they are
+     * copied into a reused buffer, so this does not allocate.
+     *
+     * @param data   A buffer containing the name
+     * @param offset The offset of the length of the first label
+     * @param end    The offset after the valid data in the buffer
+     * @return true if the name is blocked, false if it is not blocked, or not a valid
+     * uncompressed name.
+     */
+    public boolean isBlocked(byte[] data, int offset, int end) {
+        // Find the length of the key, and check the name
+        int keyLength = -1;
+        int position = offset;
+        while (true) {
+            if (position >= end)
+                return false;
+            int labelLength = data[position] & 0xFF;
+            if (labelLength == 0)
+                break;
+            // Compression pointers and extended labels are not valid here
+            if (labelLength > MAX_LABEL_LENGTH || position + 1 + labelLength > end)
+                return false;
+            keyLength += labelLength + 1;
+            position += labelLength + 1;
         }
+        if (keyLength < 0)
+            keyLength = 0;
+        if (keyLength > FrontCodedHostSet.MAX_NAME_LENGTH)
+            return false;
 
-        if (startOfHost >= endOfLine)
-            return null;
+        // Copy the labels, starting with the last one at the front of the key
+        byte[] key = keyBuffer.get();
+        int keyEnd = keyLength;
+        position = offset;
+        for (int labelLength = data[position] & 0xFF; labelLength != 0; labelLength = data[position] & 0xFF) {
+            int keyStart = keyEnd - labelLength;
+            for (int i = 0; i < labelLength; i++) {
+                byte b = data[position + 1 + i];
+                if (b == '.')
+                    return false;
+                key[keyStart + i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+            }
+            if (keyStart > 0)
+                key[keyStart - 1] = '.';
+            keyEnd = keyStart - 1;
+            position += labelLength + 1;
+        }
 
-        return line.substring(startOfHost, endOfLine).toLowerCase(Locale.ENGLISH);
+        return isBlocked(key, keyLength);
     }
 
     /**
-     * Checks if a host is blocked.
+     * Checks if a name stored at the start of a buffer is blocked, answering repeated lookups
+     * of the same name from the verdict cache.
      *
-     * @param host A hostname
-     * @return true if the host is blocked, false otherwise.
+     * @param key    A buffer starting with a name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param length The length of the name
+     * @return true if the name is blocked, false otherwise.
      */
-    public boolean isBlocked(String host) {
-        return blockedHosts.contains(host);
+    private boolean isBlocked(byte[] key, int length) {
+        long hash = BloomFilter.hash(key, length);
+        // Read the generation before the index: the index is replaced before the generation
+        // changes, so a verdict is never stored for a newer generation than its index.
+        int generation = this.generation;
+        int verdict = verdicts.get(hash, generation);
+        if (verdict != VerdictCache.UNKNOWN)
+            return verdict == VerdictCache.DENIED;
+
+        boolean blocked = index.isBlocked(key, length, hash);
+        verdicts.put(hash, generation, blocked);
+        return blocked;
     }
 
     /**
@@ -95,7 +252,26 @@ public class RuleDatabase {
      * @return true if any hosts are blocked, false otherwise.
      */
     boolean isEmpty() {
-        return blockedHosts.isEmpty();
+        return index.isEmpty();
+    }
+
+    /**
+     * Gets statistics about the rules loaded by the last commit. They are also stored in
+     * {@link RuleStats#getFile(Context)} by {@link #initialize(Context)}.
+     *
+     * @return The statistics, or null if no rules were loaded.
+     */
+    RuleStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Gets the rules used for lookups.
+     *
+     * @return The current index.
+     */
+    RuleIndex getIndex() {
+        return index;
     }
 
     /**
@@ -105,11 +281,51 @@ public class RuleDatabase {
      * @throws InterruptedException Thrown if the thread was interrupted, so we don't waste time
      *                              reading more host files than needed.
      */
-    public void initialize(Context context) throws InterruptedException {
+    public synchronized void initialize(Context context) throws InterruptedException {
         Configuration config = FileHelper.loadCurrentSettings(context);
+        List<Integer> states = getStates(config.hosts.items);
+
+        File indexFile = new File(context.getCacheDir(), INDEX_FILE_NAME);
+        byte[] newIndexKey = computeIndexKey(context, config.hosts.items);
+        if (Arrays.equals(newIndexKey, indexKey)) {
+            // At most the states of the items changed, the rules are the same.
+            setIndex(index.withSources(getActiveSources(states), getDenyingSources(states)));
+            Log.i(TAG, "Updated the states of " + states.size() + " sources");
+            return;
+        }
 
-        blockedHosts.clear();
-        Runtime.getRuntime().gc();
+        indexKey = null;
+        clearPending();
+
+        try {
+            RuleIndex mappedIndex = RuleIndex.map(indexFile, newIndexKey);
+            if (mappedIndex != null) {
+                setIndex(mappedIndex.withSources(getActiveSources(states), getDenyingSources(states)));
+                indexKey = newIndexKey;
+                stats = null;
+                Log.i(TAG, "Mapped " + mappedIndex.hosts.size() + " hosts from " + indexFile);
+                logStats();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "initialize: Cannot map rule index, reloading", e);
+        }
+
+        // Loading now would drop the rules of the missing files, wait for them to be downloaded.
+        if (hasMissingFiles(context, config.hosts.items)) {
+            try {
+                RuleIndex prebuiltIndex = mapPrebuiltIndex(context, computeIndexKey(null, config.hosts.items));
+                if (prebuiltIndex != null) {
+                    setIndex(prebuiltIndex.withSources(getActiveSources(states), getDenyingSources(states)));
+                    stats = null;
+                    Log.i(TAG, "Mapped " + prebuiltIndex.hosts.size() + " hosts of the default items from " + PREBUILT_INDEX_NAME);
+                    logStats();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "initialize: Cannot map prebuilt rule index, loading", e);
+            }
+        }
 
         Log.i(TAG, "Loading block list");
 
@@ -117,89 +333,957 @@ public class RuleDatabase {
             Log.d(TAG, "loadBlockedHosts: Not loading, disabled.");
         }
 
-        for (Configuration.Item item : config.hosts.items) {
-            if (Thread.interrupted())
-                throw new InterruptedException("Interrupted");
-            loadItem(context, item);
+        // Without any rules yet, make the items loaded so far available while loading the rest.
+        long startTime = System.currentTimeMillis();
+        boolean complete = loadItems(context, config.hosts.items, index == RuleIndex.EMPTY);
+
+        commit();
+        clearPending();
+        writeStats(context, System.currentTimeMillis() - startTime);
+        logStats();
+
+        deleteStaleShards(context, config.hosts.items);
+
+        // Only store complete results, so a failed file is retried on the next start.
+        if (!complete)
+            return;
+        indexKey = newIndexKey;
+        try {
+            index.write(indexFile, newIndexKey);
+        } catch (IOException e) {
+            Log.w(TAG, "initialize: Cannot write rule index", e);
+        }
+    }
+
+    /**
+     * Completes the statistics of the rules that were just loaded, and stores them.
+     *
+     * @param context    A context used for finding the statistics file
+     * @param loadTimeMs The time it took to load the rules
+     */
+    private void writeStats(Context context, long loadTimeMs) {
+        RuleStats stats = this.stats;
+        Runtime runtime = Runtime.getRuntime();
+        stats.loadTimeMs = loadTimeMs;
+        stats.heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+        stats.heapMaxBytes = runtime.maxMemory();
+        for (RuleStats.Item item : stats.items) {
+            Log.i(TAG, "Loaded " + item.rules + " rules, " + item.duplicates + " of them duplicates, in "
+                    + item.loadTimeMs + " ms from " + item.location);
+        }
+        Log.i(TAG, "Loaded rules in " + loadTimeMs + " ms, heap uses " + stats.heapUsedBytes
+                + " of " + stats.heapMaxBytes + " bytes");
+        try {
+            stats.write(RuleStats.getFile(context));
+        } catch (IOException e) {
+            Log.w(TAG, "writeStats: Cannot write rule statistics", e);
         }
     }
 
+    private void logStats() {
+        RuleIndex index = this.index;
+        Log.i(TAG, "Database has " + index.hosts.size() + " hosts in " + index.hosts.sizeInBytes() + " bytes, "
+                + "filter uses " + index.filter.sizeInBytes() + " bytes with a false positive rate of "
+                + String.format(Locale.ENGLISH, "%.4f", index.filter.getFalsePositiveRate()) + ", "
+                + "wildcards use " + index.wildcards.sizeInBytes() + " bytes, "
+                + "patterns use " + index.patterns.sizeInBytes() + " bytes, "
+                + Long.bitCount(index.activeSources) + " sources are active");
+    }
+
+    /**
+     * Gets the states of items, one per source.
+     */
+    private static List<Integer> getStates(List<Configuration.Item> items) {
+        List<Integer> states = new ArrayList<>(items.size());
+        for (Configuration.Item item : items)
+            states.add(item.state);
+        return states;
+    }
+
     /**
-     * Loads an item. An item can be backed by a file or contain a value in the location field.
+     * Computes the mask of the sources that are not ignored.
      *
-     * @param context Context to open files
-     * @param item    The item to load.
+     * @param states The states of the sources
+     * @return The mask of active sources.
+     */
+    private static long getActiveSources(List<Integer> states) {
+        long sources = SHARED_DENY_SOURCE | SHARED_ALLOW_SOURCE;
+        for (int i = 0; i < states.size() && i < MAX_SOURCES; i++) {
+            if (states.get(i) != Configuration.Item.STATE_IGNORE)
+                sources |= getSource(i) | getExceptionSource(i);
+        }
+        return sources;
+    }
+
+    /**
+     * Computes the mask of the sources that block the names they list.
+     *
+     * @param states The states of the sources
+     * @return The mask of denying sources.
+     */
+    private static long getDenyingSources(List<Integer> states) {
+        long sources = SHARED_DENY_SOURCE;
+        for (int i = 0; i < states.size() && i < MAX_SOURCES; i++) {
+            if (states.get(i) == Configuration.Item.STATE_DENY)
+                sources |= getSource(i);
+        }
+        return sources;
+    }
+
+    /**
+     * @param index The index of an item, less than {@link #MAX_SOURCES}
+     * @return The bit of the source of the rules of the item.
+     */
+    static long getSource(int index) {
+        return 1L << (2 * index);
+    }
+
+    /**
+     * @param index The index of an item, less than {@link #MAX_SOURCES}
+     * @return The bit of the source of the exceptions of the item, which never blocks.
+     */
+    static long getExceptionSource(int index) {
+        return 1L << (2 * index + 1);
+    }
+
+    /**
+     * Computes a key identifying the sources of the database: The configured items, and
+     * the size and modification time of the files backing them. The states of the items are
+     * only part of the key for items without a source of their own, and for ignored items
+     * that are not loaded.
+     *
+     * @param context A context used for finding files, or null to leave out the files, as
+     *                for the prebuilt index, see {@link RuleIndexCompiler}
+     * @param items   The items to load
+     * @return A digest over the sources.
+     */
+    static byte[] computeIndexKey(@Nullable Context context, List<Configuration.Item> items) {
+        StringBuilder sources = new StringBuilder();
+        sources.append(RuleIndex.VERSION).append('\n');
+        for (int i = 0; i < items.size(); i++) {
+            Configuration.Item item = items.get(i);
+            File file = context == null ? null : FileHelper.getItemFile(context, item);
+            if (i >= MAX_SOURCES || isSkipped(item, file))
+                sources.append(item.state).append(' ');
+            sources.append(item.location);
+            if (file != null)
+                sources.append(' ').append(file.length()).append(' ').append(file.lastModified());
+            sources.append('\n');
+        }
+
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(sources.toString().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether an item is not loaded because it is ignored and its file is large.
+     *
+     * @param item The item
+     * @param file The file of the item, or null if it has none
+     * @return true if the item is skipped.
+     */
+    private static boolean isSkipped(Configuration.Item item, @Nullable File file) {
+        return item.state == Configuration.Item.STATE_IGNORE && file != null && file.length() > MAX_IGNORED_FILE_SIZE;
+    }
+
+    /**
+     * Checks whether the file of any item that is not ignored has not been downloaded yet.
+     *
+     * @param context A context used for finding files
+     * @param items   The configured items
+     * @return true if a file is missing.
+     */
+    private static boolean hasMissingFiles(Context context, List<Configuration.Item> items) {
+        for (Configuration.Item item : items) {
+            File file = FileHelper.getItemFile(context, item);
+            if (file != null && item.state != Configuration.Item.STATE_IGNORE && !file.exists())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps the index of the default items from the assets. The asset is stored uncompressed,
+     * so it is mapped straight from the APK.
+     *
+     * @param context A context used for opening the assets
+     * @param key     The key of the configured items, without their files
+     * @return The index, with no sources active, or null if there is no such asset or it was
+     * built for other items.
+     * @throws IOException If the asset could not be read or is corrupted
+     */
+    @Nullable
+    private static RuleIndex mapPrebuiltIndex(Context context, byte[] key) throws IOException {
+        AssetManager assets = context.getAssets();
+        if (assets == null)
+            return null;
+
+        AssetFileDescriptor descriptor;
+        try {
+            descriptor = assets.openFd(PREBUILT_INDEX_NAME);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try (FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor())) {
+            return RuleIndex.map(stream.getChannel(), descriptor.getStartOffset(), descriptor.getLength(), key, PREBUILT_INDEX_NAME);
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * Freezes the rules loaded so far into a new index, and publishes it for lookups.
+     */
+    void commit() {
+        FrontCodedHostSet hosts = FrontCodedHostSet.build(pendingHosts);
+        DomainTrie wildcards = DomainTrie.EMPTY;
+
+        if (!pendingWildcards.isEmpty()) {
+            DomainTrie.Builder builder = new DomainTrie.Builder();
+            for (Map.Entry<String, Long> wildcard : pendingWildcards.entrySet())
+                builder.add(wildcard.getKey(), wildcard.getValue());
+            wildcards = builder.build();
+        }
+
+        PatternAutomaton.Builder patterns = new PatternAutomaton.Builder();
+        for (Map.Entry<String, Long> pattern : pendingPatterns.entrySet())
+            patterns.add(pattern.getKey(), pattern.getValue());
+
+        RuleIndex index = new RuleIndex(hosts, BloomFilter.build(hosts), wildcards, patterns.build(),
+                getActiveSources(pendingStates), getDenyingSources(pendingStates));
+
+        RuleStats stats = new RuleStats();
+        stats.hosts = pendingHosts.size();
+        stats.wildcards = pendingWildcards.size();
+        stats.patterns = pendingPatterns.size();
+        stats.hostsBytes = index.hosts.sizeInBytes();
+        stats.filterBytes = index.filter.sizeInBytes();
+        stats.wildcardsBytes = index.wildcards.sizeInBytes();
+        stats.patternsBytes = index.patterns.sizeInBytes();
+        stats.cacheBytes = VerdictCache.SIZE_IN_BYTES;
+        stats.items.addAll(pendingItemStats);
+
+        setIndex(index);
+        this.stats = stats;
+    }
+
+    /**
+     * Publishes a new index for lookups, and invalidates the verdicts of the old one.
+     */
+    private void setIndex(RuleIndex index) {
+        this.index = index;
+        generation++;
+    }
+
+    /**
+     * Discards the rules collected for the next commit.
+     */
+    void clearPending() {
+        pendingHosts.clear();
+        pendingWildcards.clear();
+        pendingPatterns.clear();
+        pendingStates.clear();
+        pendingItemStats.clear();
+    }
+
+    /**
+     * Loads the items. The items are parsed concurrently on a bounded pool of worker threads,
+     * and their hosts are then added in the order of the items, so that later items override
+     * earlier ones, as if they were loaded one after another.
+     * <p>
+     * When loading progressively, the items added so far are committed from time to time, so
+     * lookups can use them before all items are loaded. Until then, the rules of later items
+     * are missing; this is only useful if there are no rules at all otherwise.
+     *
+     * @param context     Context to open files
+     * @param items       The items to load
+     * @param progressive Whether to commit the items added so far while loading
+     * @return false if the file backing any item could not be read, true otherwise.
      * @throws InterruptedException If the thread was interrupted.
      */
-    private void loadItem(Context context, Configuration.Item item) throws InterruptedException {
-        File file = FileHelper.getItemFile(context, item);
+    boolean loadItems(final Context context, List<Configuration.Item> items, boolean progressive) throws InterruptedException {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADER_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean success = false;
+        try {
+            List<List<Future<ParsedItem>>> parsedItems = new ArrayList<>(items.size());
+            for (Configuration.Item item : items)
+                parsedItems.add(submitItem(executor, threads, context, item));
+
+            boolean complete = true;
+            long lastCommit = System.currentTimeMillis();
+            for (int i = 0; i < items.size(); i++) {
+                if (Thread.interrupted())
+                    throw new InterruptedException("Interrupted");
+                // Merge the chunks of the item in order
+                ParsedItem parsedItem = null;
+                for (Future<ParsedItem> chunk : parsedItems.get(i)) {
+                    ParsedItem parsedChunk = chunk.get();
+                    if (parsedItem == null) {
+                        parsedItem = parsedChunk;
+                    } else {
+                        parsedItem.hosts.addAll(parsedChunk.hosts, 1, 0);
+                        parsedItem.rules.addAll(parsedChunk.rules);
+                        parsedItem.complete &= parsedChunk.complete;
+                        parsedItem.loadTimeNanos += parsedChunk.loadTimeNanos;
+                        if (parsedChunk.shard != null)
+                            parsedItem.shard = parsedChunk.shard;
+                    }
+                }
+                addHosts(items.get(i), parsedItem);
+                complete &= parsedItem.complete;
+                if (parsedItem.complete && parsedItem.shard != null)
+                    executor.submit(newShardWriter(parsedItem));
+
+                if (progressive && i + 1 < items.size() && System.currentTimeMillis() - lastCommit >= PROGRESS_INTERVAL_MS) {
+                    commit();
+                    lastCommit = System.currentTimeMillis();
+                    Log.i(TAG, "loadItems: Committed " + (i + 1) + " of " + items.size() + " items");
+                }
+            }
+            success = true;
+            return complete;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException)
+                throw (InterruptedException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Shards are still written in the background if we succeeded. Interrupts the
+            // workers that are still running if we failed.
+            if (success)
+                executor.shutdown();
+            else
+                executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a task storing the hosts of a parsed item in its shard.
+     */
+    private static Runnable newShardWriter(final ParsedItem parsedItem) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    parsedItem.shard.write(parsedItem.shardFile, parsedItem.hosts, parsedItem.rules);
+                } catch (IOException e) {
+                    Log.w(TAG, "run: Cannot write shard " + parsedItem.shardFile, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Submits the parsing of an item. Ignored items with large files are skipped, and have no
+     * hosts. If the shard of the item has the size of its file, it is read instead if the file
+     * did not change. A large file is memory-mapped and split into chunks at line boundaries,
+     * which are parsed separately, so that a single huge list can use all workers. Anything
+     * else is parsed as a whole.
+     *
+     * @param executor The executor to submit to
+     * @param threads  The number of threads of the executor
+     * @param context  Context to open files
+     * @param item     The item to parse
+     * @return The results of the chunks of the item, in order.
+     */
+    private static List<Future<ParsedItem>> submitItem(ExecutorService executor, int threads, final Context context, final Configuration.Item item) {
+        final File file = FileHelper.getItemFile(context, item);
+        final File shardFile = getShardFile(context, file);
+
+        List<Future<ParsedItem>> results = new ArrayList<>();
+        if (isSkipped(item, file)) {
+            Log.d(TAG, "submitItem: Not loading ignored item " + item.location);
+            results.add(executor.submit(new Callable<ParsedItem>() {
+                @Override
+                public ParsedItem call() {
+                    return new ParsedItem();
+                }
+            }));
+            return results;
+        }
+        if (shardFile != null) {
+            try {
+                final ItemShard shard = ItemShard.read(shardFile, null, null);
+                if (shard != null && shard.fileSize == file.length()) {
+                    results.add(executor.submit(new Callable<ParsedItem>() {
+                        @Override
+                        public ParsedItem call() throws InterruptedException {
+                            long startTime = System.nanoTime();
+                            ParsedItem parsedItem = readShard(file, shardFile, shard);
+                            if (parsedItem == null)
+                                parsedItem = parseItem(context, item);
+                            parsedItem.loadTimeNanos = System.nanoTime() - startTime;
+                            return parsedItem;
+                        }
+                    }));
+                    return results;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "submitItem: Cannot read shard " + shardFile + ", parsing " + file, e);
+            }
+        }
+
+        int chunks = getChunkCount(file, threads);
+        if (chunks > 1) {
+            try {
+                final long fileSize = file.length();
+                final long lastModified = file.lastModified();
+                final MappedByteBuffer data;
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                }
+
+                byte[] head = new byte[Math.min(data.remaining(), FORMAT_DETECTION_SIZE)];
+                data.duplicate().get(head);
+                final int format = HostsParser.detectFormat(head, 0, head.length);
+                for (final ByteBuffer chunk : splitLines(data, chunks)) {
+                    results.add(executor.submit(new Callable<ParsedItem>() {
+                        @Override
+                        public ParsedItem call() throws InterruptedException {
+                            long startTime = System.nanoTime();
+                            ParsedItem parsedChunk = new ParsedItem();
+                            parsedChunk.complete = parseStream(item, new ByteBufferInputStream(chunk), format, parsedChunk);
+                            parsedChunk.loadTimeNanos = System.nanoTime() - startTime;
+                            return parsedChunk;
+                        }
+                    }));
+                }
+                if (shardFile != null) {
+                    results.add(executor.submit(new Callable<ParsedItem>() {
+                        @Override
+                        public ParsedItem call() {
+                            ParsedItem digestOnly = new ParsedItem();
+                            digestOnly.shard = new ItemShard(fileSize, lastModified, ItemShard.digest(data));
+                            digestOnly.shardFile = shardFile;
+                            return digestOnly;
+                        }
+                    }));
+                }
+                return results;
+            } catch (IOException e) {
+                Log.w(TAG, "submitItem: Cannot map " + file + ", reading it as a stream", e);
+            }
+        }
+
+        results.add(executor.submit(new Callable<ParsedItem>() {
+            @Override
+            public ParsedItem call() throws InterruptedException {
+                long startTime = System.nanoTime();
+                ParsedItem parsedItem = parseItem(context, item);
+                parsedItem.loadTimeNanos = System.nanoTime() - startTime;
+                return parsedItem;
+            }
+        }));
+        return results;
+    }
+
+    /**
+     * Reads the hosts of an item from its shard, if they were parsed from the current file.
+     *
+     * @param file      The file of the item
+     * @param shardFile The shard of the item
+     * @param shard     The header of the shard
+     * @return The hosts of the item, or null if the file changed or the shard is unusable.
+     */
+    @Nullable
+    private static ParsedItem readShard(File file, File shardFile, ItemShard shard) {
+        try {
+            boolean unmodified = shard.isParsedFrom(file);
+            if (!unmodified && !Arrays.equals(shard.digest, ItemShard.digest(file)))
+                return null;
+
+            ParsedItem parsedItem = new ParsedItem();
+            if (ItemShard.read(shardFile, parsedItem.hosts, parsedItem.rules) == null)
+                return null;
+            parsedItem.cached = true;
+            // Remember the new modification time, so the file is not compared again.
+            if (!unmodified) {
+                parsedItem.shard = new ItemShard(file.length(), file.lastModified(), shard.digest);
+                parsedItem.shardFile = shardFile;
+            }
+            Log.d(TAG, "readShard: Read " + parsedItem.size() + " hosts from " + shardFile);
+            return parsedItem;
+        } catch (IOException e) {
+            Log.w(TAG, "readShard: Cannot read shard " + shardFile + ", parsing " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the file the parsed hosts of a file are stored in.
+     *
+     * @param context A context used for finding the directory of the shards
+     * @param file    The file of an item, may be null
+     * @return The shard file, or null if the item has no file.
+     */
+    @Nullable
+    private static File getShardFile(Context context, @Nullable File file) {
+        File cacheDir = context.getCacheDir();
+        if (file == null || cacheDir == null)
+            return null;
+        File directory = new File(cacheDir, SHARD_DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            return null;
+        return new File(directory, file.getName());
+    }
 
-        if (item.state == Configuration.Item.STATE_IGNORE)
+    /**
+     * Deletes shards that do not belong to any of the items.
+     *
+     * @param context A context used for finding files
+     * @param items   The configured items
+     */
+    private static void deleteStaleShards(Context context, List<Configuration.Item> items) {
+        Set<File> shards = new HashSet<>();
+        for (Configuration.Item item : items) {
+            File shardFile = getShardFile(context, FileHelper.getItemFile(context, item));
+            if (shardFile != null)
+                shards.add(shardFile);
+        }
+
+        File cacheDir = context.getCacheDir();
+        File[] files = cacheDir == null ? null : new File(cacheDir, SHARD_DIRECTORY_NAME).listFiles();
+        if (files == null)
             return;
+        for (File file : files) {
+            // Shards of current items may still be written in the background
+            String path = file.getPath();
+            if (path.endsWith(FileHelper.TEMPORARY_SUFFIX))
+                path = path.substring(0, path.length() - FileHelper.TEMPORARY_SUFFIX.length());
+            if (!shards.contains(new File(path)) && !file.delete())
+                Log.w(TAG, "deleteStaleShards: Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Determines into how many chunks a file is split. Compressed files cannot be split, so
+     * downloads of at least {@link #MIN_SPLIT_FILE_SIZE} are stored uncompressed.
+     *
+     * @param file    The file of an item, or null
+     * @param threads The number of threads parsing items
+     * @return The number of chunks, or 1 if the file is parsed as a whole.
+     */
+    static int getChunkCount(@Nullable File file, int threads) {
+        int chunks = file == null ? 1 : (int) Math.min(threads, file.length() / MIN_CHUNK_SIZE);
+        if (chunks <= 1)
+            return 1;
+
+        byte[] magic = new byte[XZ_MAGIC.length];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0)
+                length += read;
+        } catch (IOException e) {
+            Log.w(TAG, "getChunkCount: Cannot read " + file, e);
+            return 1;
+        }
+        if (startsWith(magic, length, GZIP_MAGIC) || startsWith(magic, length, XZ_MAGIC))
+            return 1;
+        return chunks;
+    }
+
+    /**
+     * Splits data into chunks of roughly the same size, each of which ends after a line
+     * terminator or at the end of the data.
+     *
+     * @param data   The data to split
+     * @param chunks The number of chunks to split into
+     * @return The non-empty chunks, in order.
+     */
+    static List<ByteBuffer> splitLines(ByteBuffer data, int chunks) {
+        List<ByteBuffer> result = new ArrayList<>(chunks);
+        int length = data.remaining();
+        int start = 0;
+        for (int i = 1; i <= chunks && start < length; i++) {
+            int end = (int) ((long) length * i / chunks);
+            if (end < start)
+                end = start;
+            while (end < length && end > 0 && data.get(data.position() + end - 1) != '\n')
+                end++;
+            if (end == start)
+                continue;
+
+            ByteBuffer chunk = data.duplicate();
+            chunk.position(data.position() + start);
+            chunk.limit(data.position() + end);
+            result.add(chunk.slice());
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * Parses an item. An item can be backed by a file or contain a value in the location field.
+     *
+     * @param context Context to open files
+     * @param item    The item to parse.
+     * @return The hosts of the item.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    private static ParsedItem parseItem(Context context, Configuration.Item item) throws InterruptedException {
+        File file = FileHelper.getItemFile(context, item);
+        ParsedItem parsedItem = new ParsedItem();
 
         if (file == null && !item.location.contains("/")) {
-            addHost(item, item.location);
+            addParsedHost(item.location, parsedItem.hosts, parsedItem.rules);
 
-            return;
+            return parsedItem;
         }
 
         if (file != null) {
-            FileReader reader;
+            long fileSize = file.length();
+            long lastModified = file.lastModified();
+            File shardFile = getShardFile(context, file);
+            MessageDigest digest = shardFile == null ? null : ItemShard.newDigest();
+            InputStream stream;
             try {
-                reader = new FileReader(file);
+                stream = new FileInputStream(file);
+                if (digest != null)
+                    stream = new DigestInputStream(stream, digest);
             } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return;
+                // Ignored items do not need to be downloaded.
+                if (item.state != Configuration.Item.STATE_IGNORE) {
+                    e.printStackTrace();
+                    parsedItem.complete = false;
+                }
+                return parsedItem;
+            }
+            parsedItem.complete = parseStream(item, stream, parsedItem);
+            if (digest != null) {
+                parsedItem.shard = new ItemShard(fileSize, lastModified, digest.digest());
+                parsedItem.shardFile = shardFile;
             }
-            loadReader(item, reader);
         }
+        return parsedItem;
     }
 
     /**
-     * Add a single host for an item.
+     * Add the hosts of an item, as the next source, and record statistics about them.
      *
-     * @param item The item the host belongs to
-     * @param host The host
+     * @param item       The item the hosts belong to
+     * @param parsedItem The hosts of the item
      */
-    private void addHost(Configuration.Item item, String host) {
-        // Single address to block
-        if (item.state == Configuration.Item.STATE_ALLOW) {
-            blockedHosts.remove(host);
+    private void addHosts(Configuration.Item item, ParsedItem parsedItem) {
+        RuleStats.Item itemStats = new RuleStats.Item();
+        itemStats.title = item.title;
+        itemStats.location = item.location;
+        itemStats.rules = parsedItem.size();
+        itemStats.loadTimeMs = parsedItem.loadTimeNanos / 1000000;
+        itemStats.complete = parsedItem.complete;
+        itemStats.cached = parsedItem.cached;
+        pendingItemStats.add(itemStats);
+
+        int index = pendingStates.size();
+        pendingStates.add(item.state);
+
+        long source;
+        long exceptionSource = SHARED_ALLOW_SOURCE;
+        long replaced = 0;
+        if (index < MAX_SOURCES) {
+            source = getSource(index);
+            exceptionSource = getExceptionSource(index);
         } else if (item.state == Configuration.Item.STATE_DENY) {
-            blockedHosts.add(host);
+            source = SHARED_DENY_SOURCE;
+        } else if (item.state == Configuration.Item.STATE_ALLOW) {
+            source = SHARED_ALLOW_SOURCE;
+        } else {
+            return;
+        }
+        // Items without a source of their own replace the rules of earlier such items.
+        if (index >= MAX_SOURCES)
+            replaced = SHARED_DENY_SOURCE | SHARED_ALLOW_SOURCE;
+
+        itemStats.duplicates += pendingHosts.addAll(parsedItem.hosts, source, replaced);
+        for (String rule : parsedItem.rules) {
+            boolean duplicate = rule.startsWith(EXCEPTION_PREFIX)
+                    ? addRule(rule.substring(EXCEPTION_PREFIX.length()), exceptionSource, replaced)
+                    : addRule(rule, source, replaced);
+            if (duplicate)
+                itemStats.duplicates++;
+        }
+    }
+
+    /**
+     * Add a single wildcard or pattern, or an exception for a single host, for a source.
+     *
+     * @param host     The rule, as returned by the parser, without the prefix of exceptions
+     * @param source   The bit of the source
+     * @param replaced The bits of sources the rule is no longer listed by
+     * @return true if an earlier item already listed the rule, false otherwise.
+     */
+    private boolean addRule(String host, long source, long replaced) {
+        if (host.startsWith(WILDCARD_PREFIX) && !isPattern(host, WILDCARD_PREFIX.length(), host.length())) {
+            return addRule(pendingWildcards, host.substring(WILDCARD_PREFIX.length()), source, replaced);
+        } else if (host.startsWith(DOMAIN_PREFIX) && host.endsWith(DOMAIN_SUFFIX)
+                && !isPattern(host, DOMAIN_PREFIX.length(), host.length() - DOMAIN_SUFFIX.length())) {
+            // "||example.com^" is the same as "*.example.com"
+            return addRule(pendingWildcards, host.substring(DOMAIN_PREFIX.length(), host.length() - DOMAIN_SUFFIX.length()), source, replaced);
+        } else if (!isPattern(host, 0, host.length())) {
+            // Only exceptions are single hosts here, other hosts are added as keys when parsed.
+            byte[] key = FrontCodedHostSet.reverseLabels(host);
+            return key.length <= FrontCodedHostSet.MAX_NAME_LENGTH && pendingHosts.add(key, 0, key.length, source, replaced);
+        } else {
+            List<String> globs = PatternAutomaton.toGlobs(host);
+            boolean duplicate = !globs.isEmpty();
+            for (String glob : globs)
+                duplicate &= addRule(pendingPatterns, glob, source, replaced);
+            return duplicate;
+        }
+    }
+
+    /**
+     * Add a single rule for a source.
+     *
+     * @return true if the rule was already listed, false otherwise.
+     */
+    private static boolean addRule(Map<String, Long> rules, String rule, long source, long replaced) {
+        Long sources = rules.get(rule);
+        rules.put(rule, (sources == null ? 0 : sources & ~replaced) | source);
+        return sources != null;
+    }
+
+    /**
+     * Checks whether a rule can be added, see {@link #addRule(String, long, long)}. Patterns
+     * with options, paths or characters that do not appear in host names have no globs.
+     *
+     * @param rule The rule, without the prefix of exceptions
+     * @return true if the rule is a wildcard, a host or a pattern with globs, false otherwise.
+     */
+    private static boolean isSupportedRule(String rule) {
+        if (rule.startsWith(WILDCARD_PREFIX) && !isPattern(rule, WILDCARD_PREFIX.length(), rule.length()))
+            return true;
+        if (rule.startsWith(DOMAIN_PREFIX) && rule.endsWith(DOMAIN_SUFFIX)
+                && !isPattern(rule, DOMAIN_PREFIX.length(), rule.length() - DOMAIN_SUFFIX.length()))
+            return true;
+        return !isPattern(rule, 0, rule.length()) || !PatternAutomaton.toGlobs(rule).isEmpty();
+    }
+
+    /**
+     * Checks whether a part of a host contains characters with a special meaning in patterns.
+     */
+    private static boolean isPattern(String host, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = host.charAt(i);
+            if (c == '*' || c == '|' || c == '^')
+                return true;
         }
+        return false;
     }
 
     /**
      * Load a single file
      *
      * @param item   The configuration item referencing the file
-     * @param reader A reader to read lines from
+     * @param stream A stream to read the file from
      * @throws InterruptedException If thread was interrupted
      */
-    boolean loadReader(Configuration.Item item, Reader reader) throws InterruptedException {
-        int count = 0;
+    boolean loadStream(Configuration.Item item, InputStream stream) throws InterruptedException {
+        long startTime = System.nanoTime();
+        ParsedItem parsedItem = new ParsedItem();
+        parsedItem.complete = parseStream(item, stream, parsedItem);
+        parsedItem.loadTimeNanos = System.nanoTime() - startTime;
+        addHosts(item, parsedItem);
+        return parsedItem.complete;
+    }
+
+    /**
+     * Add hosts that were parsed without loading an item, as the next source.
+     *
+     * @param item  The item the hosts belong to
+     * @param hosts The keys of the plain hosts of the item
+     * @param rules The wildcards, patterns and exceptions of the item
+     */
+    void addParsedHosts(Configuration.Item item, HostKeyMap hosts, Collection<String> rules) {
+        ParsedItem parsedItem = new ParsedItem();
+        parsedItem.hosts.addAll(hosts, 1, 0);
+        parsedItem.rules.addAll(rules);
+        addHosts(item, parsedItem);
+    }
+
+    /**
+     * Parse a single file
+     *
+     * @param item       The configuration item referencing the file
+     * @param stream     A stream to read the file from
+     * @param parsedItem The parsed item the hosts are added to
+     * @return false if an error occurred while reading, true otherwise.
+     * @throws InterruptedException If thread was interrupted
+     */
+    private static boolean parseStream(Configuration.Item item, InputStream stream, ParsedItem parsedItem) throws InterruptedException {
+        return parseStream(item, stream, HostsParser.FORMAT_AUTO, parsedItem);
+    }
+
+    /**
+     * Parse a single file, or a chunk of one, in a given format
+     *
+     * @param item       The configuration item referencing the file
+     * @param stream     A stream to read the file from
+     * @param format     The format of the file, see {@link HostsParser}
+     * @param parsedItem The parsed item the hosts are added to
+     * @return false if an error occurred while reading, true otherwise.
+     * @throws InterruptedException If thread was interrupted
+     */
+    private static boolean parseStream(Configuration.Item item, InputStream stream, int format, ParsedItem parsedItem) throws InterruptedException {
+        HostsParser parser = newParser(format, parsedItem.hosts, parsedItem.rules);
         try {
             Log.d(TAG, "loadBlockedHosts: Reading: " + item.location);
-            try (BufferedReader br = new BufferedReader(reader)) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    if (Thread.interrupted())
-                        throw new InterruptedException("Interrupted");
-                    String host = parseLine(line);
-                    if (host != null) {
-                        count += 1;
-                        addHost(item, host);
-                    }
-                }
-            }
+            stream = decompress(stream);
+            int count = parser.parse(stream);
             Log.d(TAG, "loadBlockedHosts: Loaded " + count + " hosts from " + item.location);
             return true;
         } catch (IOException e) {
-            Log.e(TAG, "loadBlockedHosts: Error while reading " + item.location + " after " + count + " items", e);
+            Log.e(TAG, "loadBlockedHosts: Error while reading " + item.location + " after " + parsedItem.size() + " items", e);
             return false;
         } finally {
-            FileHelper.closeOrWarn(reader, TAG, "loadBlockedHosts: Error closing " + item.location);
+            FileHelper.closeOrWarn(stream, TAG, "loadBlockedHosts: Error closing " + item.location);
+        }
+    }
+
+    /**
+     * Creates a parser adding the hosts it finds to a map and a collection. The keys of plain
+     * ASCII hosts are built straight from the buffer of the parser, as most hosts are such.
+     * Hosts including their subdomains are added as wildcard rules.
+     *
+     * @param format The format of the input, see {@link HostsParser}
+     * @param hosts  A map the keys of plain hosts are added to
+     * @param rules  A collection wildcards, patterns and exceptions are added to
+     * @return The parser.
+     */
+    static HostsParser newParser(int format, final HostKeyMap hosts, final Collection<String> rules) {
+        final byte[] key = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+        return new HostsParser(new HostsParser.Sink() {
+            @Override
+            public void host(byte[] buffer, int start, int end, boolean subdomains) {
+                if (subdomains) {
+                    String rule = WILDCARD_PREFIX + HostsParser.decode(buffer, start, end);
+                    if (isSupportedRule(rule))
+                        rules.add(rule);
+                    return;
+                }
+                if (buffer[start] == '@') {
+                    addParsedHost(HostsParser.decode(buffer, start, end), hosts, rules);
+                    return;
+                }
+                for (int i = start; i < end; i++) {
+                    byte b = buffer[i];
+                    // Non-ASCII hosts are only lower-cased when decoded
+                    if (b < 0 || b == '*' || b == '|' || b == '^') {
+                        addParsedHost(HostsParser.decode(buffer, start, end), hosts, rules);
+                        return;
+                    }
+                }
+                if (end - start <= FrontCodedHostSet.MAX_NAME_LENGTH)
+                    hosts.add(key, 0, FrontCodedHostSet.reverseLabels(buffer, start, end, key), 1, 0);
+            }
+        }, format);
+    }
+
+    /**
+     * Adds a single host, such as the location of an item, to the keys of plain hosts or to
+     * the wildcards, patterns and exceptions. Hosts too long to appear in a DNS query and
+     * patterns that cannot be matched are skipped, so they are neither stored nor counted.
+     *
+     * @param host  The host
+     * @param hosts A map the key of a plain host is added to
+     * @param rules A collection a wildcard, pattern or exception is added to
+     */
+    static void addParsedHost(String host, HostKeyMap hosts, Collection<String> rules) {
+        if (host.startsWith(EXCEPTION_PREFIX)) {
+            if (isSupportedRule(host.substring(EXCEPTION_PREFIX.length())))
+                rules.add(host);
+        } else if (isPattern(host, 0, host.length())) {
+            if (isSupportedRule(host))
+                rules.add(host);
+        } else {
+            byte[] key = FrontCodedHostSet.reverseLabels(host);
+            if (key.length <= FrontCodedHostSet.MAX_NAME_LENGTH)
+                hosts.add(key, 0, key.length, 1, 0);
+        }
+    }
+
+    /**
+     * Decompresses a stream if it starts with a gzip header. Other streams are returned with
+     * their content unchanged.
+     *
+     * @param stream The stream to read
+     * @return A stream of the decompressed content.
+     * @throws IOException If the stream could not be read, or is compressed with xz
+     */
+    static InputStream decompress(InputStream stream) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(stream, XZ_MAGIC.length);
+        byte[] magic = new byte[XZ_MAGIC.length];
+        int length = 0;
+        int read;
+        while (length < magic.length && (read = pushback.read(magic, length, magic.length - length)) >= 0)
+            length += read;
+        pushback.unread(magic, 0, length);
+
+        if (startsWith(magic, length, GZIP_MAGIC))
+            return new GZIPInputStream(pushback, DECOMPRESSION_BUFFER_SIZE);
+        if (startsWith(magic, length, XZ_MAGIC))
+            throw new IOException("xz compressed files are not supported, use gzip instead");
+        return pushback;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * An input stream reading the remaining bytes of a buffer, such as a chunk of a mapped file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+
+    /**
+     * The result of parsing a single item.
+     */
+    private static class ParsedItem {
+        /* The keys of the plain hosts */
+        final HostKeyMap hosts = new HostKeyMap();
+        /* The wildcards, patterns and exceptions */
+        final Set<String> rules = new HashSet<>();
+        boolean complete = true;
+        long loadTimeNanos;
+        /* Whether the hosts were read from a shard */
+        boolean cached;
+        /* The header of the shard to write the hosts to, or null if the shard is up to date */
+        ItemShard shard;
+        File shardFile;
+
+        int size() {
+            return hosts.size() + rules.size();
         }
     }
 }
@@ -0,0 +1,286 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the rules of a {@link RuleDatabase}.
+ * <p>
+ * An index consists of a {@link FrontCodedHostSet} of hosts, a {@link BloomFilter} in front
+ * of it, a {@link DomainTrie} of wildcard rules and a {@link PatternAutomaton} of pattern
+ * rules. As all of them are encoded in buffers, an
+ * index can be written to a file and memory-mapped later, so it can be queried directly
+ * without parsing any hosts files. The file is tagged with a key describing the sources the
+ * index was built from; a file is only used if the key matches.
+ * <p>
+ * Each rule records the sources that listed it as a bit mask, where bit i stands for the i-th
+ * source. Whether a name is blocked is decided when it is looked up: Of the active sources
+ * listing it, the highest one wins, so later sources override earlier ones. The masks of the
+ * active and denying sources are not part of the file, so enabling or disabling a source only
+ * needs a new index sharing the same buffers, see {@link #withSources(long, long)}.
+ * <p>
+ * An index of the default sources is built with {@link RuleIndexCompiler} when the app is
+ * built, and shipped as an asset, so there are rules before any source is downloaded.
+ * <p>
+ * The layout of the file is:
+ * <pre>
+ *     int      magic
+ *     int      version
+ *     int      keyLength
+ *     byte[]   key
+ *     int      hostsLength
+ *     int      filterLength
+ *     int      wildcardsLength
+ *     int      patternsLength
+ *     byte[]   hosts        see {@link FrontCodedHostSet}
+ *     byte[]   filter       see {@link BloomFilter}
+ *     byte[]   wildcards    see {@link DomainTrie}
+ *     byte[]   patterns     see {@link PatternAutomaton}
+ * </pre>
+ */
+final class RuleIndex {
+    private static final int MAGIC = 0x44363652; // "D66R"
+    static final int VERSION = 5;
+    static final RuleIndex EMPTY = new RuleIndex(FrontCodedHostSet.EMPTY, BloomFilter.build(FrontCodedHostSet.EMPTY), DomainTrie.EMPTY, PatternAutomaton.EMPTY, 0, 0);
+
+    final FrontCodedHostSet hosts;
+    final BloomFilter filter;
+    final DomainTrie wildcards;
+    final PatternAutomaton patterns;
+    final long activeSources;
+    final long denyingSources;
+
+    /**
+     * Creates an index.
+     *
+     * @param hosts          The hosts, with the sources listing them
+     * @param filter         A filter for the hosts
+     * @param wildcards      The wildcard rules, with the sources listing them
+     * @param patterns       The pattern rules, with the sources listing them
+     * @param activeSources  The mask of sources whose rules are used
+     * @param denyingSources The mask of sources that block the names they list
+     */
+    RuleIndex(FrontCodedHostSet hosts, BloomFilter filter, DomainTrie wildcards, PatternAutomaton patterns, long activeSources, long denyingSources) {
+        this.hosts = hosts;
+        this.filter = filter;
+        this.wildcards = wildcards;
+        this.patterns = patterns;
+        this.activeSources = activeSources;
+        this.denyingSources = denyingSources;
+    }
+
+    /**
+     * Creates an index with the same rules, but different sources enabled.
+     *
+     * @param activeSources  The mask of sources whose rules are used
+     * @param denyingSources The mask of sources that block the names they list
+     * @return A new index sharing the rules of this one.
+     */
+    RuleIndex withSources(long activeSources, long denyingSources) {
+        return new RuleIndex(hosts, filter, wildcards, patterns, activeSources, denyingSources);
+    }
+
+    /**
+     * Checks if a name is blocked. An exact rule for the name wins over wildcard rules, and
+     * wildcard rules win over pattern rules.
+     *
+     * @param key A name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @return true if the name is blocked, false otherwise.
+     */
+    boolean isBlocked(byte[] key) {
+        return isBlocked(key, key.length);
+    }
+
+    /**
+     * Checks if a name stored at the start of a buffer is blocked. This does not allocate.
+     *
+     * @param key    A buffer starting with a name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param length The length of the name
+     * @return true if the name is blocked, false otherwise.
+     */
+    boolean isBlocked(byte[] key, int length) {
+        return isBlocked(key, length, BloomFilter.hash(key, length));
+    }
+
+    /**
+     * Checks if a name stored at the start of a buffer is blocked, given the hash of the name.
+     *
+     * @param key    A buffer starting with a name, as returned by {@link FrontCodedHostSet#reverseLabels(String)}
+     * @param length The length of the name
+     * @param hash   The hash of the name, as returned by {@link BloomFilter#hash(byte[], int)}
+     * @return true if the name is blocked, false otherwise.
+     */
+    boolean isBlocked(byte[] key, int length, long hash) {
+        if (filter.mightContain(hash)) {
+            long sources = hosts.getSources(key, length) & activeSources;
+            if (sources != 0)
+                return isDenied(sources);
+        }
+        if (!wildcards.isEmpty()) {
+            long sources = wildcards.lookup(key, length, activeSources) & activeSources;
+            if (sources != 0)
+                return isDenied(sources);
+        }
+        return !patterns.isEmpty() && isDenied(patterns.match(key, length) & activeSources);
+    }
+
+    /**
+     * Checks whether the highest of the given active sources blocks names.
+     */
+    private boolean isDenied(long sources) {
+        return (Long.highestOneBit(sources) & denyingSources) != 0;
+    }
+
+    /**
+     * Checks whether any name is blocked. This has to look at every rule.
+     *
+     * @return true if no name is blocked.
+     */
+    boolean isEmpty() {
+        final boolean[] denied = new boolean[1];
+        hosts.forEach(new FrontCodedHostSet.Visitor() {
+            @Override
+            public void visit(byte[] key, int length, long sources) {
+                denied[0] |= isDenied(sources & activeSources);
+            }
+        });
+        DomainTrie.RuleVisitor ruleVisitor = new DomainTrie.RuleVisitor() {
+            @Override
+            public void visit(long sources) {
+                denied[0] |= isDenied(sources & activeSources);
+            }
+        };
+        wildcards.forEachRule(ruleVisitor);
+        patterns.forEachRule(ruleVisitor);
+        return !denied[0];
+    }
+
+    /**
+     * Maps an index file into memory.
+     *
+     * @param file The index file
+     * @param key  The key the index must have been written with
+     * @return The index, with no sources active, or null if the file does not exist or does
+     * not match the key or version.
+     * @throws IOException If the file could not be read or is corrupted
+     */
+    @Nullable
+    static RuleIndex map(File file, byte[] key) throws IOException {
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return map(raf.getChannel(), 0, raf.length(), key, file.getPath());
+        }
+    }
+
+    /**
+     * Maps an index stored in a part of a file into memory, such as an uncompressed asset.
+     * The mapping stays valid after the channel is closed.
+     *
+     * @param channel A channel of the file containing the index
+     * @param offset  The offset of the index in the file
+     * @param length  The length of the index
+     * @param key     The key the index must have been written with
+     * @param name    A name of the index, for error messages
+     * @return The index, with no sources active, or null if it does not match the key or
+     * version.
+     * @throws IOException If the file could not be read or the index is corrupted
+     */
+    @Nullable
+    static RuleIndex map(FileChannel channel, long offset, long length, byte[] key, String name) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+
+            byte[] fileKey = new byte[buffer.getInt()];
+            buffer.get(fileKey);
+            if (!Arrays.equals(key, fileKey))
+                return null;
+
+            int hostsLength = buffer.getInt();
+            int filterLength = buffer.getInt();
+            int wildcardsLength = buffer.getInt();
+            int patternsLength = buffer.getInt();
+            if (buffer.remaining() != hostsLength + filterLength + wildcardsLength + patternsLength)
+                throw new IOException("Invalid length of rule index " + name);
+
+            return new RuleIndex(new FrontCodedHostSet(slice(buffer, hostsLength)),
+                    new BloomFilter(slice(buffer, filterLength)),
+                    new DomainTrie(slice(buffer, wildcardsLength)),
+                    new PatternAutomaton(slice(buffer, patternsLength)), 0, 0);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted rule index " + name, e);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.slice();
+    }
+
+    /**
+     * Writes the index to a file. The index is written to a temporary file first, and then
+     * renamed, so existing mappings of an older index stay valid.
+     *
+     * @param file The index file
+     * @param key  The key describing the sources
+     * @throws IOException If the index could not be written
+     */
+    void write(File file, byte[] key) throws IOException {
+        ByteBuffer hostsBuffer = hosts.getBuffer();
+        ByteBuffer filterBuffer = filter.getBuffer();
+        ByteBuffer wildcardsBuffer = wildcards.getBuffer();
+        ByteBuffer patternsBuffer = patterns.getBuffer();
+        ByteBuffer header = ByteBuffer.allocate(28 + key.length);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(key.length);
+        header.put(key);
+        header.putInt(hostsBuffer.remaining());
+        header.putInt(filterBuffer.remaining());
+        header.putInt(wildcardsBuffer.remaining());
+        header.putInt(patternsBuffer.remaining());
+        header.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, header);
+            writeFully(channel, hostsBuffer);
+            writeFully(channel, filterBuffer);
+            writeFully(channel, wildcardsBuffer);
+            writeFully(channel, patternsBuffer);
+            out.getFD().sync();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
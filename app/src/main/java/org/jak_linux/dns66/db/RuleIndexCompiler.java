@@ -0,0 +1,94 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import org.jak_linux.dns66.Configuration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles the default items into a {@link RuleIndex} when the app is built. The index is
+ * shipped as the asset {@link RuleDatabase#PREBUILT_INDEX_NAME}, and used until the files of
+ * the items are downloaded.
+ * <p>
+ * This runs on the build machine, not on Android, so it must not use any Android APIs,
+ * including logging. The arguments are the index file to write, followed by the state,
+ * location and file of each item, in the order of the configuration. The files are pinned
+ * snapshots of the items, which may be compressed with gzip. The file of an item without a
+ * snapshot is given as "-". The index is keyed by the items only, see
+ * {@link RuleDatabase#computeIndexKey}, so it is only used if the configured items are the
+ * ones it was built from.
+ */
+public final class RuleIndexCompiler {
+
+    private RuleIndexCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length % 3 != 1) {
+            System.err.println("Usage: RuleIndexCompiler <index> [<state> <location> <file>]...");
+            System.exit(1);
+        }
+
+        List<Configuration.Item> items = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i += 3) {
+            Configuration.Item item = new Configuration.Item();
+            item.state = Integer.parseInt(args[i]);
+            item.location = args[i + 1];
+            item.title = item.location;
+            items.add(item);
+            files.add(args[i + 2].equals("-") ? null : new File(args[i + 2]));
+        }
+
+        compile(new File(args[0]), items, files);
+    }
+
+    /**
+     * Compiles items into an index file.
+     *
+     * @param indexFile The index file to write
+     * @param items     The items
+     * @param files     The downloaded file of each item, or null if it has none
+     * @throws IOException          If a file could not be read, or the index not written
+     * @throws InterruptedException If the thread was interrupted
+     */
+    static void compile(File indexFile, List<Configuration.Item> items, List<File> files) throws IOException, InterruptedException {
+        RuleDatabase database = new RuleDatabase();
+        for (int i = 0; i < items.size(); i++) {
+            Configuration.Item item = items.get(i);
+            File file = files.get(i);
+            HostKeyMap hosts = new HostKeyMap();
+            Set<String> rules = new HashSet<>();
+
+            if (!item.location.contains("/")) {
+                RuleDatabase.addParsedHost(item.location, hosts, rules);
+            } else if (file == null || !file.exists()) {
+                // The item is still a source, it just has no rules until it is downloaded.
+                System.err.println("RuleIndexCompiler: No file for " + item.location);
+            } else {
+                try (InputStream stream = RuleDatabase.decompress(new FileInputStream(file))) {
+                    RuleDatabase.newParser(HostsParser.FORMAT_AUTO, hosts, rules).parse(stream);
+                }
+            }
+
+            System.out.println("RuleIndexCompiler: " + (hosts.size() + rules.size()) + " hosts from " + item.location);
+            database.addParsedHosts(item, hosts, rules);
+        }
+
+        database.commit();
+        database.getIndex().write(indexFile, RuleDatabase.computeIndexKey(null, items));
+    }
+}
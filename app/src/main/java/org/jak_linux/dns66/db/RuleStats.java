@@ -0,0 +1,266 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import org.jak_linux.dns66.FileHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statistics about the rules of a {@link RuleDatabase}: how many rules each item contributed,
+ * how long it took to load, and how much memory the structures holding the rules take.
+ * <p>
+ * The statistics of the last load are stored as JSON next to the rule index, so they can be
+ * shown in the app and shared for analysis. When a stored rule index is used instead of
+ * loading the items, the statistics of the load that stored it stay valid.
+ */
+public class RuleStats {
+    public static final int VERSION = 1;
+    private static final String FILE_NAME = "rules-stats.json";
+
+    /* Number of rules of each kind */
+    public int hosts;
+    public int wildcards;
+    public int patterns;
+    /* Bytes used by the structures of the rule index and the verdict cache */
+    public long hostsBytes;
+    public long filterBytes;
+    public long wildcardsBytes;
+    public long patternsBytes;
+    public long cacheBytes;
+    /* Used and maximum heap of the process after loading, this includes more than the rules */
+    public long heapUsedBytes;
+    public long heapMaxBytes;
+    /* Total time taken to load the items, including building the index */
+    public long loadTimeMs;
+    public List<Item> items = new ArrayList<>();
+
+    /**
+     * Statistics about the rules of a single item.
+     */
+    public static class Item {
+        public String title;
+        public String location;
+        /* Number of distinct rules listed by the item */
+        public int rules;
+        /* Number of those rules that an earlier item already listed */
+        public int duplicates;
+        /* Time spent reading and parsing the item */
+        public long loadTimeMs;
+        /* Whether the item could be read completely */
+        public boolean complete = true;
+        /* Whether the hosts were read from the shard of the item instead of being parsed */
+        public boolean cached;
+    }
+
+    /**
+     * @return The number of bytes used by the rule index and the verdict cache.
+     */
+    public long getTotalBytes() {
+        return hostsBytes + filterBytes + wildcardsBytes + patternsBytes + cacheBytes;
+    }
+
+    /**
+     * Gets the file the statistics of the last load are stored in.
+     *
+     * @param context A context used for finding the file
+     * @return The file, which may not exist.
+     */
+    public static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads statistics from a file.
+     *
+     * @param file The file to read
+     * @return The statistics
+     * @throws IOException If the file could not be read.
+     */
+    public static RuleStats read(File file) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            RuleStats stats = new RuleStats();
+            stats.read(reader);
+            return stats;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the statistics to a file, replacing it atomically.
+     *
+     * @param file The file to write
+     * @throws IOException If the file could not be written.
+     */
+    void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + FileHelper.TEMPORARY_SUFFIX);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+        try {
+            write(new JsonWriter(writer));
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(file))
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+    }
+
+    /**
+     * @return The statistics as JSON
+     */
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            JsonWriter jsonWriter = new JsonWriter(writer);
+            jsonWriter.setIndent("  ");
+            write(jsonWriter);
+            jsonWriter.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
+    }
+
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("version").value(VERSION);
+        writer.name("hosts").value(hosts);
+        writer.name("wildcards").value(wildcards);
+        writer.name("patterns").value(patterns);
+        writer.name("hostsBytes").value(hostsBytes);
+        writer.name("filterBytes").value(filterBytes);
+        writer.name("wildcardsBytes").value(wildcardsBytes);
+        writer.name("patternsBytes").value(patternsBytes);
+        writer.name("cacheBytes").value(cacheBytes);
+        writer.name("heapUsedBytes").value(heapUsedBytes);
+        writer.name("heapMaxBytes").value(heapMaxBytes);
+        writer.name("loadTimeMs").value(loadTimeMs);
+        writer.name("items");
+        writer.beginArray();
+        for (Item item : items) {
+            writer.beginObject();
+            writer.name("title").value(item.title);
+            writer.name("location").value(item.location);
+            writer.name("rules").value(item.rules);
+            writer.name("duplicates").value(item.duplicates);
+            writer.name("loadTimeMs").value(item.loadTimeMs);
+            writer.name("complete").value(item.complete);
+            writer.name("cached").value(item.cached);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    public void read(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "version":
+                    if (reader.nextInt() > VERSION)
+                        throw new IOException("Incompatible format");
+                    break;
+                case "hosts":
+                    hosts = reader.nextInt();
+                    break;
+                case "wildcards":
+                    wildcards = reader.nextInt();
+                    break;
+                case "patterns":
+                    patterns = reader.nextInt();
+                    break;
+                case "hostsBytes":
+                    hostsBytes = reader.nextLong();
+                    break;
+                case "filterBytes":
+                    filterBytes = reader.nextLong();
+                    break;
+                case "wildcardsBytes":
+                    wildcardsBytes = reader.nextLong();
+                    break;
+                case "patternsBytes":
+                    patternsBytes = reader.nextLong();
+                    break;
+                case "cacheBytes":
+                    cacheBytes = reader.nextLong();
+                    break;
+                case "heapUsedBytes":
+                    heapUsedBytes = reader.nextLong();
+                    break;
+                case "heapMaxBytes":
+                    heapMaxBytes = reader.nextLong();
+                    break;
+                case "loadTimeMs":
+                    loadTimeMs = reader.nextLong();
+                    break;
+                case "items":
+                    items = readItems(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static List<Item> readItems(JsonReader reader) throws IOException {
+        List<Item> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Item item = new Item();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "title":
+                        item.title = reader.nextString();
+                        break;
+                    case "location":
+                        item.location = reader.nextString();
+                        break;
+                    case "rules":
+                        item.rules = reader.nextInt();
+                        break;
+                    case "duplicates":
+                        item.duplicates = reader.nextInt();
+                        break;
+                    case "loadTimeMs":
+                        item.loadTimeMs = reader.nextLong();
+                        break;
+                    case "complete":
+                        item.complete = reader.nextBoolean();
+                        break;
+                    case "cached":
+                        item.cached = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            items.add(item);
+        }
+        reader.endArray();
+        return items;
+    }
+}
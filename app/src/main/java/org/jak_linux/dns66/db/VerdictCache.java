@@ -0,0 +1,84 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small, fixed-size cache of the verdicts for recently looked up names.
+ * <p>
+ * The cache is direct-mapped: the low bits of the hash of a name select a slot, and a newer
+ * name simply replaces the older one in its slot. Each slot is a single long holding the
+ * upper bits of the hash, the generation of the rules the verdict was computed for, and the
+ * verdict itself:
+ * <pre>
+ *     bits 24-63   tag, the upper 40 bits of the hash
+ *     bits 2-23    generation
+ *     bit  1       blocked
+ *     bit  0       valid
+ * </pre>
+ * As a slot is read and written as a whole, concurrent lookups can at worst evict each other's
+ * entries. A verdict is only used if it was computed for the current generation, so changing
+ * the generation invalidates all entries at once. Only the low bits of the generation are
+ * stored, so an entry could only come back to life after millions of changes of the rules,
+ * and only if its slot was not reused in between. Lookups and updates do not allocate.
+ */
+class VerdictCache {
+    /* Number of slots, must be a power of two */
+    static final int SIZE = 4096;
+    static final int SIZE_IN_BYTES = SIZE * 8;
+
+    private static final int TAG_SHIFT = 24;
+    private static final int GENERATION_SHIFT = 2;
+    private static final int GENERATION_MASK = (1 << (TAG_SHIFT - GENERATION_SHIFT)) - 1;
+    private static final long BLOCKED = 2;
+    private static final long VALID = 1;
+
+    /* Results of get() */
+    static final int UNKNOWN = -1;
+    static final int ALLOWED = 0;
+    static final int DENIED = 1;
+
+    private final AtomicLongArray slots = new AtomicLongArray(SIZE);
+
+    /**
+     * Looks up the verdict for a name.
+     *
+     * @param hash       The hash of the name, as returned by {@link BloomFilter#hash(byte[], int)}
+     * @param generation The current generation of the rules
+     * @return {@link #DENIED} or {@link #ALLOWED} if a verdict for the current generation is
+     * cached, {@link #UNKNOWN} otherwise.
+     */
+    int get(long hash, int generation) {
+        long entry = slots.get(slot(hash));
+        if ((entry & VALID) == 0 || (entry >>> TAG_SHIFT) != (hash >>> TAG_SHIFT))
+            return UNKNOWN;
+        if (((entry >>> GENERATION_SHIFT) & GENERATION_MASK) != (generation & GENERATION_MASK))
+            return UNKNOWN;
+        return (entry & BLOCKED) != 0 ? DENIED : ALLOWED;
+    }
+
+    /**
+     * Stores the verdict for a name, replacing any other name in its slot.
+     *
+     * @param hash       The hash of the name, as returned by {@link BloomFilter#hash(byte[], int)}
+     * @param generation The generation of the rules the verdict was computed for
+     * @param blocked    Whether the name is blocked
+     */
+    void put(long hash, int generation, boolean blocked) {
+        long entry = (hash >>> TAG_SHIFT) << TAG_SHIFT
+                | (long) (generation & GENERATION_MASK) << GENERATION_SHIFT
+                | (blocked ? BLOCKED : 0)
+                | VALID;
+        slots.set(slot(hash), entry);
+    }
+
+    private static int slot(long hash) {
+        return (int) hash & (SIZE - 1);
+    }
+}
@@ -104,6 +104,7 @@ public class StartFragment extends Fragment {
                 startButton.setImageAlpha(64);
                 break;
             case AdVpnService.VPN_STATUS_RUNNING:
+            case AdVpnService.VPN_STATUS_RUNNING_LOADING_RULES:
                 startButton.setImageAlpha(255);
                 break;
             case AdVpnService.VPN_STATUS_RECONNECTING_NETWORK_ERROR:
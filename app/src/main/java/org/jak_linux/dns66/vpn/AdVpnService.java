@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.VpnService;
+import android.os.FileObserver;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.Nullable;
@@ -33,6 +34,7 @@ import org.jak_linux.dns66.FileHelper;
 import org.jak_linux.dns66.MainActivity;
 import org.jak_linux.dns66.R;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 
 public class AdVpnService extends VpnService implements Handler.Callback {
@@ -58,10 +60,15 @@ public class AdVpnService extends VpnService implements Handler.Callback {
     public static final int VPN_STATUS_RECONNECTING = 4;
     public static final int VPN_STATUS_RECONNECTING_NETWORK_ERROR = 5;
     public static final int VPN_STATUS_STOPPED = 6;
+    /* Connected, but the rules are still being loaded, so nothing is blocked yet */
+    public static final int VPN_STATUS_RUNNING_LOADING_RULES = 7;
     public static final String VPN_UPDATE_STATUS_INTENT = "org.jak_linux.dns66.VPN_UPDATE_STATUS";
     public static final String VPN_UPDATE_STATUS_EXTRA = "VPN_STATUS";
     private static final int VPN_MSG_STATUS_UPDATE = 0;
     private static final int VPN_MSG_NETWORK_CHANGED = 1;
+    private static final int VPN_MSG_RULES_CHANGED = 2;
+    /* Time to wait for further changes before reloading the rules, so a refresh of several lists only reloads once */
+    private static final long RULES_CHANGED_DELAY_MS = 1000;
     private static final String TAG = "VpnService";
     // TODO: Temporary Hack til refactor is done
     public static int vpnStatus = VPN_STATUS_STOPPED;
@@ -78,6 +85,8 @@ public class AdVpnService extends VpnService implements Handler.Callback {
             handler.sendMessage(handler.obtainMessage(VPN_MSG_NETWORK_CHANGED, intent));
         }
     };
+    private FileObserver settingsObserver = null;
+    private FileObserver hostsObserver = null;
     private final NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this)
             .setSmallIcon(R.drawable.ic_menu_info) // TODO: Notification icon
             .setPriority(Notification.PRIORITY_MIN);
@@ -98,6 +107,8 @@ public class AdVpnService extends VpnService implements Handler.Callback {
                 return R.string.notification_reconnecting_error;
             case VPN_STATUS_STOPPED:
                 return R.string.notification_stopped;
+            case VPN_STATUS_RUNNING_LOADING_RULES:
+                return R.string.notification_running_loading_rules;
             default:
                 throw new IllegalArgumentException("Invalid vpnStatus value (" + status + ")");
         }
@@ -160,10 +171,59 @@ public class AdVpnService extends VpnService implements Handler.Callback {
         updateVpnStatus(VPN_STATUS_STARTING);
 
         registerReceiver(connectivityChangedReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        startWatchingRules();
 
         restartVpnThread();
     }
 
+    /**
+     * Watches the settings and the downloaded hosts files, and reloads the rules when they
+     * change, without restarting the VPN.
+     */
+    private void startWatchingRules() {
+        stopWatchingRules();
+
+        final int mask = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE;
+        settingsObserver = new FileObserver(getFilesDir().getAbsolutePath(), mask) {
+            @Override
+            public void onEvent(int event, String path) {
+                if ("settings.json".equals(path))
+                    rulesChanged();
+            }
+        };
+        settingsObserver.startWatching();
+
+        File hostsDir = getExternalFilesDir(null);
+        if (hostsDir != null) {
+            hostsObserver = new FileObserver(hostsDir.getAbsolutePath(), mask) {
+                @Override
+                public void onEvent(int event, String path) {
+                    // Partial files are renamed when they are complete
+                    if (path != null && (path.endsWith(FileHelper.DOWNLOAD_SUFFIX) || path.endsWith(FileHelper.TEMPORARY_SUFFIX)))
+                        return;
+                    rulesChanged();
+                }
+            };
+            hostsObserver.startWatching();
+        }
+    }
+
+    private void stopWatchingRules() {
+        if (settingsObserver != null)
+            settingsObserver.stopWatching();
+        if (hostsObserver != null)
+            hostsObserver.stopWatching();
+        settingsObserver = null;
+        hostsObserver = null;
+        handler.removeMessages(VPN_MSG_RULES_CHANGED);
+    }
+
+    /* Called on the thread of the file observer */
+    private void rulesChanged() {
+        handler.removeMessages(VPN_MSG_RULES_CHANGED);
+        handler.sendEmptyMessageDelayed(VPN_MSG_RULES_CHANGED, RULES_CHANGED_DELAY_MS);
+    }
+
     private void restartVpnThread() {
         vpnThread.stopThread();
         vpnThread.startThread();
@@ -186,8 +246,11 @@ public class AdVpnService extends VpnService implements Handler.Callback {
 
     private void stopVpn() {
         Log.i(TAG, "Stopping Service");
-        if (vpnThread != null)
+        stopWatchingRules();
+        if (vpnThread != null) {
             stopVpnThread();
+            vpnThread.stopRuleDatabaseReload();
+        }
         vpnThread = null;
         try {
             unregisterReceiver(connectivityChangedReceiver);
@@ -217,6 +280,10 @@ public class AdVpnService extends VpnService implements Handler.Callback {
             case VPN_MSG_NETWORK_CHANGED:
                 connectivityChanged((Intent) message.obj);
                 break;
+            case VPN_MSG_RULES_CHANGED:
+                if (vpnThread != null)
+                    vpnThread.reloadRuleDatabase();
+                break;
             default:
                 throw new IllegalArgumentException("Invalid message with what = " + message.what);
         }
@@ -30,15 +30,12 @@ import android.util.Log;
 import org.jak_linux.dns66.Configuration;
 import org.jak_linux.dns66.FileHelper;
 import org.jak_linux.dns66.MainActivity;
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.factory.PacketFactoryPropertiesLoader;
-import org.pcap4j.util.PropertiesLoader;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
@@ -64,6 +61,12 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
     /* Maximum number of responses we want to wait for */
     private static final int DNS_MAXIMUM_WAITING = 1024;
     private static final long DNS_TIMEOUT_SEC = 10;
+    /* RFC 8767, section 5: When to answer from stale cached responses, if upstream did not */
+    private static final long DNS_STALE_TIMEOUT_MILLIS = 1800;
+    /* The DNS responses are saved to this file in the cache directory, when stopping and
+     * periodically while running */
+    private static final String DNS_CACHE_FILE_NAME = "dns_responses";
+    private static final long DNS_CACHE_SAVE_INTERVAL_MILLIS = 15 * 60 * 1000;
     private final VpnService vpnService;
     private final Notify notify;
     /* Data to be written to the device */
@@ -72,19 +75,20 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
     private final WospList dnsIn = new WospList();
     // The object where we actually handle packets.
     private final DnsPacketProxy dnsPacketProxy = new DnsPacketProxy(this);
-    /**
-     * After how many iterations we should clear pcap4js packetfactory property cache
-     */
-    private final int PCAP4J_FACTORY_CLEAR_NASTY_CACHE_EVERY = 1024;
     /* Upstream DNS servers, indexed by our IP */
     private final ArrayList<InetAddress> upstreamDnsServers = new ArrayList<>();
     private Thread thread = null;
+    /* Guards the fields below; run() holds the lock on this for as long as the VPN is running */
+    private final Object reloadLock = new Object();
+    private Thread reloadThread = null;
+    /* Whether the rule database has been loaded once, and whether the VPN is connected */
+    private boolean rulesLoaded = false;
+    private boolean connected = false;
     private FileDescriptor mBlockFd = null;
     private FileDescriptor mInterruptFd = null;
-    /**
-     * Number of iterations since we last cleared the pcap4j cache
-     */
-    private int pcap4jFactoryClearCacheCounter = 0;
+    /* Whether the saved DNS responses were loaded, and when they were saved last */
+    private boolean responseCacheLoaded = false;
+    private long responseCacheSavedAt = 0;
 
     public AdVpnThread(VpnService vpnService, Notify notify) {
         this.vpnService = vpnService;
@@ -110,11 +114,77 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
         return out;
     }
 
+    /**
+     * Starts the VPN. The VPN does not wait for the rule database: Queries are forwarded
+     * unfiltered until the rules are loaded in the background, and the rules become active as
+     * they are loaded.
+     */
     public void startThread() {
         Log.i(TAG, "Starting Vpn Thread");
         thread = new Thread(this, "AdVpnThread");
         thread.start();
         Log.i(TAG, "Vpn Thread started");
+
+        synchronized (reloadLock) {
+            if (!rulesLoaded && reloadThread == null)
+                startReload();
+        }
+    }
+
+    /**
+     * Reloads the rule database in the background. Lookups keep using the old rules until the
+     * new ones are complete. A reload that is still running is interrupted first.
+     */
+    public void reloadRuleDatabase() {
+        synchronized (reloadLock) {
+            if (reloadThread != null)
+                reloadThread.interrupt();
+            startReload();
+        }
+    }
+
+    /**
+     * Stops loading the rule database. Called when the service stops; a VPN that is merely
+     * restarted keeps loading.
+     */
+    public void stopRuleDatabaseReload() {
+        synchronized (reloadLock) {
+            if (reloadThread != null)
+                reloadThread.interrupt();
+            reloadThread = null;
+        }
+    }
+
+    /* Must be called with reloadLock held */
+    private void startReload() {
+        Log.i(TAG, "Reloading rule database");
+        reloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dnsPacketProxy.ruleDatabase.initialize(vpnService);
+                    Log.i(TAG, "Rule database reloaded");
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "Rule database reload interrupted");
+                    return;
+                } catch (RuntimeException e) {
+                    // Such as a worker running out of memory on a huge list. Lookups keep
+                    // using the rules committed so far, and the VPN must not stay loading.
+                    Log.e(TAG, "Rule database reload failed", e);
+                }
+
+                synchronized (reloadLock) {
+                    if (reloadThread == Thread.currentThread())
+                        reloadThread = null;
+                    if (!rulesLoaded) {
+                        rulesLoaded = true;
+                        if (connected && notify != null)
+                            notify.run(AdVpnService.VPN_STATUS_RUNNING);
+                    }
+                }
+            }
+        }, "RuleDatabaseReload");
+        reloadThread.start();
     }
 
     public void stopThread() {
@@ -139,12 +209,9 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
     public synchronized void run() {
         Log.i(TAG, "Starting");
 
-        // Load the block list
-        try {
-            dnsPacketProxy.initialize(vpnService, upstreamDnsServers);
-        } catch (InterruptedException e) {
-            return;
-        }
+        dnsPacketProxy.initialize(upstreamDnsServers);
+        if (!responseCacheLoaded)
+            loadResponseCache();
 
         if (notify != null) {
             notify.run(AdVpnService.VPN_STATUS_STARTING);
@@ -196,6 +263,8 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
 
         if (notify != null)
             notify.run(AdVpnService.VPN_STATUS_STOPPING);
+        saveResponseCache(false);
+        Log.i(TAG, "DNS response cache: " + dnsPacketProxy.responseCache);
         Log.i(TAG, "Exiting");
     }
 
@@ -215,13 +284,19 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
             FileOutputStream outFd = new FileOutputStream(pfd.getFileDescriptor());
 
             // Now we are connected. Set the flag and show the message.
-            if (notify != null)
-                notify.run(AdVpnService.VPN_STATUS_RUNNING);
+            synchronized (reloadLock) {
+                connected = true;
+                if (notify != null)
+                    notify.run(rulesLoaded ? AdVpnService.VPN_STATUS_RUNNING : AdVpnService.VPN_STATUS_RUNNING_LOADING_RULES);
+            }
 
             // We keep forwarding packets till something goes wrong.
             while (doOne(inputStream, outFd, packet))
                 ;
         } finally {
+            synchronized (reloadLock) {
+                connected = false;
+            }
             mBlockFd = FileHelper.closeOrWarn(mBlockFd, TAG, "runVpn: Could not close blockFd");
         }
     }
@@ -251,7 +326,7 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
         }
 
         Log.d(TAG, "doOne: Polling " + polls.length + " file descriptors");
-        int result = FileHelper.poll(polls, -1);
+        int result = FileHelper.poll(polls, getStaleTimeout());
         if (blockFd.revents != 0) {
             Log.i(TAG, "Told to stop VPN");
             return false;
@@ -265,11 +340,24 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
             while (iter.hasNext()) {
                 i++;
                 WaitingOnSocketPacket wosp = iter.next();
-                if ((polls[i + 2].revents & OsConstants.POLLIN) != 0) {
+                if ((polls[i + 2].revents & (OsConstants.POLLIN | OsConstants.POLLERR)) != 0) {
                     Log.d(TAG, "Read from DNS socket" + wosp.socket);
-                    iter.remove();
-                    handleRawDnsResponse(wosp.packet, wosp.socket);
-                    wosp.socket.close();
+                    if (handleRawDnsResponse(wosp)) {
+                        iter.remove();
+                        wosp.socket.close();
+                    }
+                }
+            }
+        }
+        // Answer requests upstream is slow to answer from stale responses. Their sockets are
+        // still read, to refresh the responses.
+        {
+            long now = System.currentTimeMillis();
+            for (WaitingOnSocketPacket wosp : dnsIn) {
+                if (wosp.packet != null && !wosp.staleChecked && now >= wosp.staleDeadline()) {
+                    wosp.staleChecked = true;
+                    if (dnsPacketProxy.handleDnsTimeout(wosp.packet))
+                        wosp.packet = null;
                 }
             }
         }
@@ -282,26 +370,71 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
             readPacketFromDevice(inputStream, packet);
         }
 
-        // pcap4j has some sort of properties cache in the packet factory. This cache leaks, so
-        // we need to clean it up.
-        if (++pcap4jFactoryClearCacheCounter % PCAP4J_FACTORY_CLEAR_NASTY_CACHE_EVERY == 0) {
-            try {
-                PacketFactoryPropertiesLoader l = PacketFactoryPropertiesLoader.getInstance();
-                Field field = l.getClass().getDeclaredField("loader");
-                field.setAccessible(true);
-                PropertiesLoader loader = (PropertiesLoader) field.get(l);
-                Log.d(TAG, "Cleaning cache");
-                loader.clearCache();
-            } catch (NoSuchFieldException e) {
-                Log.e(TAG, "Cannot find declared loader field", e);
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "Cannot get declared loader field", e);
-            }
-        }
+        if (System.currentTimeMillis() - responseCacheSavedAt >= DNS_CACHE_SAVE_INTERVAL_MILLIS)
+            saveResponseCache(true);
 
         return true;
     }
 
+    /**
+     * Loads the DNS responses saved by a previous run, so the cache is warm right away.
+     */
+    private void loadResponseCache() {
+        responseCacheLoaded = true;
+        responseCacheSavedAt = System.currentTimeMillis();
+        File file = new File(vpnService.getCacheDir(), DNS_CACHE_FILE_NAME);
+        try {
+            int loaded = dnsPacketProxy.responseCache.load(file, System.currentTimeMillis());
+            Log.i(TAG, "loadResponseCache: Loaded " + loaded + " DNS responses");
+        } catch (IOException e) {
+            Log.w(TAG, "loadResponseCache: Could not load DNS responses", e);
+            dnsPacketProxy.responseCache.clear();
+        }
+    }
+
+    /**
+     * Saves the DNS responses, so they can be loaded when the VPN is started again.
+     *
+     * @param background Whether to write the file in the background. The snapshot of the
+     *                   responses is always taken on the calling thread.
+     */
+    private void saveResponseCache(boolean background) {
+        responseCacheSavedAt = System.currentTimeMillis();
+        final File file = new File(vpnService.getCacheDir(), DNS_CACHE_FILE_NAME);
+        final byte[] snapshot = dnsPacketProxy.responseCache.snapshot(responseCacheSavedAt);
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DnsResponseCache.writeSnapshot(file, snapshot);
+                    Log.d(TAG, "saveResponseCache: Saved " + snapshot.length + " bytes of DNS responses");
+                } catch (IOException e) {
+                    Log.w(TAG, "saveResponseCache: Could not save DNS responses", e);
+                }
+            }
+        };
+        if (background)
+            new Thread(writer, "DnsResponseCacheWriter").start();
+        else
+            writer.run();
+    }
+
+    /**
+     * @return The time until the next request should be answered from stale responses, or -1.
+     */
+    private int getStaleTimeout() {
+        long now = System.currentTimeMillis();
+        long timeout = -1;
+        for (WaitingOnSocketPacket wosp : dnsIn) {
+            if (wosp.packet != null && !wosp.staleChecked) {
+                long remaining = Math.max(wosp.staleDeadline() - now, 0);
+                if (timeout < 0 || remaining < timeout)
+                    timeout = remaining;
+            }
+        }
+        return (int) timeout;
+    }
+
     private void writeToDevice(FileOutputStream outFd) throws VpnNetworkException {
         try {
             outFd.write(deviceWrites.poll());
@@ -328,12 +461,25 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
             return;
         }
 
-        final byte[] readPacket = Arrays.copyOfRange(packet, 0, length);
+        dnsPacketProxy.handleDnsRequest(packet, length);
+    }
 
-        dnsPacketProxy.handleDnsRequest(readPacket);
+    public void forwardPacket(DatagramPacket outPacket, byte[] requestPacket) throws VpnNetworkException {
+        forwardPacket(outPacket, requestPacket, requestPacket != null);
     }
 
-    public void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket) throws VpnNetworkException {
+    public void refreshPacket(DatagramPacket outPacket) throws VpnNetworkException {
+        forwardPacket(outPacket, null, true);
+    }
+
+    /**
+     * Sends a packet to a remote location.
+     *
+     * @param outPacket       The packet to send
+     * @param requestPacket   The request packet to answer, or null
+     * @param waitForResponse Whether to wait for a response, and pass it to the proxy
+     */
+    private void forwardPacket(DatagramPacket outPacket, byte[] requestPacket, boolean waitForResponse) throws VpnNetworkException {
         DatagramSocket dnsSocket = null;
         try {
             // Packets to be sent to the real DNS server will need to be protected from the VPN
@@ -341,14 +487,20 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
 
             vpnService.protect(dnsSocket);
 
+            // Only receive datagrams from the server the query is sent to
+            dnsSocket.connect(outPacket.getAddress(), outPacket.getPort());
             dnsSocket.send(outPacket);
 
-            if (parsedPacket != null)
-                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            else
+            if (waitForResponse) {
+                byte[] query = Arrays.copyOfRange(outPacket.getData(), outPacket.getOffset(), outPacket.getOffset() + outPacket.getLength());
+                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, query, requestPacket));
+            } else {
                 FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
+            }
         } catch (IOException e) {
             FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
+            if (requestPacket != null)
+                dnsPacketProxy.handleDnsFailure(requestPacket);
             if (e.getCause() instanceof ErrnoException) {
                 ErrnoException errnoExc = (ErrnoException) e.getCause();
                 if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
@@ -360,15 +512,30 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
         }
     }
 
-    private void handleRawDnsResponse(IpPacket parsedPacket, DatagramSocket dnsSocket) throws IOException {
+    /**
+     * Reads a response from a DNS socket, and passes it to the proxy.
+     *
+     * @param wosp The socket, and the query sent on it
+     * @return true if the socket is done with, false if the datagram read did not answer the
+     * query, so the socket is still waited for.
+     */
+    private boolean handleRawDnsResponse(WaitingOnSocketPacket wosp) {
         byte[] datagramData = new byte[1024];
         DatagramPacket replyPacket = new DatagramPacket(datagramData, datagramData.length);
-        dnsSocket.receive(replyPacket);
-        dnsPacketProxy.handleDnsResponse(parsedPacket, datagramData);
+        try {
+            wosp.socket.receive(replyPacket);
+        } catch (IOException e) {
+            // The socket is connected, so errors like an unreachable port are reported here.
+            Log.w(TAG, "handleRawDnsResponse: Could not receive response from upstream", e);
+            if (wosp.packet != null)
+                dnsPacketProxy.handleDnsFailure(wosp.packet);
+            return true;
+        }
+        return dnsPacketProxy.handleDnsResponse(wosp.query, wosp.packet, Arrays.copyOf(datagramData, replyPacket.getLength()));
     }
 
-    public void queueDeviceWrite(IpPacket ipOutPacket) {
-        deviceWrites.add(ipOutPacket.getRawData());
+    public void queueDeviceWrite(byte[] ipOutPacket) {
+        deviceWrites.add(ipOutPacket);
     }
 
     private void newDNSServer(VpnService.Builder builder, String format, byte[] ipv6Template, InetAddress addr) throws UnknownHostException {
@@ -497,15 +664,21 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
     }
 
     /**
-     * Helper class holding a socket, the packet we are waiting the answer for, and a time
+     * Helper class holding a socket, the query sent on it, the packet we are waiting the
+     * answer for, and a time. The packet is null if the answer refreshes a cached response,
+     * or the request was answered from a stale response already.
      */
     private static class WaitingOnSocketPacket {
         final DatagramSocket socket;
-        final IpPacket packet;
+        final byte[] query;
+        byte[] packet;
+        /* Whether we tried to answer from a stale response */
+        boolean staleChecked;
         private final long time;
 
-        WaitingOnSocketPacket(DatagramSocket socket, IpPacket packet) {
+        WaitingOnSocketPacket(DatagramSocket socket, byte[] query, byte[] packet) {
             this.socket = socket;
+            this.query = query;
             this.packet = packet;
             this.time = System.currentTimeMillis();
         }
@@ -513,28 +686,37 @@ class AdVpnThread implements Runnable, DnsPacketProxy.EventLoop {
         long ageSeconds() {
             return (System.currentTimeMillis() - time) / 1000;
         }
+
+        long staleDeadline() {
+            return time + DNS_STALE_TIMEOUT_MILLIS;
+        }
     }
 
     /**
-     * Queue of WaitingOnSocketPacket, bound on time and space.
+     * Queue of WaitingOnSocketPacket, bound on time and space. The proxy is told about the
+     * requests of dropped sockets, so the queries are not waited for anymore.
      */
-    private static class WospList implements Iterable<WaitingOnSocketPacket> {
+    private class WospList implements Iterable<WaitingOnSocketPacket> {
         private final LinkedList<WaitingOnSocketPacket> list = new LinkedList<WaitingOnSocketPacket>();
 
         void add(WaitingOnSocketPacket wosp) {
             if (list.size() > DNS_MAXIMUM_WAITING) {
                 Log.d(TAG, "Dropping socket due to space constraints: " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
+                drop(list.remove());
             }
             while (!list.isEmpty() && list.element().ageSeconds() > DNS_TIMEOUT_SEC) {
                 Log.d(TAG, "Timeout on socket " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
+                drop(list.remove());
             }
             list.add(wosp);
         }
 
+        private void drop(WaitingOnSocketPacket wosp) {
+            wosp.socket.close();
+            if (wosp.packet != null)
+                dnsPacketProxy.handleDnsFailure(wosp.packet);
+        }
+
         public Iterator<WaitingOnSocketPacket> iterator() {
             return list.iterator();
         }
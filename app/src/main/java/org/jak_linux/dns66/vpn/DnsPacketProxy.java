@@ -12,16 +12,10 @@
  */
 package org.jak_linux.dns66.vpn;
 
-import android.content.Context;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.jak_linux.dns66.db.RuleDatabase;
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.IpV6Packet;
-import org.pcap4j.packet.UdpPacket;
-import org.pcap4j.packet.UnknownPacket;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
@@ -33,15 +27,32 @@ import org.xbill.DNS.TextParseException;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * Creates and parses packets, and sends packets to a remote socket or the device using
  * {@link AdVpnThread}.
+ * <p>
+ * Packets are raw IP packets. Their IP and UDP headers are read in place with
+ * {@link IpUdpPacket}, and the DNS payload is handed on as an offset and length into the
+ * packet. Standard queries with a single question are only parsed as far as their question;
+ * the rest, and blocked queries, are parsed with dnsjava.
+ * <p>
+ * Responses from upstream servers are stored in a {@link DnsResponseCache}, and queries for
+ * names that are not blocked are answered from it while the responses are valid. Popular
+ * responses that expire soon are refreshed in the background when they are used. If upstream
+ * fails, or does not answer in time, expired responses are served stale as described in
+ * RFC 8767, see {@link #handleDnsTimeout(byte[])}.
+ * <p>
+ * Identical questions from several clients are only sent upstream once: While a query is in
+ * flight, later queries with the same name, type and class wait for its response, which is
+ * then sent to each of them with their own ID. Retransmissions of a request in flight, with
+ * the same source and ID, are dropped, as its response answers them.
  */
 public class DnsPacketProxy {
 
@@ -49,6 +60,12 @@ public class DnsPacketProxy {
     // Choose a value that is smaller than the time needed to unblock a host.
     private static final int NEGATIVE_CACHE_TTL_SECONDS = 5;
     private static final SOARecord NEGATIVE_CACHE_SOA_RECORD;
+    private static final int DNS_HEADER_SIZE = 12;
+    /* After this time, a query in flight is not waited for anymore, as in AdVpnThread */
+    private static final long IN_FLIGHT_TIMEOUT_MILLIS = 10 * 1000;
+    /* After this time, the stale deadline of AdVpnThread, a query in flight may have been lost */
+    static final long IN_FLIGHT_RETRY_MILLIS = 1800;
+    private static final int MAX_IN_FLIGHT_QUERIES = 1024;
 
     static {
         try {
@@ -63,7 +80,10 @@ public class DnsPacketProxy {
     }
 
     final RuleDatabase ruleDatabase;
+    final DnsResponseCache responseCache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
     private final EventLoop eventLoop;
+    /* Queries sent upstream, by question, with the requests waiting for their responses */
+    private final HashMap<DnsResponseCache.Key, InFlightQuery> inFlightQueries = new HashMap<>();
     ArrayList<InetAddress> upstreamDnsServers = new ArrayList<>();
 
     public DnsPacketProxy(EventLoop eventLoop, RuleDatabase database) {
@@ -77,59 +97,178 @@ public class DnsPacketProxy {
     }
 
     /**
-     * Initializes the rules database and the list of upstream servers.
+     * Initializes the list of upstream servers. The rules database is loaded separately, and
+     * requests are forwarded until it is.
      *
-     * @param context            The context we are operating in (for the database)
      * @param upstreamDnsServers The upstream DNS servers to use; or an empty list if no
      *                           rewriting of ip addresses takes place
-     * @throws InterruptedException If the database initialization was interrupted
      */
-    void initialize(Context context, ArrayList<InetAddress> upstreamDnsServers) throws InterruptedException {
-        ruleDatabase.initialize(context);
+    void initialize(ArrayList<InetAddress> upstreamDnsServers) {
         this.upstreamDnsServers = upstreamDnsServers;
     }
 
     /**
-     * Handles a responsePayload from an upstream DNS server
+     * Handles a responsePayload from an upstream DNS server. Requests waiting for the same
+     * query get a copy of it, if the query in flight was last sent for this request.
+     * <p>
+     * Datagrams that do not answer the query sent are ignored, so they are neither cached nor
+     * passed on. Error responses may leave out the question, the requests then only get a
+     * copy of the header.
      *
-     * @param requestPacket   The original request packet
+     * @param query           The payload of the query sent upstream
+     * @param requestPacket   The original request packet, or null if the request refreshed
+     *                        a cached response, or was answered from a stale one
      * @param responsePayload The payload of the response
+     * @return true if the response answers the query, false if it was ignored.
      */
-    void handleDnsResponse(IpPacket requestPacket, byte[] responsePayload) {
-        UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
-        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
-                .srcPort(udpOutPacket.getHeader().getDstPort())
-                .dstPort(udpOutPacket.getHeader().getSrcPort())
-                .srcAddr(requestPacket.getHeader().getDstAddr())
-                .dstAddr(requestPacket.getHeader().getSrcAddr())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .payloadBuilder(
-                        new UnknownPacket.Builder()
-                                .rawData(responsePayload)
-                );
-
-
-        IpPacket ipOutPacket;
-        if (requestPacket instanceof IpV4Packet) {
-            ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
-                    .srcAddr((Inet4Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
-                    .correctChecksumAtBuild(true)
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
+    boolean handleDnsResponse(byte[] query, @Nullable byte[] requestPacket, byte[] responsePayload) {
+        if (responsePayload.length < DNS_HEADER_SIZE || query.length < DNS_HEADER_SIZE
+                || responsePayload[0] != query[0] || responsePayload[1] != query[1] || (responsePayload[2] & 0x80) == 0) {
+            Log.w(TAG, "handleDnsResponse: Ignoring datagram that is not a response to the query");
+            return false;
+        }
+        // Upstream may not support EDNS, so the flags of the response may differ from the query.
+        DnsResponseCache.Key queryKey = DnsResponseCache.Key.fromMessage(query, query.length);
+        DnsResponseCache.Key responseKey = DnsResponseCache.Key.fromMessage(responsePayload, responsePayload.length);
+        boolean sameQuestion = queryKey != null && responseKey != null && Arrays.equals(responseKey.question, queryKey.question);
+        boolean headerOnly = responsePayload[4] == 0 && responsePayload[5] == 0 && (responsePayload[3] & 0xF) != Rcode.NOERROR;
+        if (!sameQuestion && !headerOnly) {
+            Log.w(TAG, "handleDnsResponse: Ignoring response that does not match the question of the query");
+            return false;
+        }
 
-        } else {
-            ipOutPacket = new IpV6Packet.Builder((IpV6Packet) requestPacket)
-                    .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
+        if (sameQuestion)
+            responseCache.put(responsePayload, responsePayload.length, System.currentTimeMillis());
+        if (requestPacket == null)
+            return true;
+        // RFC 8767, section 4: A stale answer is better than a server failure.
+        if ((responsePayload[3] & 0xF) == Rcode.SERVFAIL && handleDnsTimeout(requestPacket))
+            return true;
+        queueDnsResponse(requestPacket, udpOffset(requestPacket), responsePayload);
+
+        DnsResponseCache.Key key = requestKey(requestPacket);
+        InFlightQuery inFlightQuery = key != null ? inFlightQueries.get(key) : null;
+        // The query may have been sent again for another request, which then owns it.
+        if (inFlightQuery == null || !Arrays.equals(inFlightQuery.requestPacket, requestPacket))
+            return true;
+
+        inFlightQueries.remove(key);
+        for (byte[] waitingPacket : inFlightQuery.waitingPackets) {
+            int udpOffset = udpOffset(waitingPacket);
+            int dnsOffset = IpUdpPacket.payloadOffset(udpOffset);
+            byte[] response = sameQuestion
+                    ? DnsResponseCache.copyResponse(responsePayload, waitingPacket, dnsOffset, key)
+                    : DnsResponseCache.copyHeader(responsePayload, waitingPacket, dnsOffset);
+            queueDnsResponse(waitingPacket, udpOffset, response);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a request that upstream did not answer in time, by answering it with a cached
+     * response, even if it expired. Requests waiting for the same query are answered, too.
+     *
+     * @param requestPacket The original request packet
+     * @return true if the request was answered, false if no response is cached.
+     */
+    boolean handleDnsTimeout(byte[] requestPacket) {
+        return handleDnsTimeout(requestPacket, false);
+    }
+
+    /**
+     * Handles a request that could not be sent upstream, or whose socket was closed before
+     * upstream answered, by answering it with a cached response, even if it expired. Requests waiting for the same query are answered, too,
+     * if possible; otherwise they are left to their clients to retry.
+     *
+     * @param requestPacket The original request packet
+     * @return true if the request was answered, false if no response is cached.
+     */
+    boolean handleDnsFailure(byte[] requestPacket) {
+        return handleDnsTimeout(requestPacket, true);
+    }
+
+    /**
+     * Answers a request, and the requests waiting for the same query, with a cached response.
+     *
+     * @param requestPacket The original request packet
+     * @param failed        Whether the query failed, and will not be answered anymore
+     * @return true if the original request was answered.
+     */
+    private boolean handleDnsTimeout(byte[] requestPacket, boolean failed) {
+        long now = System.currentTimeMillis();
+        boolean answered = queueStaleResponse(requestPacket, now);
+        if (!answered && !failed)
+            return false;
+
+        DnsResponseCache.Key key = requestKey(requestPacket);
+        InFlightQuery inFlightQuery = key != null ? inFlightQueries.get(key) : null;
+        // The query may have timed out and been replaced by a newer one.
+        if (inFlightQuery == null || !Arrays.equals(inFlightQuery.requestPacket, requestPacket))
+            return answered;
+
+        inFlightQueries.remove(key);
+        for (byte[] waitingPacket : inFlightQuery.waitingPackets)
+            queueStaleResponse(waitingPacket, now);
+        return answered;
+    }
+
+    /**
+     * Answers a request with a cached response, even if it expired.
+     *
+     * @return true if the request was answered, false if no response is cached.
+     */
+    private boolean queueStaleResponse(byte[] requestPacket, long now) {
+        int udpOffset = udpOffset(requestPacket);
+        byte[] staleResponse = responseCache.getStale(requestPacket, IpUdpPacket.payloadOffset(udpOffset), IpUdpPacket.payloadLength(requestPacket, udpOffset), now);
+        if (staleResponse == null)
+            return false;
+
+        Log.i(TAG, "handleDnsTimeout: Upstream failed, answering from cache");
+        queueDnsResponse(requestPacket, udpOffset, staleResponse);
+        return true;
+    }
+
+    /**
+     * Looks up the query in flight for a question.
+     *
+     * @param key The question
+     * @param now The current time, in milliseconds
+     * @return The query, or null if there is none, or it timed out.
+     */
+    private InFlightQuery getInFlightQuery(DnsResponseCache.Key key, long now) {
+        InFlightQuery inFlightQuery = inFlightQueries.get(key);
+        if (inFlightQuery == null || now - inFlightQuery.sentAt >= IN_FLIGHT_TIMEOUT_MILLIS)
+            return null;
+        return inFlightQuery;
+    }
+
+    /**
+     * Registers a query that is about to be sent upstream.
+     *
+     * @param key           The question of the query
+     * @param requestPacket The request packet
+     * @param now           The current time, in milliseconds
+     */
+    private void addInFlightQuery(DnsResponseCache.Key key, byte[] requestPacket, long now) {
+        if (inFlightQueries.size() >= MAX_IN_FLIGHT_QUERIES) {
+            Iterator<InFlightQuery> iter = inFlightQueries.values().iterator();
+            while (iter.hasNext()) {
+                if (now - iter.next().sentAt >= IN_FLIGHT_TIMEOUT_MILLIS)
+                    iter.remove();
+            }
         }
+        inFlightQueries.put(key, new InFlightQuery(requestPacket, now));
+    }
 
-        eventLoop.queueDeviceWrite(ipOutPacket);
+    /**
+     * Sends a response to a request to the device.
+     *
+     * @param requestPacket   A buffer containing the original request packet
+     * @param udpOffset       The offset of the UDP header of the request
+     * @param responsePayload The payload of the response
+     */
+    private void queueDnsResponse(byte[] requestPacket, int udpOffset, byte[] responsePayload) {
+        eventLoop.queueDeviceWrite(IpUdpPacket.newResponse(requestPacket, udpOffset, responsePayload));
     }
 
     /**
@@ -139,91 +278,281 @@ public class DnsPacketProxy {
      * @throws AdVpnThread.VpnNetworkException If some network error occurred
      */
     void handleDnsRequest(byte[] packetData) throws AdVpnThread.VpnNetworkException {
+        handleDnsRequest(packetData, packetData.length);
+    }
 
-        IpPacket parsedPacket = null;
-        try {
-            parsedPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
-        } catch (Exception e) {
-            Log.i(TAG, "handleDnsRequest: Discarding invalid IP packet", e);
-            return;
-        }
-
-        if (!(parsedPacket.getPayload() instanceof UdpPacket)) {
-            Log.i(TAG, "handleDnsRequest: Discarding unknown packet type " + parsedPacket.getPayload());
+    /**
+     * Handles a DNS request, by either blocking it or forwarding it to the remote location.
+     * The packet is read in place, and only copied if it has to be kept for later.
+     *
+     * @param packetData A buffer containing the packet
+     * @param length     The length of the packet
+     * @throws AdVpnThread.VpnNetworkException If some network error occurred
+     */
+    void handleDnsRequest(byte[] packetData, int length) throws AdVpnThread.VpnNetworkException {
+        int udpOffset = IpUdpPacket.udpOffset(packetData, length);
+        if (udpOffset < 0) {
+            Log.i(TAG, "handleDnsRequest: Discarding invalid or non-UDP IP packet");
             return;
         }
 
-        InetAddress destAddr = translateDestinationAdress(parsedPacket);
+        InetAddress destAddr = translateDestinationAdress(packetData);
         if (destAddr == null)
             return;
 
-        UdpPacket parsedUdp = (UdpPacket) parsedPacket.getPayload();
-
-
-        if (parsedUdp.getPayload() == null) {
-            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload: " + parsedUdp);
+        int dnsOffset = IpUdpPacket.payloadOffset(udpOffset);
+        int dnsLength = IpUdpPacket.payloadLength(packetData, udpOffset);
+        if (dnsLength == 0) {
+            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload");
 
             // Let's be nice to Firefox. Firefox uses an empty UDP packet to
             // the gateway to reduce the RTT. For further details, please see
             // https://bugzilla.mozilla.org/show_bug.cgi?id=888268
-            DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, destAddr, parsedUdp.getHeader().getDstPort().valueAsInt());
+            DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, destAddr, IpUdpPacket.destinationPort(packetData, udpOffset));
             eventLoop.forwardPacket(outPacket, null);
             return;
         }
 
-        byte[] dnsRawData = (parsedUdp).getPayload().getRawData();
-        Message dnsMsg;
-        try {
-            dnsMsg = new Message(dnsRawData);
-        } catch (IOException e) {
-            Log.i(TAG, "handleDnsRequest: Discarding non-DNS or invalid packet", e);
+        DnsResponseCache.Key key = DnsResponseCache.Key.fromMessage(packetData, dnsOffset, dnsLength);
+        if (key == null) {
+            handleOtherDnsRequest(packetData, length, udpOffset, destAddr);
             return;
         }
-        if (dnsMsg.getQuestion() == null) {
-            Log.i(TAG, "handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
+        // The question directly follows the header, so its name is never compressed.
+        if (ruleDatabase.isBlocked(packetData, dnsOffset + DNS_HEADER_SIZE, dnsOffset + dnsLength)) {
+            Message dnsMsg = parseDnsMessage(packetData, udpOffset);
+            if (dnsMsg == null)
+                return;
+            Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Blocked!");
+            queueBlockedResponse(packetData, udpOffset, dnsMsg);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        byte[] cachedResponse = responseCache.get(packetData, dnsOffset, dnsLength, now);
+        if (cachedResponse != null) {
+            Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Allowed, answered from cache");
+            queueDnsResponse(packetData, udpOffset, cachedResponse);
+            if (responseCache.startRefresh(packetData, dnsOffset, dnsLength, now)) {
+                Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Refreshing from " + destAddr);
+                DatagramPacket outPacket = new DatagramPacket(packetData, dnsOffset, dnsLength, destAddr, IpUdpPacket.destinationPort(packetData, udpOffset));
+                eventLoop.refreshPacket(outPacket);
+            }
+            return;
+        }
+
+        InFlightQuery inFlightQuery = getInFlightQuery(key, now);
+        if (inFlightQuery != null && now - inFlightQuery.sentAt >= IN_FLIGHT_RETRY_MILLIS) {
+            // The query or its response may have been lost, so the query is sent again for
+            // this request, and the requests waiting for it.
+            Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Allowed, sending again to " + destAddr);
+            byte[] requestPacket = Arrays.copyOf(packetData, length);
+            inFlightQuery.resend(requestPacket, udpOffset, now);
+            forwardDnsRequest(requestPacket, udpOffset, destAddr);
             return;
         }
-        String dnsQueryName = dnsMsg.getQuestion().getName().toString(true);
-        if (!ruleDatabase.isBlocked(dnsQueryName.toLowerCase(Locale.ENGLISH))) {
+        if (inFlightQuery != null && inFlightQuery.contains(packetData, udpOffset)) {
+            Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Allowed, dropping retransmission");
+            return;
+        }
+        if (inFlightQuery != null) {
+            Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Allowed, waiting for the same query");
+            inFlightQuery.waitingPackets.add(Arrays.copyOf(packetData, length));
+            return;
+        }
+
+        Log.i(TAG, "handleDnsRequest: DNS Name " + key + " Allowed, sending to " + destAddr);
+        byte[] requestPacket = Arrays.copyOf(packetData, length);
+        addInFlightQuery(key, requestPacket, now);
+        forwardDnsRequest(requestPacket, udpOffset, destAddr);
+    }
+
+    /**
+     * Handles a DNS request that is not a standard query with a single question. Those are
+     * rare, so they are parsed completely, and blocked or forwarded, but not cached.
+     */
+    private void handleOtherDnsRequest(byte[] packetData, int length, int udpOffset, InetAddress destAddr) throws AdVpnThread.VpnNetworkException {
+        Message dnsMsg = parseDnsMessage(packetData, udpOffset);
+        if (dnsMsg == null)
+            return;
+
+        int dnsOffset = IpUdpPacket.payloadOffset(udpOffset);
+        int dnsLength = IpUdpPacket.payloadLength(packetData, udpOffset);
+        Name dnsQueryName = dnsMsg.getQuestion().getName();
+        if (!ruleDatabase.isBlocked(packetData, dnsOffset + DNS_HEADER_SIZE, dnsOffset + dnsLength)) {
             Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + destAddr);
-            DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, destAddr, parsedUdp.getHeader().getDstPort().valueAsInt());
-            eventLoop.forwardPacket(outPacket, parsedPacket);
+            forwardDnsRequest(Arrays.copyOf(packetData, length), udpOffset, destAddr);
         } else {
             Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Blocked!");
-            dnsMsg.getHeader().setFlag(Flags.QR);
-            dnsMsg.getHeader().setRcode(Rcode.NOERROR);
-            dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
-            handleDnsResponse(parsedPacket, dnsMsg.toWire());
+            queueBlockedResponse(packetData, udpOffset, dnsMsg);
         }
     }
 
+    /**
+     * Parses the DNS payload of a packet.
+     *
+     * @param packetData A buffer containing the packet
+     * @param udpOffset  The offset of the UDP header of the packet
+     * @return The message, or null if it is invalid or has no question.
+     */
+    private static Message parseDnsMessage(byte[] packetData, int udpOffset) {
+        int dnsOffset = IpUdpPacket.payloadOffset(udpOffset);
+        Message dnsMsg;
+        try {
+            dnsMsg = new Message(Arrays.copyOfRange(packetData, dnsOffset, dnsOffset + IpUdpPacket.payloadLength(packetData, udpOffset)));
+        } catch (IOException e) {
+            Log.i(TAG, "handleDnsRequest: Discarding non-DNS or invalid packet", e);
+            return null;
+        }
+        if (dnsMsg.getQuestion() == null) {
+            Log.i(TAG, "handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
+            return null;
+        }
+        return dnsMsg;
+    }
+
+    /**
+     * Sends a request to the upstream server, and waits for its response.
+     *
+     * @param requestPacket The request packet, which must not be changed anymore
+     * @param udpOffset     The offset of the UDP header of the request
+     * @param destAddr      The address of the upstream server
+     */
+    private void forwardDnsRequest(byte[] requestPacket, int udpOffset, InetAddress destAddr) throws AdVpnThread.VpnNetworkException {
+        DatagramPacket outPacket = new DatagramPacket(requestPacket, IpUdpPacket.payloadOffset(udpOffset), IpUdpPacket.payloadLength(requestPacket, udpOffset),
+                destAddr, IpUdpPacket.destinationPort(requestPacket, udpOffset));
+        eventLoop.forwardPacket(outPacket, requestPacket);
+    }
+
+    /**
+     * Answers a blocked request with a negative response.
+     */
+    private void queueBlockedResponse(byte[] packetData, int udpOffset, Message dnsMsg) {
+        dnsMsg.getHeader().setFlag(Flags.QR);
+        dnsMsg.getHeader().setRcode(Rcode.NOERROR);
+        dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
+        queueDnsResponse(packetData, udpOffset, dnsMsg.toWire());
+    }
+
     /**
      * Translates the destination address in the packet to the real one. In
      * case address translation is not used, this just returns the original one.
      *
-     * @param parsedPacket Packet to get destination address for.
+     * @param packetData Packet to get destination address for.
      * @return The translated address or null on failure.
      */
-    private InetAddress translateDestinationAdress(IpPacket parsedPacket) {
+    private InetAddress translateDestinationAdress(byte[] packetData) {
         InetAddress destAddr = null;
         if (upstreamDnsServers.size() > 0) {
-            byte[] addr = parsedPacket.getHeader().getDstAddr().getAddress();
-            int index = addr[addr.length - 1] - 2;
+            int index = packetData[IpUdpPacket.destinationAddressOffset(packetData) + IpUdpPacket.addressLength(packetData) - 1] - 2;
 
             try {
                 destAddr = upstreamDnsServers.get(index);
             } catch (Exception e) {
-                Log.e(TAG, "handleDnsRequest: Cannot handle packets to" + parsedPacket.getHeader().getDstAddr().getHostAddress(), e);
+                Log.e(TAG, "handleDnsRequest: Cannot handle packets to" + getDestinationAddress(packetData).getHostAddress(), e);
                 return null;
             }
-            Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %s AKA %d AKA %s", parsedPacket.getHeader().getDstAddr().getHostAddress(), index, destAddr));
+            Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %s AKA %d AKA %s", getDestinationAddress(packetData).getHostAddress(), index, destAddr));
         } else {
-            destAddr = parsedPacket.getHeader().getDstAddr();
-            Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %s - is upstream", parsedPacket.getHeader().getDstAddr().getHostAddress()));
+            destAddr = getDestinationAddress(packetData);
+            Log.d(TAG, String.format("handleDnsRequest: Incoming packet to %s - is upstream", destAddr.getHostAddress()));
         }
         return destAddr;
     }
 
+    private static InetAddress getDestinationAddress(byte[] packetData) {
+        int offset = IpUdpPacket.destinationAddressOffset(packetData);
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(packetData, offset, offset + IpUdpPacket.addressLength(packetData)));
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of an invalid length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The offset of the UDP header of a request that was decoded before.
+     */
+    private static int udpOffset(byte[] requestPacket) {
+        return IpUdpPacket.udpOffset(requestPacket, requestPacket.length);
+    }
+
+    /**
+     * @return The key of a request that was decoded before, or null if it is not cached.
+     */
+    private static DnsResponseCache.Key requestKey(byte[] requestPacket) {
+        int udpOffset = udpOffset(requestPacket);
+        return DnsResponseCache.Key.fromMessage(requestPacket, IpUdpPacket.payloadOffset(udpOffset), IpUdpPacket.payloadLength(requestPacket, udpOffset));
+    }
+
+    /**
+     * A query sent upstream, and the requests waiting for its response besides the one it
+     * was sent for.
+     */
+    private static class InFlightQuery {
+        byte[] requestPacket;
+        long sentAt;
+        final ArrayList<byte[]> waitingPackets = new ArrayList<>();
+        /* Requests the query was sent for before, which are still answered by their own sockets */
+        final ArrayList<byte[]> resentPackets = new ArrayList<>();
+
+        InFlightQuery(byte[] requestPacket, long sentAt) {
+            this.requestPacket = requestPacket;
+            this.sentAt = sentAt;
+        }
+
+        /**
+         * Checks whether a request is a retransmission of one that waits for this query.
+         *
+         * @param packet    A buffer containing the request packet
+         * @param udpOffset The offset of the UDP header of the request
+         * @return true if a waiting request has the same source address, port and DNS ID.
+         */
+        boolean contains(byte[] packet, int udpOffset) {
+            if (isRetransmission(requestPacket, packet, udpOffset))
+                return true;
+            for (byte[] waitingPacket : waitingPackets) {
+                if (isRetransmission(waitingPacket, packet, udpOffset))
+                    return true;
+            }
+            for (byte[] resentPacket : resentPackets) {
+                if (isRetransmission(resentPacket, packet, udpOffset))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Makes a request the one sent upstream, as the query is sent again for it. The
+         * request sent before is still answered by the socket it was sent on, so it does not
+         * wait for the new query.
+         *
+         * @param packet    The request packet
+         * @param udpOffset The offset of the UDP header of the request
+         * @param now       The current time, in milliseconds
+         */
+        void resend(byte[] packet, int udpOffset, long now) {
+            Iterator<byte[]> iter = waitingPackets.iterator();
+            while (iter.hasNext()) {
+                if (isRetransmission(iter.next(), packet, udpOffset))
+                    iter.remove();
+            }
+            if (!isRetransmission(requestPacket, packet, udpOffset))
+                resentPackets.add(requestPacket);
+            requestPacket = packet;
+            sentAt = now;
+        }
+
+        private static boolean isRetransmission(byte[] original, byte[] packet, int udpOffset) {
+            int originalUdpOffset = udpOffset(original);
+            int originalDnsOffset = IpUdpPacket.payloadOffset(originalUdpOffset);
+            int dnsOffset = IpUdpPacket.payloadOffset(udpOffset);
+            return IpUdpPacket.isSameSource(original, originalUdpOffset, packet, udpOffset)
+                    && original[originalDnsOffset] == packet[dnsOffset]
+                    && original[originalDnsOffset + 1] == packet[dnsOffset + 1];
+        }
+    }
+
     /**
      * Interface abstracting away {@link AdVpnThread}.
      */
@@ -233,16 +562,33 @@ public class DnsPacketProxy {
          *
          * @param packet        The packet to send
          * @param requestPacket If specified, the event loop must wait for a response, and then
-         *                      call {@link #handleDnsResponse(IpPacket, byte[])} for the data
-         *                      of the response, with this packet as the first argument.
+         *                      call {@link #handleDnsResponse(byte[], byte[], byte[])} with
+         *                      the data of the packet sent, this packet, and the data of the
+         *                      response. If that returns false, it must keep waiting. If the
+         *                      packet cannot be sent, or no response can be received, it must
+         *                      call {@link #handleDnsFailure(byte[])} with this packet. If
+         *                      there is no response within a short time, it must call
+         *                      {@link #handleDnsTimeout(byte[])} with this packet, and if
+         *                      that returns true, pass null instead of this packet to
+         *                      {@link #handleDnsResponse(byte[], byte[], byte[])}.
+         */
+        void forwardPacket(DatagramPacket packet, byte[] requestPacket) throws AdVpnThread.VpnNetworkException;
+
+        /**
+         * Called to send a request refreshing a cached response to a remote location. The
+         * event loop must wait for a response, and then call
+         * {@link #handleDnsResponse(byte[], byte[], byte[])} with the data of the packet sent,
+         * null, and the data of the response. If that returns false, it must keep waiting.
+         *
+         * @param packet The packet to send
          */
-        void forwardPacket(DatagramPacket packet, IpPacket requestPacket) throws AdVpnThread.VpnNetworkException;
+        void refreshPacket(DatagramPacket packet) throws AdVpnThread.VpnNetworkException;
 
         /**
          * Write an IP packet to the local TUN device
          *
          * @param packet The packet to write (a response to a DNS request)
          */
-        void queueDeviceWrite(IpPacket packet);
+        void queueDeviceWrite(byte[] packet);
     }
 }
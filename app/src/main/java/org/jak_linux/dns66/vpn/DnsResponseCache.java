@@ -0,0 +1,860 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.vpn;
+
+import android.support.annotation.Nullable;
+
+import org.jak_linux.dns66.FileHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded cache of responses from upstream DNS servers, so that names that were resolved
+ * recently are answered without asking upstream again.
+ * <p>
+ * Responses are stored in DNS wire format, keyed by the name, type and class of their
+ * question, and by whether the message has an EDNS OPT record, and its DO and CD bits, as
+ * the records of a response depend on those (RFC 6891, RFC 4035). A cached response is
+ * answered with the ID of the new query, and with the TTL of each record decreased by the
+ * time it spent in the cache. A response is cached for as long as the shortest TTL of its
+ * answers. Negative responses, that is NXDOMAIN or no answers, are cached according to
+ * RFC 2308: for the TTL of the SOA record in the authority section, but no longer than the
+ * minimum field of that record, and not at all without one. Truncated responses and other
+ * errors are not cached.
+ * <p>
+ * The size of the cache is limited by the bytes used by the responses. Which responses stay
+ * is decided by W-TinyLFU: New responses enter a small LRU window. Responses leaving the
+ * window compete with the least recently used response of the main space, and the one that
+ * was used less often recently, according to a {@link FrequencySketch}, is evicted. The main
+ * space is a segmented LRU: Responses used again while in the probation segment move to the
+ * protected segment. This keeps popular names cached even if many names are looked up once.
+ * <p>
+ * Popular responses are refreshed ahead of time: If a response that was used at least
+ * {@link #REFRESH_MIN_FREQUENCY} times recently is used in the last tenth of its lifetime,
+ * {@link #startRefresh} tells the caller to query upstream again in the background, so that
+ * the new response is stored before the old one expires.
+ * <p>
+ * Expired responses are kept for {@link #MAX_STALE_MILLIS}, to be served stale as described
+ * in RFC 8767 when upstream does not answer in time, see {@link #getStale}. Once a stale
+ * response was served, {@link #get} keeps answering with it for
+ * {@link #STALE_RECHECK_MILLIS}, instead of letting every client wait for upstream again, and
+ * {@link #startRefresh} asks for it to be refreshed in the background.
+ * <p>
+ * The responses can be saved to a file with {@link #snapshot} and {@link #writeSnapshot}, and
+ * loaded again with {@link #load}, so the cache survives restarts. Times are wall-clock times,
+ * so the remaining TTLs of loaded responses account for the time in between, and responses
+ * that are too old to be served stale are dropped. The layout of the file is:
+ * <pre>
+ *     int      magic
+ *     int      version
+ *     int      count
+ *     count times:
+ *         byte     segment
+ *         byte     frequency
+ *         long     storedAt
+ *         short    length
+ *         byte[]   response
+ * </pre>
+ * The responses are stored from the least to the most recently used one of each segment.
+ * <p>
+ * The cache is not thread-safe; it is only used by the thread handling the packets.
+ */
+final class DnsResponseCache {
+    static final int DEFAULT_MAX_SIZE_IN_BYTES = 1024 * 1024;
+
+    /* Estimated memory used by an entry, besides the response and the question */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int TYPICAL_ENTRY_SIZE = 256;
+    private static final long MAX_TTL_SECONDS = 24 * 60 * 60;
+    /* RFC 2308, section 5: Negative answers should not be cached longer than a few hours */
+    private static final long MAX_NEGATIVE_TTL_SECONDS = 3 * 60 * 60;
+    /* How often a response must have been used recently to be refreshed ahead of time */
+    static final int REFRESH_MIN_FREQUENCY = 3;
+    /* The part of the lifetime of a response in which it is refreshed, e.g. 10 = last tenth */
+    private static final int REFRESH_WINDOW_DIVISOR = 10;
+    /* After this time, a refresh that was not answered is started again */
+    private static final long REFRESH_TIMEOUT_MILLIS = 10 * 1000;
+    /* RFC 8767, section 5: How long expired responses may be served, and their TTL then */
+    static final long MAX_STALE_MILLIS = 24 * 60 * 60 * 1000;
+    static final int STALE_TTL_SECONDS = 30;
+    /* RFC 8767, section 5: How long to answer stale right away after upstream failed */
+    static final long STALE_RECHECK_MILLIS = 30 * 1000;
+
+    private static final int MAGIC = 0x44363643; // "D66C"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /* The segments of the cache */
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final FrequencySketch sketch;
+    private final long maxSizeInBytes;
+    private final long[] maxSegmentBytes = new long[3];
+    /* Least and most recently used entry of each segment, and the bytes used by it */
+    private final Entry[] heads = new Entry[3];
+    private final Entry[] tails = new Entry[3];
+    private final long[] segmentBytes = new long[3];
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long refreshes;
+    private long staleHits;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSizeInBytes The memory the responses may use, roughly
+     */
+    DnsResponseCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        maxSegmentBytes[WINDOW] = Math.max(maxSizeInBytes / 100, 1);
+        maxSegmentBytes[PROTECTED] = (maxSizeInBytes - maxSegmentBytes[WINDOW]) * 4 / 5;
+        maxSegmentBytes[PROBATION] = maxSizeInBytes - maxSegmentBytes[WINDOW] - maxSegmentBytes[PROTECTED];
+        sketch = new FrequencySketch((int) Math.min(maxSizeInBytes / TYPICAL_ENTRY_SIZE, 1 << 20));
+    }
+
+    /**
+     * Answers a query from the cache.
+     *
+     * @param query  A buffer containing the query, in DNS wire format
+     * @param offset The offset of the query in the buffer
+     * @param length The length of the query
+     * @param now    The current time, in milliseconds
+     * @return A response to the query, or null if no response is cached, or it expired and
+     * upstream did not fail recently.
+     */
+    @Nullable
+    byte[] get(byte[] query, int offset, int length, long now) {
+        Key key = Key.fromMessage(query, offset, length);
+        if (key == null)
+            return null;
+
+        sketch.increment(key.hash);
+        Entry entry = lookup(key, now);
+        if (entry != null && now >= entry.expiresAt) {
+            if (entry.staleServedAt == 0 || now - entry.staleServedAt >= STALE_RECHECK_MILLIS)
+                entry = null;
+            else
+                staleHits++;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        onAccess(entry);
+        return entry.toResponse(query, offset, now);
+    }
+
+    /**
+     * Answers a query that upstream did not answer in time, with an expired response if
+     * necessary. Such a response has a TTL of {@link #STALE_TTL_SECONDS}.
+     *
+     * @param query  A buffer containing the query, in DNS wire format
+     * @param offset The offset of the query in the buffer
+     * @param length The length of the query
+     * @param now    The current time, in milliseconds
+     * @return A response to the query, or null if no response is cached, or it expired longer
+     * than {@link #MAX_STALE_MILLIS} ago.
+     */
+    @Nullable
+    byte[] getStale(byte[] query, int offset, int length, long now) {
+        Key key = Key.fromMessage(query, offset, length);
+        if (key == null)
+            return null;
+
+        Entry entry = lookup(key, now);
+        if (entry == null)
+            return null;
+
+        if (now >= entry.expiresAt) {
+            entry.staleServedAt = now;
+            staleHits++;
+        }
+        onAccess(entry);
+        return entry.toResponse(query, offset, now);
+    }
+
+    /**
+     * Checks whether the cached response to a query should be refreshed ahead of time. This
+     * is the case if the response is popular and expires soon. A refresh is only started once,
+     * unless it was not answered for a while; its response is stored with {@link #put}.
+     *
+     * @param query  A buffer containing the query, in DNS wire format
+     * @param offset The offset of the query in the buffer
+     * @param length The length of the query
+     * @param now    The current time, in milliseconds
+     * @return true if the caller should send the query upstream to refresh the response.
+     */
+    boolean startRefresh(byte[] query, int offset, int length, long now) {
+        Key key = Key.fromMessage(query, offset, length);
+        if (key == null)
+            return false;
+
+        Entry entry = lookup(key, now);
+        if (entry == null)
+            return false;
+        if (entry.refreshStartedAt != 0 && now - entry.refreshStartedAt < REFRESH_TIMEOUT_MILLIS)
+            return false;
+        if (now >= entry.expiresAt) {
+            // Stale responses are refreshed while they are served.
+            if (entry.staleServedAt == 0 || now - entry.staleServedAt >= STALE_RECHECK_MILLIS)
+                return false;
+        } else {
+            if (entry.expiresAt - now > (entry.expiresAt - entry.storedAt) / REFRESH_WINDOW_DIVISOR)
+                return false;
+            if (sketch.frequency(key.hash) < REFRESH_MIN_FREQUENCY)
+                return false;
+        }
+
+        entry.refreshStartedAt = now;
+        refreshes++;
+        return true;
+    }
+
+    /**
+     * Stores a response from an upstream server, if it can be cached.
+     *
+     * @param response A buffer containing the response, in DNS wire format
+     * @param length   The length of the response
+     * @param now      The current time, in milliseconds
+     * @return true if the response was stored.
+     */
+    boolean put(byte[] response, int length, long now) {
+        Entry entry = Entry.fromResponse(response, length, now);
+        if (entry == null || entry.sizeInBytes > maxSizeInBytes)
+            return false;
+
+        Entry old = entries.remove(entry.key);
+        if (old != null)
+            unlink(old);
+
+        entries.put(entry.key, entry);
+        if (old != null && old.segment != WINDOW) {
+            // A refreshed response keeps the place of the old one.
+            link(entry, old.segment);
+        } else {
+            link(entry, WINDOW);
+        }
+        evict();
+        return entries.containsKey(entry.key);
+    }
+
+    /**
+     * Creates a snapshot of the responses, to be written to a file.
+     *
+     * @param now The current time, in milliseconds
+     * @return The snapshot, in the format read by {@link #load}.
+     */
+    byte[] snapshot(long now) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(sizeInBytes(), maxSizeInBytes) + 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            int count = 0;
+            for (int segment : new int[]{PROBATION, PROTECTED, WINDOW}) {
+                for (Entry entry = heads[segment]; entry != null; entry = entry.next) {
+                    if (now - entry.expiresAt >= MAX_STALE_MILLIS)
+                        continue;
+                    out.writeByte(segment);
+                    out.writeByte(sketch.frequency(entry.key.hash));
+                    out.writeLong(entry.storedAt);
+                    out.writeShort(entry.response.length);
+                    out.write(entry.response);
+                    count++;
+                }
+            }
+            out.flush();
+            byte[] result = bytes.toByteArray();
+            result[8] = (byte) (count >>> 24);
+            result[9] = (byte) (count >>> 16);
+            result[10] = (byte) (count >>> 8);
+            result[11] = (byte) count;
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes a snapshot to a file. The snapshot is written to a temporary file first, and
+     * then renamed, so the file is replaced atomically. This may be called on any thread.
+     *
+     * @param file     The file to write
+     * @param snapshot A snapshot created by {@link #snapshot}
+     * @throws IOException If the file could not be written.
+     */
+    static synchronized void writeSnapshot(File file, byte[] snapshot) throws IOException {
+        File tmp = new File(file.getPath() + FileHelper.TEMPORARY_SUFFIX);
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(snapshot);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not rename " + tmp + " to " + file);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Loads the responses of a snapshot file, for questions that are not cached yet.
+     * Responses that are too old to be served stale, or are invalid, are skipped.
+     *
+     * @param file The file written by {@link #writeSnapshot}
+     * @param now  The current time, in milliseconds
+     * @return The number of responses loaded; 0 if there is no file of the current version.
+     * @throws IOException If the file could not be read, or is truncated.
+     */
+    int load(File file, long now) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return 0;
+
+            int loaded = 0;
+            int count = in.readInt();
+            byte[] response = new byte[0xFFFF];
+            for (int i = 0; i < count; i++) {
+                int segment = in.readUnsignedByte();
+                int frequency = in.readUnsignedByte();
+                long storedAt = in.readLong();
+                int length = in.readUnsignedShort();
+                in.readFully(response, 0, length);
+
+                // The clock was set back; the remaining TTLs are unknown.
+                if (storedAt > now || segment > PROTECTED)
+                    continue;
+                Entry entry = Entry.fromResponse(response, length, storedAt);
+                if (entry == null || now - entry.expiresAt >= MAX_STALE_MILLIS || entries.containsKey(entry.key))
+                    continue;
+
+                for (int j = 0; j < frequency; j++)
+                    sketch.increment(entry.key.hash);
+                entries.put(entry.key, entry);
+                link(entry, segment);
+                loaded++;
+            }
+            // The snapshot may be of a larger cache.
+            evict();
+            return loaded;
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Removes all responses. The counters are kept.
+     */
+    void clear() {
+        entries.clear();
+        Arrays.fill(heads, null);
+        Arrays.fill(tails, null);
+        Arrays.fill(segmentBytes, 0);
+    }
+
+    /**
+     * @return The number of cached responses.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The estimated memory used by the cached responses.
+     */
+    long sizeInBytes() {
+        return segmentBytes[WINDOW] + segmentBytes[PROBATION] + segmentBytes[PROTECTED];
+    }
+
+    /**
+     * @return The number of queries that were answered from the cache.
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of queries that were not answered from the cache.
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of responses that were evicted to make room for others.
+     */
+    long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of responses that were refreshed ahead of time, or while stale.
+     */
+    long getRefreshes() {
+        return refreshes;
+    }
+
+    /**
+     * @return The number of queries that were answered with an expired response.
+     */
+    long getStaleHits() {
+        return staleHits;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%d responses in %d bytes, %d hits, %d misses, %d evictions, %d refreshes, %d stale hits",
+                size(), sizeInBytes(), hits, misses, evictions, refreshes, staleHits);
+    }
+
+    /**
+     * Looks up the entry for a question, removing it if it is too old to be served stale.
+     */
+    @Nullable
+    private Entry lookup(Key key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.expiresAt >= MAX_STALE_MILLIS) {
+            remove(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Updates the place of an entry that was used.
+     */
+    private void onAccess(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+            case PROTECTED:
+                unlink(entry);
+                link(entry, entry.segment);
+                break;
+            case PROBATION:
+                unlink(entry);
+                link(entry, PROTECTED);
+                // Demote the least recently used protected entries to make room.
+                while (segmentBytes[PROTECTED] > maxSegmentBytes[PROTECTED] && heads[PROTECTED] != entry) {
+                    Entry demoted = heads[PROTECTED];
+                    unlink(demoted);
+                    link(demoted, PROBATION);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Moves entries overflowing the window to the main space, and evicts entries until the
+     * cache fits into its size. An entry from the window is only admitted to the main space if
+     * it was used more often than the entry it would replace.
+     */
+    private void evict() {
+        Entry candidate = null;
+        while (segmentBytes[WINDOW] > maxSegmentBytes[WINDOW] && heads[WINDOW] != null) {
+            candidate = heads[WINDOW];
+            unlink(candidate);
+            link(candidate, PROBATION);
+        }
+
+        while (sizeInBytes() > maxSizeInBytes) {
+            Entry victim = heads[PROBATION];
+            if (victim == candidate)
+                victim = victim.next;
+            if (victim == null)
+                victim = heads[PROTECTED];
+            if (victim == null)
+                victim = heads[WINDOW];
+
+            Entry loser = victim;
+            if (candidate != null && (victim == null || sketch.frequency(candidate.key.hash) <= sketch.frequency(victim.key.hash)))
+                loser = candidate;
+            if (loser == candidate)
+                candidate = null;
+            remove(loser);
+            evictions++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        unlink(entry);
+    }
+
+    /**
+     * Appends an entry to a segment, as its most recently used entry.
+     */
+    private void link(Entry entry, int segment) {
+        entry.segment = segment;
+        entry.prev = tails[segment];
+        entry.next = null;
+        if (tails[segment] != null)
+            tails[segment].next = entry;
+        else
+            heads[segment] = entry;
+        tails[segment] = entry;
+        segmentBytes[segment] += entry.sizeInBytes;
+    }
+
+    private void unlink(Entry entry) {
+        int segment = entry.segment;
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else
+            heads[segment] = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        else
+            tails[segment] = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        segmentBytes[segment] -= entry.sizeInBytes;
+    }
+
+    /**
+     * Copies a response for another query with the same question.
+     *
+     * @param response    The response
+     * @param query       A buffer containing the query
+     * @param queryOffset The offset of the query in the buffer
+     * @param key         The question of both
+     * @return The response, with the ID, the recursion desired flag and the spelling of the
+     * question of the query.
+     */
+    static byte[] copyResponse(byte[] response, byte[] query, int queryOffset, Key key) {
+        byte[] result = response.clone();
+        result[0] = query[queryOffset];
+        result[1] = query[queryOffset + 1];
+        result[2] = (byte) ((result[2] & ~0x01) | (query[queryOffset + 2] & 0x01));
+        System.arraycopy(query, queryOffset + HEADER_SIZE, result, HEADER_SIZE, key.question.length);
+        return result;
+    }
+
+    /**
+     * Copies the header of a response for another query, without the question and records.
+     *
+     * @param response    The response, at least {@link #HEADER_SIZE} bytes long
+     * @param query       A buffer containing the query
+     * @param queryOffset The offset of the query in the buffer
+     * @return The header of the response, with the ID and the recursion desired flag of the
+     * query, and no sections.
+     */
+    static byte[] copyHeader(byte[] response, byte[] query, int queryOffset) {
+        byte[] result = Arrays.copyOf(response, HEADER_SIZE);
+        result[0] = query[queryOffset];
+        result[1] = query[queryOffset + 1];
+        result[2] = (byte) ((result[2] & ~0x01) | (query[queryOffset + 2] & 0x01));
+        Arrays.fill(result, 4, HEADER_SIZE, (byte) 0);
+        return result;
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Reads a TTL. TTLs with the most significant bit set are treated as 0, see RFC 2181.
+     */
+    private static long readTtl(byte[] data, int offset) {
+        int ttl = (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+        return Math.max(ttl, 0);
+    }
+
+    private static void writeInt(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Skips a possibly compressed name.
+     *
+     * @return The offset after the name, or -1 if it does not fit into the message.
+     */
+    private static int skipName(byte[] data, int offset, int length) {
+        while (offset < length) {
+            int labelLength = data[offset] & 0xFF;
+            if (labelLength == 0)
+                return offset + 1;
+            if ((labelLength & 0xC0) == 0xC0)
+                return offset + 2 <= length ? offset + 2 : -1;
+            if (labelLength > MAX_LABEL_LENGTH)
+                return -1;
+            offset += labelLength + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * The question of a message: the lower-cased name in wire format, followed by the type and
+     * class; and the EDNS flags of the message.
+     */
+    static final class Key {
+        /* The message has an OPT record, the DNSSEC OK bit is set in it, checking is disabled */
+        static final int FLAG_EDNS = 1;
+        static final int FLAG_DO = 2;
+        static final int FLAG_CD = 4;
+
+        final byte[] question;
+        final int flags;
+        final long hash;
+
+        Key(byte[] question, int flags) {
+            this.question = question;
+            this.flags = flags;
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : question)
+                hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+            this.hash = (hash ^ flags) * 0x100000001b3L;
+        }
+
+        /**
+         * Reads the question of a standard query or its response.
+         *
+         * @param data   A buffer containing the message
+         * @param length The length of the message
+         * @return The question, or null if the message does not have exactly one question,
+         * or is not a standard query.
+         */
+        @Nullable
+        static Key fromMessage(byte[] data, int length) {
+            return fromMessage(data, 0, length);
+        }
+
+        /**
+         * Reads the question of a standard query or its response.
+         *
+         * @param data   A buffer containing the message
+         * @param offset The offset of the message in the buffer
+         * @param length The length of the message
+         * @return The question, or null if the message does not have exactly one question,
+         * is not a standard query, or its records do not fit into it.
+         */
+        @Nullable
+        static Key fromMessage(byte[] data, int offset, int length) {
+            if (length < HEADER_SIZE || readUnsignedShort(data, offset + 4) != 1 || ((data[offset + 2] >> 3) & 0xF) != 0)
+                return null;
+
+            int end = HEADER_SIZE;
+            while (true) {
+                if (end >= length)
+                    return null;
+                int labelLength = data[offset + end] & 0xFF;
+                if (labelLength == 0)
+                    break;
+                // The question directly follows the header, so it is never compressed.
+                if (labelLength > MAX_LABEL_LENGTH)
+                    return null;
+                end += labelLength + 1;
+            }
+            end += 1 + 4;
+            if (end > length || end - HEADER_SIZE - 4 > MAX_NAME_LENGTH)
+                return null;
+
+            // The OPT record is in the additional section, so the other records are skipped.
+            int flags = (data[offset + 3] & 0x10) != 0 ? FLAG_CD : 0;
+            int records = readUnsignedShort(data, offset + 6) + readUnsignedShort(data, offset + 8) + readUnsignedShort(data, offset + 10);
+            int recordOffset = offset + end;
+            for (int i = 0; i < records; i++) {
+                recordOffset = skipName(data, recordOffset, offset + length);
+                if (recordOffset < 0 || recordOffset + 10 > offset + length)
+                    return null;
+                // The TTL field of an OPT record holds the extended RCODE, version and flags.
+                if (readUnsignedShort(data, recordOffset) == TYPE_OPT)
+                    flags |= FLAG_EDNS | ((data[recordOffset + 6] & 0x80) != 0 ? FLAG_DO : 0);
+                recordOffset += 10 + readUnsignedShort(data, recordOffset + 8);
+            }
+
+            byte[] question = Arrays.copyOfRange(data, offset + HEADER_SIZE, offset + end);
+            for (int i = 0; i < question.length - 4; i++) {
+                byte b = question[i];
+                if (b >= 'A' && b <= 'Z')
+                    question[i] = (byte) (b + ('a' - 'A'));
+            }
+            return new Key(question, flags);
+        }
+
+        /**
+         * @return The offset after the question in a message.
+         */
+        int end() {
+            return HEADER_SIZE + question.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && flags == ((Key) o).flags && Arrays.equals(question, ((Key) o).question);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        /**
+         * @return The name of the question, in lower case, with a trailing dot.
+         */
+        @Override
+        public String toString() {
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; question[i] != 0; i += (question[i] & 0xFF) + 1) {
+                for (int j = i + 1; j <= i + (question[i] & 0xFF); j++)
+                    name.append((char) (question[j] & 0xFF));
+                name.append('.');
+            }
+            return name.length() == 0 ? "." : name.toString();
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        final Key key;
+        final byte[] response;
+        /* The offsets of the TTLs of the records, which are decreased when answering */
+        final int[] ttlOffsets;
+        final long storedAt;
+        final long expiresAt;
+        final int sizeInBytes;
+
+        /* When a refresh was started, or 0 */
+        long refreshStartedAt;
+        /* When the expired response was last served, or 0 */
+        long staleServedAt;
+        int segment;
+        Entry prev;
+        Entry next;
+
+        Entry(Key key, byte[] response, int[] ttlOffsets, long storedAt, long expiresAt) {
+            this.key = key;
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.sizeInBytes = response.length + 4 * ttlOffsets.length + key.question.length + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * Creates an entry for a response, if it can be cached.
+         *
+         * @param data   A buffer containing the response
+         * @param length The length of the response
+         * @param now    The current time, in milliseconds
+         * @return The entry, or null if the response cannot be cached or is invalid.
+         */
+        @Nullable
+        static Entry fromResponse(byte[] data, int length, long now) {
+            Key key = Key.fromMessage(data, length);
+            // Only complete responses
+            if (key == null || (data[2] & 0x80) == 0 || (data[2] & 0x02) != 0)
+                return null;
+            int rcode = data[3] & 0xF;
+            if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)
+                return null;
+
+            int answers = readUnsignedShort(data, 6);
+            int authorities = readUnsignedShort(data, 8);
+            int records = answers + authorities + readUnsignedShort(data, 10);
+            int[] ttlOffsets = new int[records];
+            int ttlCount = 0;
+            long answerTtl = Long.MAX_VALUE;
+            long negativeTtl = -1;
+
+            int offset = key.end();
+            for (int i = 0; i < records; i++) {
+                offset = skipName(data, offset, length);
+                if (offset < 0 || offset + 10 > length)
+                    return null;
+                int type = readUnsignedShort(data, offset);
+                long ttl = readTtl(data, offset + 4);
+                int rdataEnd = offset + 10 + readUnsignedShort(data, offset + 8);
+                if (rdataEnd > length)
+                    return null;
+
+                // The TTL field of an OPT record holds flags instead.
+                if (type != TYPE_OPT)
+                    ttlOffsets[ttlCount++] = offset + 4;
+                if (i < answers)
+                    answerTtl = Math.min(answerTtl, ttl);
+                else if (i < answers + authorities && type == TYPE_SOA && rdataEnd - offset - 10 >= 22)
+                    negativeTtl = Math.min(ttl, readTtl(data, rdataEnd - 4));
+                offset = rdataEnd;
+            }
+
+            long ttl;
+            if (rcode == RCODE_NOERROR && answers > 0)
+                ttl = Math.min(answerTtl, MAX_TTL_SECONDS);
+            else
+                ttl = Math.min(negativeTtl, MAX_NEGATIVE_TTL_SECONDS);
+            if (ttl <= 0)
+                return null;
+
+            return new Entry(key, Arrays.copyOf(data, length), Arrays.copyOf(ttlOffsets, ttlCount), now, now + ttl * 1000);
+        }
+
+        /**
+         * Creates a response to a query from the cached response.
+         *
+         * @param query       A buffer containing the query, with the same question
+         * @param queryOffset The offset of the query in the buffer
+         * @param now         The current time, in milliseconds
+         * @return The response, with the ID of the query and the remaining TTLs, or
+         * {@link #STALE_TTL_SECONDS} if the response expired.
+         */
+        byte[] toResponse(byte[] query, int queryOffset, long now) {
+            byte[] result = copyResponse(response, query, queryOffset, key);
+
+            long elapsed = Math.max(now - storedAt, 0) / 1000;
+            long minTtl = now >= expiresAt ? STALE_TTL_SECONDS : 0;
+            for (int offset : ttlOffsets)
+                writeInt(result, offset, Math.max(readTtl(response, offset) - elapsed, minTtl));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.vpn;
+
+/**
+ * Estimates how often keys were used recently, in a fixed amount of memory.
+ * <p>
+ * This is a count-min sketch of 4-bit counters: Each key is counted in four counters chosen
+ * by its hash, and its frequency is the smallest of them. Sixteen counters are packed into
+ * each long. Counters saturate at 15, and once a number of increments proportional to the
+ * size of the sketch has been counted, all counters are halved, so keys that were popular a
+ * long time ago are forgotten.
+ */
+final class FrequencySketch {
+    static final int MAX_FREQUENCY = 15;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long HALF_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch.
+     *
+     * @param expectedKeys The number of keys that are tracked at the same time
+     */
+    FrequencySketch(int expectedKeys) {
+        int length = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+        table = new long[length];
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * Estimates how often a key was used recently.
+     *
+     * @param hash The 64 bit hash of the key
+     * @return The estimated frequency, between 0 and {@link #MAX_FREQUENCY}
+     */
+    int frequency(long hash) {
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = mix(hash, i);
+            frequency = Math.min(frequency, (int) (table[index(h)] >>> shift(h)) & MAX_FREQUENCY);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts a use of a key.
+     *
+     * @param hash The 64 bit hash of the key
+     */
+    void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = mix(hash, i);
+            int index = index(h);
+            int shift = shift(h);
+            if (((table[index] >>> shift) & MAX_FREQUENCY) != MAX_FREQUENCY) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & HALF_MASK;
+        additions /= 2;
+    }
+
+    private static long mix(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[(i + 1) % SEEDS.length];
+        return h ^ (h >>> 29);
+    }
+
+    private int index(long h) {
+        return (int) (h >>> 32) & (table.length - 1);
+    }
+
+    /* The offset of one of the 16 counters in a long */
+    private static int shift(long h) {
+        return ((int) h & 15) << 2;
+    }
+}
@@ -0,0 +1,201 @@
+/* Copyright (C) 2017 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ */
+package org.jak_linux.dns66.vpn;
+
+/**
+ * Reads the headers of IPv4 and IPv6 packets carrying UDP in place, and builds the packets
+ * answering them.
+ * <p>
+ * The packets read from the device are decoded for every DNS query, so the fields are read
+ * straight from the buffer by their offsets, without allocating any objects. Only packets
+ * whose UDP header directly follows the IP header are accepted: IPv4 packets that are not
+ * fragmented, and IPv6 packets without extension headers. The UDP payload of a packet starts
+ * at {@link #payloadOffset} and has {@link #payloadLength} bytes. Lengths are taken from the
+ * headers, so any bytes after the IP packet are ignored.
+ */
+final class IpUdpPacket {
+    static final int UDP_HEADER_SIZE = 8;
+
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int PROTOCOL_UDP = 17;
+    /* The more fragments flag and the fragment offset of IPv4 */
+    private static final int IPV4_FRAGMENT_MASK = 0x3FFF;
+
+    private IpUdpPacket() {
+    }
+
+    /**
+     * Finds the UDP header of a packet.
+     *
+     * @param packet A buffer containing the packet
+     * @param length The number of bytes in the buffer
+     * @return The offset of the UDP header, or -1 if the packet is not a well-formed IPv4 or
+     * IPv6 packet carrying UDP.
+     */
+    static int udpOffset(byte[] packet, int length) {
+        int udpOffset;
+        int ipLength;
+        if (length >= IPV4_HEADER_SIZE && version(packet) == 4) {
+            udpOffset = (packet[0] & 0x0F) * 4;
+            ipLength = readUnsignedShort(packet, 2);
+            if (udpOffset < IPV4_HEADER_SIZE || packet[9] != PROTOCOL_UDP || (readUnsignedShort(packet, 6) & IPV4_FRAGMENT_MASK) != 0)
+                return -1;
+        } else if (length >= IPV6_HEADER_SIZE && version(packet) == 6) {
+            udpOffset = IPV6_HEADER_SIZE;
+            ipLength = IPV6_HEADER_SIZE + readUnsignedShort(packet, 4);
+            if (packet[6] != PROTOCOL_UDP)
+                return -1;
+        } else {
+            return -1;
+        }
+
+        if (ipLength > length || udpOffset + UDP_HEADER_SIZE > ipLength)
+            return -1;
+        int udpLength = readUnsignedShort(packet, udpOffset + 4);
+        if (udpLength < UDP_HEADER_SIZE || udpOffset + udpLength > ipLength)
+            return -1;
+        return udpOffset;
+    }
+
+    /**
+     * @return The IP version of a packet.
+     */
+    static int version(byte[] packet) {
+        return (packet[0] >> 4) & 0x0F;
+    }
+
+    /**
+     * @return The length of the addresses of a packet.
+     */
+    static int addressLength(byte[] packet) {
+        return version(packet) == 4 ? 4 : 16;
+    }
+
+    /**
+     * @return The offset of the source address of a packet.
+     */
+    static int sourceAddressOffset(byte[] packet) {
+        return version(packet) == 4 ? 12 : 8;
+    }
+
+    /**
+     * @return The offset of the destination address of a packet.
+     */
+    static int destinationAddressOffset(byte[] packet) {
+        return version(packet) == 4 ? 16 : 24;
+    }
+
+    static int sourcePort(byte[] packet, int udpOffset) {
+        return readUnsignedShort(packet, udpOffset);
+    }
+
+    static int destinationPort(byte[] packet, int udpOffset) {
+        return readUnsignedShort(packet, udpOffset + 2);
+    }
+
+    static int payloadOffset(int udpOffset) {
+        return udpOffset + UDP_HEADER_SIZE;
+    }
+
+    static int payloadLength(byte[] packet, int udpOffset) {
+        return readUnsignedShort(packet, udpOffset + 4) - UDP_HEADER_SIZE;
+    }
+
+    /**
+     * Checks whether two packets come from the same address and port.
+     *
+     * @param packet         A packet
+     * @param udpOffset      The offset of the UDP header of the packet
+     * @param other          Another packet
+     * @param otherUdpOffset The offset of the UDP header of the other packet
+     * @return true if both packets have the same source address and port.
+     */
+    static boolean isSameSource(byte[] packet, int udpOffset, byte[] other, int otherUdpOffset) {
+        if (version(packet) != version(other) || sourcePort(packet, udpOffset) != sourcePort(other, otherUdpOffset))
+            return false;
+        int offset = sourceAddressOffset(packet);
+        for (int i = 0; i < addressLength(packet); i++) {
+            if (packet[offset + i] != other[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds the packet answering a request. The IP header of the request is copied, with
+     * the addresses and ports swapped, and the lengths and checksums computed for the payload.
+     *
+     * @param request   A buffer containing the request packet
+     * @param udpOffset The offset of the UDP header of the request
+     * @param payload   The UDP payload of the response
+     * @return The response packet.
+     */
+    static byte[] newResponse(byte[] request, int udpOffset, byte[] payload) {
+        byte[] response = new byte[udpOffset + UDP_HEADER_SIZE + payload.length];
+        System.arraycopy(request, 0, response, 0, udpOffset);
+        System.arraycopy(payload, 0, response, udpOffset + UDP_HEADER_SIZE, payload.length);
+
+        int addressLength = addressLength(request);
+        int sourceAddressOffset = sourceAddressOffset(request);
+        int destinationAddressOffset = destinationAddressOffset(request);
+        System.arraycopy(request, destinationAddressOffset, response, sourceAddressOffset, addressLength);
+        System.arraycopy(request, sourceAddressOffset, response, destinationAddressOffset, addressLength);
+
+        if (version(request) == 4) {
+            writeShort(response, 2, response.length);
+            writeShort(response, 10, 0);
+            writeShort(response, 10, ~checksum(response, 0, udpOffset, 0) & 0xFFFF);
+        } else {
+            writeShort(response, 4, response.length - IPV6_HEADER_SIZE);
+        }
+
+        int udpLength = UDP_HEADER_SIZE + payload.length;
+        writeShort(response, udpOffset, destinationPort(request, udpOffset));
+        writeShort(response, udpOffset + 2, sourcePort(request, udpOffset));
+        writeShort(response, udpOffset + 4, udpLength);
+        writeShort(response, udpOffset + 6, 0);
+
+        // The pseudo header: addresses, protocol and UDP length
+        int sum = checksum(response, sourceAddressOffset, 2 * addressLength, PROTOCOL_UDP + udpLength);
+        int udpChecksum = ~checksum(response, udpOffset, udpLength, sum) & 0xFFFF;
+        // A checksum of 0 means none, so it is sent as its complement.
+        writeShort(response, udpOffset + 6, udpChecksum == 0 ? 0xFFFF : udpChecksum);
+        return response;
+    }
+
+    /**
+     * Computes the ones' complement sum of 16 bit words, as used by the internet checksum.
+     *
+     * @param data   A buffer
+     * @param offset The offset of the data to sum
+     * @param length The length of the data to sum; an odd byte at the end is padded with 0
+     * @param sum    The sum of data before, to be continued
+     * @return The folded 16 bit sum.
+     */
+    static int checksum(byte[] data, int offset, int length, int sum) {
+        long total = sum;
+        int end = offset + length;
+        for (int i = offset; i + 1 < end; i += 2)
+            total += (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+        if ((length & 1) != 0)
+            total += (data[end - 1] & 0xFF) << 8;
+        while ((total >>> 16) != 0)
+            total = (total & 0xFFFF) + (total >>> 16);
+        return (int) total;
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,40 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        BloomFilter filter = BloomFilter.build(FrontCodedHostSet.EMPTY);
+        assertFalse(filter.mightContain(FrontCodedHostSet.reverseLabels("example.com")));
+        assertEquals(0.0, filter.getFalsePositiveRate(), 0.0);
+    }
+
+    @Test
+    public void testMightContain() throws Exception {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            hosts.add("host" + i + ".example.com");
+        BloomFilter filter = BloomFilter.build(FrontCodedHostSet.build(hosts));
+
+        // No false negatives
+        for (String host : hosts)
+            assertTrue(host, filter.mightContain(FrontCodedHostSet.reverseLabels(host)));
+
+        // Few false positives
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(FrontCodedHostSet.reverseLabels("other" + i + ".example.com")))
+                falsePositives++;
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 300);
+        assertEquals(0.01, filter.getFalsePositiveRate(), 0.005);
+        assertEquals(8 + 10000 * BloomFilter.BITS_PER_KEY / 8, filter.sizeInBytes());
+    }
+}
@@ -0,0 +1,83 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DomainTrieTest {
+    private static final long ALL = -1L;
+
+    private static long lookup(DomainTrie trie, String host, long active) {
+        return trie.lookup(FrontCodedHostSet.reverseLabels(host), active);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertTrue(DomainTrie.EMPTY.isEmpty());
+        assertEquals(0, lookup(DomainTrie.EMPTY, "example.com", ALL));
+        assertEquals(0, lookup(DomainTrie.EMPTY, "", ALL));
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("doubleclick.net", 1);
+        builder.add("safe.doubleclick.net", 2);
+        builder.add("ads.safe.doubleclick.net", 4);
+        builder.add("ads.safe.doubleclick.net", 8);
+        DomainTrie trie = builder.build();
+
+        assertFalse(trie.isEmpty());
+
+        // Rules match the domain itself and everything below it
+        assertEquals(1, lookup(trie, "doubleclick.net", ALL));
+        assertEquals(1, lookup(trie, "a.doubleclick.net", ALL));
+        assertEquals(1, lookup(trie, "a.b.c.doubleclick.net", ALL));
+        // Deeper rules win, and rules for the same domain are merged
+        assertEquals(2, lookup(trie, "safe.doubleclick.net", ALL));
+        assertEquals(2, lookup(trie, "x.safe.doubleclick.net", ALL));
+        assertEquals(12, lookup(trie, "ads.safe.doubleclick.net", ALL));
+        assertEquals(12, lookup(trie, "x.ads.safe.doubleclick.net", ALL));
+        // No rules
+        assertEquals(0, lookup(trie, "net", ALL));
+        assertEquals(0, lookup(trie, "doubleclick.com", ALL));
+        assertEquals(0, lookup(trie, "xdoubleclick.net", ALL));
+    }
+
+    @Test
+    public void testLookupActive() throws Exception {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("doubleclick.net", 1);
+        builder.add("safe.doubleclick.net", 2);
+        DomainTrie trie = builder.build();
+
+        // Rules of inactive sources are skipped
+        assertEquals(1, lookup(trie, "x.safe.doubleclick.net", 1));
+        assertEquals(2, lookup(trie, "x.safe.doubleclick.net", 2));
+        assertEquals(0, lookup(trie, "x.doubleclick.net", 2));
+        assertEquals(0, lookup(trie, "x.safe.doubleclick.net", 4));
+    }
+
+    @Test
+    public void testForEachRule() throws Exception {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("doubleclick.net", 1);
+        builder.add("safe.doubleclick.net", 2);
+        builder.add("example.com", 4);
+
+        final List<Long> rules = new ArrayList<>();
+        builder.build().forEachRule(new DomainTrie.RuleVisitor() {
+            @Override
+            public void visit(long sources) {
+                rules.add(sources);
+            }
+        });
+        Collections.sort(rules);
+        assertEquals(Arrays.asList(1L, 2L, 4L), rules);
+    }
+}
@@ -0,0 +1,92 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FrontCodedHostSetTest {
+
+    @Test
+    public void testReverseLabels() throws Exception {
+        assertArrayEquals("com.example".getBytes(), FrontCodedHostSet.reverseLabels("example.com"));
+        assertArrayEquals("com.example.ads".getBytes(), FrontCodedHostSet.reverseLabels("ads.example.com"));
+        assertArrayEquals("localhost".getBytes(), FrontCodedHostSet.reverseLabels("localhost"));
+        assertArrayEquals("com.example.".getBytes(), FrontCodedHostSet.reverseLabels(".example.com"));
+        assertArrayEquals("".getBytes(), FrontCodedHostSet.reverseLabels(""));
+
+        // Names in a larger buffer
+        byte[] key = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+        byte[] line = "0.0.0.0 ads.example.com # comment".getBytes();
+        assertEquals(15, FrontCodedHostSet.reverseLabels(line, 8, 23, key));
+        assertArrayEquals("com.example.ads".getBytes(), Arrays.copyOf(key, 15));
+        assertEquals(0, FrontCodedHostSet.reverseLabels(line, 8, 8, key));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertEquals(0, FrontCodedHostSet.EMPTY.size());
+        assertFalse(FrontCodedHostSet.EMPTY.contains("example.com"));
+        assertFalse(FrontCodedHostSet.EMPTY.contains(""));
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        FrontCodedHostSet set = FrontCodedHostSet.build(Arrays.asList(
+                "example.com", "ads.example.com", "example.com", "a.b.c.example.org", "example.net"));
+
+        assertEquals(4, set.size());
+        assertTrue(set.contains("example.com"));
+        assertTrue(set.contains("ads.example.com"));
+        assertTrue(set.contains("a.b.c.example.org"));
+        assertTrue(set.contains("example.net"));
+
+        assertFalse(set.contains("com"));
+        assertFalse(set.contains("example"));
+        assertFalse(set.contains("xample.com"));
+        assertFalse(set.contains("ad.example.com"));
+        assertFalse(set.contains("adss.example.com"));
+        assertFalse(set.contains("b.c.example.org"));
+        assertFalse(set.contains("example.org"));
+        assertFalse(set.contains("zzz.example.net"));
+        assertFalse(set.contains(""));
+    }
+
+    @Test
+    public void testGetSources() throws Exception {
+        Map<String, Long> hosts = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+            hosts.put("host" + i + ".example.com", (long) i + 1);
+        hosts.put("wide.example.com", 1L << 40);
+
+        FrontCodedHostSet set = FrontCodedHostSet.build(hosts);
+
+        assertEquals(101, set.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i + 1, set.getSources(FrontCodedHostSet.reverseLabels("host" + i + ".example.com")));
+        assertEquals(1L << 40, set.getSources(FrontCodedHostSet.reverseLabels("wide.example.com")));
+        assertEquals(0, set.getSources(FrontCodedHostSet.reverseLabels("host100.example.com")));
+        assertEquals(0, set.getSources(FrontCodedHostSet.reverseLabels("example.com")));
+    }
+
+    @Test
+    public void testContainsManyBlocks() throws Exception {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 1000; i += 2)
+            hosts.add("host" + i + ".example" + (i % 7) + ".com");
+        Collections.shuffle(hosts);
+
+        FrontCodedHostSet set = FrontCodedHostSet.build(hosts);
+
+        assertEquals(500, set.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("host" + i, i % 2 == 0, set.contains("host" + i + ".example" + (i % 7) + ".com"));
+        assertTrue(set.sizeInBytes() < 500 * 20);
+    }
+}
@@ -0,0 +1,103 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostKeyMapTest {
+    private static boolean add(HostKeyMap map, String key, long source, long replaced) {
+        byte[] bytes = key.getBytes();
+        return map.add(bytes, 0, bytes.length, source, replaced);
+    }
+
+    private static List<String> keys(HostKeyMap map) {
+        List<String> keys = new ArrayList<>();
+        byte[] key = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+        for (int entry : map.sort())
+            keys.add(new String(key, 0, map.getKey(entry, key)));
+        return keys;
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        HostKeyMap map = new HostKeyMap();
+        assertFalse(add(map, "com.example", 1, 0));
+        assertFalse(add(map, "com.example.ads", 1, 0));
+        assertFalse(add(map, "", 1, 0));
+        assertTrue(add(map, "com.example", 2, 0));
+        assertEquals(3, map.size());
+
+        // Keys are added from the middle of a buffer
+        byte[] line = "xcom.example.adsx".getBytes();
+        assertTrue(map.add(line, 1, 15, 4, 0));
+        assertFalse(map.add(line, 1, 14, 4, 0));
+        assertEquals(4, map.size());
+
+        assertEquals(Arrays.asList("", "com.example", "com.example.ad", "com.example.ads"), keys(map));
+
+        // Sources are combined, unless replaced
+        byte[] key = new byte[FrontCodedHostSet.MAX_NAME_LENGTH];
+        for (int entry = 0; entry < map.size(); entry++) {
+            String name = new String(key, 0, map.getKey(entry, key));
+            if (name.equals("com.example"))
+                assertEquals(3, map.getSources(entry));
+            if (name.equals("com.example.ads"))
+                assertEquals(5, map.getSources(entry));
+        }
+        assertTrue(add(map, "com.example", 8, 2));
+        assertEquals(9, map.getSources(0));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(add(map, "com.example", 1, 0));
+    }
+
+    @Test
+    public void testAddMany() throws Exception {
+        HostKeyMap map = new HostKeyMap();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            expected.add("com.example.host" + i);
+            assertFalse(add(map, "com.example.host" + i, 1, 0));
+        }
+        for (int i = 0; i < 10000; i += 3)
+            assertTrue(add(map, "com.example.host" + i, 1, 0));
+        assertEquals(10000, map.size());
+
+        Collections.sort(expected);
+        assertEquals(expected, keys(map));
+
+        HostKeyMap other = new HostKeyMap();
+        add(other, "com.example.host1", 2, 0);
+        add(other, "com.example.other", 2, 0);
+        assertEquals(1, map.addAll(other, 4, 1));
+        assertEquals(10001, map.size());
+        assertEquals(4, map.getSources(1));
+        assertEquals(4, map.getSources(10000));
+    }
+
+    @Test
+    public void testUnsignedOrder() throws Exception {
+        HostKeyMap map = new HostKeyMap();
+        map.add(new byte[]{(byte) 0xc3, (byte) 0xa4}, 0, 2, 1, 0);
+        map.add(new byte[]{'z'}, 0, 1, 1, 0);
+        map.add(new byte[]{'z', 'z'}, 0, 2, 1, 0);
+        int[] sorted = map.sort();
+        assertArrayEquals(new int[]{1, 2, 0}, sorted);
+    }
+
+    @Test
+    public void testTooLong() throws Exception {
+        try {
+            new HostKeyMap().add(new byte[256], 0, 256, 1, 0);
+            fail("Added a key longer than a name");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
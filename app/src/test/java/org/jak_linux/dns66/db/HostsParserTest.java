@@ -0,0 +1,119 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostsParserTest {
+
+    private static List<String> parse(InputStream stream, int format) throws Exception {
+        final List<String> hosts = new ArrayList<>();
+        HostsParser parser = new HostsParser(new HostsParser.Sink() {
+            @Override
+            public void host(byte[] buffer, int start, int end, boolean subdomains) {
+                hosts.add((subdomains ? "*." : "") + HostsParser.decode(buffer, start, end));
+            }
+        }, format);
+        int count = parser.parse(stream);
+        assertEquals(hosts.size(), count);
+        return hosts;
+    }
+
+    private static List<String> parse(InputStream stream) throws Exception {
+        return parse(stream, HostsParser.FORMAT_AUTO);
+    }
+
+    private static List<String> parse(String content) throws Exception {
+        return parse(new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    private static List<String> parse(String content, int format) throws Exception {
+        return parse(new ByteArrayInputStream(content.getBytes("UTF-8")), format);
+    }
+
+    private static int detectFormat(String content) throws Exception {
+        byte[] data = content.getBytes("UTF-8");
+        return HostsParser.detectFormat(data, 0, data.length);
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals(Arrays.asList("a.com", "b.com", "c.com", "d.com"),
+                parse("# A hosts file\r\n127.0.0.1 A.com\r\n\r\n0.0.0.0\tb.com # comment\rc.com\nd.com"));
+        assertEquals(Arrays.<String>asList(), parse(""));
+        assertEquals(Arrays.<String>asList(), parse("\n\n# only comments\n"));
+        assertEquals(Arrays.asList("\u00fcber.example.com"), parse("\u00dcBER.example.com\n"));
+        // Multiple hosts per line
+        assertEquals(Arrays.asList("a.com", "b.com", "c.com", "d.com"),
+                parse("0.0.0.0 a.com b.com\t c.com # comment\n::1 d.com\n"));
+    }
+
+    @Test
+    public void testDetectFormat() throws Exception {
+        assertEquals(HostsParser.FORMAT_HOSTS, detectFormat(""));
+        assertEquals(HostsParser.FORMAT_HOSTS, detectFormat("# comment\n\n"));
+        assertEquals(HostsParser.FORMAT_HOSTS, detectFormat("# comment\nexample.com\n127.0.0.1 a.com\n"));
+        assertEquals(HostsParser.FORMAT_HOSTS, detectFormat(":: a.com"));
+        assertEquals(HostsParser.FORMAT_DOMAINS, detectFormat("# comment\na.com\nb.com\n"));
+        assertEquals(HostsParser.FORMAT_DOMAINS, detectFormat("0.0.0.0.example.com\n"));
+        assertEquals(HostsParser.FORMAT_DNSMASQ, detectFormat("# comment\naddress=/a.com/0.0.0.0\n"));
+        assertEquals(HostsParser.FORMAT_DNSMASQ, detectFormat("Server=/a.com/"));
+        assertEquals(HostsParser.FORMAT_ADBLOCK, detectFormat("[Adblock Plus 2.0]\n"));
+        assertEquals(HostsParser.FORMAT_ADBLOCK, detectFormat("a.com\n||b.com^\n"));
+        assertEquals(HostsParser.FORMAT_ADBLOCK, detectFormat("! Title: Test"));
+    }
+
+    @Test
+    public void testParseDomains() throws Exception {
+        assertEquals(Arrays.asList("a.com", "127.0.0.1", "c.com"),
+                parse("  A.com  \n127.0.0.1\ninvalid line\nc.com # comment\n", HostsParser.FORMAT_DOMAINS));
+    }
+
+    @Test
+    public void testParseDnsmasq() throws Exception {
+        assertEquals(Arrays.asList("*.a.com", "*.b.com", "*.c.com", "*.d.com", "*.e.com"),
+                parse("# comment\naddress=/a.com/0.0.0.0\naddress=/B.com/c.com/\nserver=/d.com/\n"
+                        + "server=/upstream.com/1.1.1.1\nserver=/default.com/#\nlocal=/e.com/\n"
+                        + "address=/#/\naddress=/invalid\nlisten-address=127.0.0.1\n"));
+    }
+
+    @Test
+    public void testParseAdblock() throws Exception {
+        assertEquals(Arrays.asList("*.a.com", "b.com", "||ads*^", "@@||c.com^", "||d.com^$third-party", "@@e.com"),
+                parse("[Adblock Plus 2.0]\n! Title: Test\n||A.com^\nexample.com##.ad\nexample.com#@#.ad\n"
+                        + "b.com #ad\n||ads*^\n@@||c.com^\n||d.com^$third-party\ninvalid line\n"
+                        + "@@E.com\n@@||f.com^$document\n@@||g.com/path\n@@\n"));
+    }
+
+    @Test
+    public void testParseAcrossBuffers() throws Exception {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        // Lines crossing the boundaries of the buffer, and a line larger than the buffer
+        for (int i = 0; i < 20000; i++) {
+            content.append("127.0.0.1 host").append(i).append(".example.com\n");
+            expected.add("host" + i + ".example.com");
+        }
+        content.append("# ");
+        for (int i = 0; i < 100000; i++)
+            content.append('x');
+        content.append("\nlast.example.com");
+        expected.add("last.example.com");
+
+        // Read in small pieces, so lines are split between reads
+        InputStream stream = new ByteArrayInputStream(content.toString().getBytes("UTF-8")) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+
+        assertEquals(expected, parse(stream));
+    }
+}
@@ -0,0 +1,99 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ItemShardTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteRead() throws Exception {
+        StringBuilder longHost = new StringBuilder("*.");
+        for (int i = 0; i < 100; i++)
+            longHost.append("label").append(i).append('.');
+        longHost.append("example.com");
+
+        List<String> hosts = Arrays.asList("ads.example.com", "ad.example.com", "ex\u00e4mple.com", "", "ads.example.com.evil.com");
+        List<String> rules = Arrays.asList("*.tracker.org", "||example.net^", longHost.toString(), "ads*.example.org");
+        byte[] digest = {1, 2, 3, 4};
+        File file = folder.newFile();
+        new ItemShard(1234, 5678, digest).write(file, keys(hosts), rules);
+
+        ItemShard header = ItemShard.read(file, null, null);
+        assertNotNull(header);
+        assertEquals(1234, header.fileSize);
+        assertEquals(5678, header.lastModified);
+        assertArrayEquals(digest, header.digest);
+
+        HostKeyMap readHosts = new HostKeyMap();
+        Set<String> readRules = new HashSet<>();
+        assertNotNull(ItemShard.read(file, readHosts, readRules));
+        assertEquals(hosts.size(), readHosts.size());
+        for (String host : hosts) {
+            byte[] key = FrontCodedHostSet.reverseLabels(host);
+            assertTrue(host, readHosts.add(key, 0, key.length, 1, 0));
+        }
+        assertEquals(new HashSet<>(rules), readRules);
+    }
+
+    private static HostKeyMap keys(List<String> hosts) {
+        HostKeyMap keys = new HostKeyMap();
+        for (String host : hosts) {
+            byte[] key = FrontCodedHostSet.reverseLabels(host);
+            keys.add(key, 0, key.length, 1, 0);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testReadInvalid() throws Exception {
+        assertNull(ItemShard.read(new File(folder.getRoot(), "missing"), null, null));
+
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{'D', '6', '6', 'S', 0, 0, 0, 0});
+        }
+        assertNull(ItemShard.read(file, null, null));
+
+        // Truncated shards cannot be read
+        new ItemShard(1, 2, new byte[20]).write(file, keys(Arrays.asList("a.example.com", "b.example.com")), Arrays.asList("*.example.org"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        try {
+            ItemShard.read(file, new HostKeyMap(), new HashSet<String>());
+            fail("Read truncated shard");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testIsParsedFrom() throws Exception {
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("example.com\n".getBytes());
+        }
+        ItemShard shard = new ItemShard(file.length(), file.lastModified(), ItemShard.digest(file));
+        assertTrue(shard.isParsedFrom(file));
+        assertFalse(new ItemShard(file.length() + 1, file.lastModified(), shard.digest).isParsedFrom(file));
+        assertFalse(new ItemShard(file.length(), file.lastModified() + 1000, shard.digest).isParsedFrom(file));
+
+        // Digests of files and buffers agree
+        assertArrayEquals(shard.digest, ItemShard.digest(ByteBuffer.wrap("example.com\n".getBytes())));
+    }
+}
@@ -0,0 +1,84 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PatternAutomatonTest {
+
+    private static long match(PatternAutomaton automaton, String host) {
+        return automaton.match(FrontCodedHostSet.reverseLabels(host));
+    }
+
+    private static PatternAutomaton build(String... rules) {
+        PatternAutomaton.Builder builder = new PatternAutomaton.Builder();
+        for (int i = 0; i < rules.length; i++) {
+            for (String glob : PatternAutomaton.toGlobs(rules[i]))
+                builder.add(glob, 1L << i);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testToGlobs() throws Exception {
+        assertEquals(Arrays.asList("example.com", "*.example.com"), PatternAutomaton.toGlobs("||example.com^"));
+        assertEquals(Arrays.asList("ads*", "*.ads*"), PatternAutomaton.toGlobs("||ads"));
+        assertEquals(Collections.singletonList("ads.*"), PatternAutomaton.toGlobs("|ads.*"));
+        assertEquals(Collections.singletonList("*.example.com"), PatternAutomaton.toGlobs("*.example.com|"));
+        assertEquals(Collections.singletonList("*ads*"), PatternAutomaton.toGlobs("ads"));
+        assertEquals(Collections.singletonList("*ad*server*"), PatternAutomaton.toGlobs("ad**server"));
+
+        // Unsupported rules
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("@@||example.com^"));
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("||example.com^$third-party"));
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("||example.com/ads"));
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("||example^com"));
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("*"));
+        assertEquals(Collections.emptyList(), PatternAutomaton.toGlobs("||^"));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertTrue(PatternAutomaton.EMPTY.isEmpty());
+        assertEquals(0, match(PatternAutomaton.EMPTY, "example.com"));
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        PatternAutomaton automaton = build("||ads.*^", "tracker", "|metrics.", "*.example.com|", "||adserver");
+
+        assertFalse(automaton.isEmpty());
+        assertEquals(1, match(automaton, "ads.example.org"));
+        assertEquals(1, match(automaton, "www.ads.example.org"));
+        assertEquals(0, match(automaton, "myads.example.org"));
+        assertEquals(2, match(automaton, "tracker.example.org"));
+        assertEquals(2, match(automaton, "mytrackers.org"));
+        assertEquals(4, match(automaton, "metrics.example.org"));
+        assertEquals(0, match(automaton, "www.metrics.example.org"));
+        assertEquals(8, match(automaton, "www.example.com"));
+        assertEquals(0, match(automaton, "example.com"));
+        assertEquals(0, match(automaton, "www.example.com.org"));
+        assertEquals(16, match(automaton, "adserver.org"));
+        assertEquals(16, match(automaton, "adservers.org"));
+        assertEquals(16 | 1, match(automaton, "www.adserver.ads.org"));
+        assertEquals(2 | 4 | 8, match(automaton, "metrics.tracker.example.com"));
+        assertEquals(0, match(automaton, "example.org"));
+        assertEquals(0, match(automaton, ""));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        // Unanchored patterns with a "*" in the middle make the DFA grow quickly.
+        String[] rules = new String[40];
+        for (int i = 0; i < rules.length; i++)
+            rules[i] = "a" + i + "x*y" + i + "b";
+        PatternAutomaton automaton = build(rules);
+
+        assertEquals(1L << 7, match(automaton, "a7x.y7b.com"));
+        assertEquals(1L << 39 | 1L << 3, match(automaton, "a3x-a39x.y39b-y3b"));
+        assertEquals(0, match(automaton, "a7x.y8b.com"));
+    }
+}
@@ -1,21 +1,33 @@
 package org.jak_linux.dns66.db;
 
+import android.content.Context;
 import android.util.Log;
 
 import org.jak_linux.dns66.Configuration;
+import org.jak_linux.dns66.FileHelper;
 import org.jak_linux.dns66.db.RuleDatabase;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.nio.CharBuffer;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
@@ -24,6 +36,8 @@ import static org.powermock.api.mockito.PowerMockito.*;
 @RunWith(PowerMockRunner.class)
 @PrepareForTest(Log.class)
 public class RuleDatabaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Before
     public void setUp() {
@@ -78,19 +92,22 @@ public class RuleDatabaseTest {
         item.state = Configuration.Item.STATE_IGNORE;
 
         // Ignore. Does nothing
-        assertTrue(db.loadReader(item, new StringReader("example.com")));
+        assertTrue(db.loadStream(item, stream("example.com")));
+        db.commit();
         assertTrue(db.isEmpty());
         assertFalse(db.isBlocked("example.com"));
 
         // Deny, the host should be blocked now.
         item.state = Configuration.Item.STATE_DENY;
-        assertTrue(db.loadReader(item, new StringReader("example.com")));
+        assertTrue(db.loadStream(item, stream("example.com")));
+        db.commit();
         assertFalse(db.isEmpty());
         assertTrue(db.isBlocked("example.com"));
 
         // Reallow again, the entry should disappear.
         item.state = Configuration.Item.STATE_ALLOW;
-        assertTrue(db.loadReader(item, new StringReader("example.com")));
+        assertTrue(db.loadStream(item, stream("example.com")));
+        db.commit();
         assertTrue(db.isEmpty());
         assertFalse(db.isBlocked("example.com"));
 
@@ -98,7 +115,8 @@ public class RuleDatabaseTest {
         item.state = Configuration.Item.STATE_DENY;
         assertFalse(db.isBlocked("example.com"));
         assertFalse(db.isBlocked("foo.com"));
-        assertTrue(db.loadReader(item, new StringReader("example.com\n127.0.0.1 foo.com")));
+        assertTrue(db.loadStream(item, stream("example.com\n127.0.0.1 foo.com")));
+        db.commit();
         assertFalse(db.isEmpty());
         assertTrue(db.isBlocked("example.com"));
         assertTrue(db.isBlocked("foo.com"));
@@ -106,7 +124,7 @@ public class RuleDatabaseTest {
         // Interrupted test
         Thread.currentThread().interrupt();
         try {
-            db.loadReader(item, new StringReader("example.com"));
+            db.loadStream(item, stream("example.com"));
             fail("Interrupted thread did not cause reader to be interrupted");
         } catch (InterruptedException e) {
 
@@ -114,23 +132,572 @@ public class RuleDatabaseTest {
 
         // Test with an invalid line before a valid one.
         item.state = Configuration.Item.STATE_DENY;
-        assertTrue(db.loadReader(item, new StringReader("invalid line\notherhost.com")));
+        assertTrue(db.loadStream(item, stream("invalid line\notherhost.com")));
+        db.commit();
         assertTrue(db.isBlocked("otherhost.com"));
 
         // Allow again
         item.state = Configuration.Item.STATE_ALLOW;
-        assertTrue(db.loadReader(item, new StringReader("invalid line\notherhost.com")));
+        assertTrue(db.loadStream(item, stream("invalid line\notherhost.com")));
+        db.commit();
         assertFalse(db.isBlocked("otherhost.com"));
 
-        // Reader can't read, we are aborting.
-        Reader reader = Mockito.mock(Reader.class);
-        doThrow(new IOException()).when(reader).read((char[]) any());
-        doThrow(new IOException()).when(reader).read((char[]) any(), anyInt(), anyInt());
-        doThrow(new IOException()).when(reader).read(any(CharBuffer.class));
+        // Stream can't read, we are aborting.
+        InputStream stream = Mockito.mock(InputStream.class);
+        doThrow(new IOException()).when(stream).read();
+        doThrow(new IOException()).when(stream).read((byte[]) any());
+        doThrow(new IOException()).when(stream).read((byte[]) any(), anyInt(), anyInt());
 
-        assertFalse(db.loadReader(item, reader));
+        assertFalse(db.loadStream(item, stream));
     }
 
+    @Test
+    public void testLoadReaderWildcards() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("*.example.com\n0.0.0.0 *.example.org\nblocked.example.net")));
+        item.state = Configuration.Item.STATE_ALLOW;
+        assertTrue(db.loadStream(item, stream("allowed.example.com\n*.allowed.example.org")));
+        db.commit();
+
+        assertFalse(db.isEmpty());
+        assertTrue(db.isBlocked("example.com"));
+        assertTrue(db.isBlocked("ads.example.com"));
+        assertTrue(db.isBlocked("a.b.example.com"));
+        assertTrue(db.isBlocked("example.org"));
+        assertTrue(db.isBlocked("blocked.example.net"));
+        assertFalse(db.isBlocked("allowed.example.com"));
+        assertTrue(db.isBlocked("sub.allowed.example.com"));
+        assertFalse(db.isBlocked("allowed.example.org"));
+        assertFalse(db.isBlocked("sub.allowed.example.org"));
+        assertFalse(db.isBlocked("example.net"));
+        assertFalse(db.isBlocked("notexample.com"));
+
+        // Reallow the wildcard
+        item.state = Configuration.Item.STATE_ALLOW;
+        assertTrue(db.loadStream(item, stream("*.example.com")));
+        db.commit();
+        assertFalse(db.isBlocked("ads.example.com"));
+    }
+
+    @Test
+    public void testIsBlockedWireFormat() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("ads.example.com\n*.tracker.org\n")));
+        db.commit();
+
+        // Names are lower-cased, and may be followed by other data
+        byte[] name = {0, 0, 3, 'A', 'd', 's', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1};
+        assertTrue(db.isBlocked(name, 2, name.length));
+        assertFalse(db.isBlocked(new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0}, 0, 13));
+        assertTrue(db.isBlocked(new byte[]{1, 'x', 7, 'T', 'R', 'A', 'C', 'K', 'E', 'R', 3, 'o', 'r', 'g', 0}, 0, 15));
+        assertTrue(db.isBlocked(new byte[]{7, 't', 'r', 'a', 'c', 'k', 'e', 'r', 3, 'o', 'r', 'g', 0}, 0, 13));
+
+        // Invalid names
+        assertFalse(db.isBlocked(name, 2, name.length - 4));
+        assertFalse(db.isBlocked(new byte[]{0}, 0, 1));
+        assertFalse(db.isBlocked(new byte[]{(byte) 0xc0, 12}, 0, 2));
+        assertFalse(db.isBlocked(new byte[]{3, 'a', '.', 'b', 0}, 0, 5));
+        assertFalse(db.isBlocked(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void testLoadReaderFormats() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+        item.state = Configuration.Item.STATE_DENY;
+
+        assertTrue(db.loadStream(item, stream("0.0.0.0 a.com b.com\n")));
+        assertTrue(db.loadStream(item, stream("# domains\nc.com\nd.com\n")));
+        assertTrue(db.loadStream(item, stream("address=/e.com/0.0.0.0\n")));
+        assertTrue(db.loadStream(item, stream("! adblock\n||f.com^\n")));
+        db.commit();
+
+        assertTrue(db.isBlocked("a.com"));
+        assertTrue(db.isBlocked("b.com"));
+        assertTrue(db.isBlocked("c.com"));
+        assertTrue(db.isBlocked("d.com"));
+        assertTrue(db.isBlocked("e.com"));
+        assertTrue(db.isBlocked("www.e.com"));
+        assertTrue(db.isBlocked("f.com"));
+        assertTrue(db.isBlocked("www.f.com"));
+        assertFalse(db.isBlocked("www.a.com"));
+        assertFalse(db.isBlocked("0.0.0.0"));
+    }
+
+    @Test
+    public void testLoadReaderCompressed() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+        item.state = Configuration.Item.STATE_DENY;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write("0.0.0.0 a.com\nb.com\n".getBytes("UTF-8"));
+        gzip.close();
+
+        assertTrue(db.loadStream(item, new ByteArrayInputStream(compressed.toByteArray())));
+        // Short files are not mistaken for compressed ones
+        assertTrue(db.loadStream(item, stream("c")));
+        // xz is not supported
+        assertFalse(db.loadStream(item, new ByteArrayInputStream(new byte[]{(byte) 0xfd, '7', 'z', 'X', 'Z', 0, 0})));
+        db.commit();
+
+        assertTrue(db.isBlocked("a.com"));
+        assertTrue(db.isBlocked("b.com"));
+        assertTrue(db.isBlocked("c"));
+    }
+
+    @Test
+    public void testLoadReaderPatterns() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("! Adblock list\n||example.com^\n||ads*^\n|metrics.\n*tracker\nplain\n@@||ok.tracker.org^")));
+        item.state = Configuration.Item.STATE_ALLOW;
+        assertTrue(db.loadStream(item, stream("*.ok.example.com\n||safe-tracker")));
+        db.commit();
+
+        assertFalse(db.isEmpty());
+        // Domain rules are wildcards
+        assertTrue(db.isBlocked("example.com"));
+        assertTrue(db.isBlocked("www.example.com"));
+        assertFalse(db.isBlocked("www.ok.example.com"));
+        // Patterns
+        assertTrue(db.isBlocked("ads1.example.org"));
+        assertTrue(db.isBlocked("www.ads.example.org"));
+        assertFalse(db.isBlocked("myads.example.org"));
+        assertTrue(db.isBlocked("metrics.example.org"));
+        assertFalse(db.isBlocked("www.metrics.example.org"));
+        assertTrue(db.isBlocked("mytracker.org"));
+        // Words without pattern characters are still hosts
+        assertTrue(db.isBlocked("plain"));
+        assertFalse(db.isBlocked("plain.org"));
+        // Exceptions are wildcards, which win over patterns, and an allowing list can
+        // override patterns
+        assertFalse(db.isBlocked("ok.tracker.org"));
+        assertFalse(db.isBlocked("safe-tracker.org"));
+        assertFalse(db.isBlocked("example.org"));
+    }
+
+    @Test
+    public void testLoadReaderUnsupportedPatterns() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("! Adblock list\n||ads*^\n*\n||*^\n*ad+banner*\n@@*\n")));
+        db.commit();
+
+        // Patterns without globs are neither added nor counted as duplicates
+        assertTrue(db.isBlocked("ads.example.org"));
+        assertFalse(db.isBlocked("example.org"));
+        assertEquals(1, db.getStats().items.get(0).rules);
+        assertEquals(0, db.getStats().items.get(0).duplicates);
+    }
+
+    @Test
+    public void testLoadReaderExceptions() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("! Adblock list\n||example.com^\n@@||ok.example.com^\n@@exact.example.com\n"
+                + "||ads.ok.example.com^\n@@||page.example.com^$document\n@@||example.com/path\n")));
+        db.commit();
+
+        assertTrue(db.isBlocked("example.com"));
+        // Exceptions allow what the same list blocks, the most specific rule wins
+        assertFalse(db.isBlocked("ok.example.com"));
+        assertFalse(db.isBlocked("www.ok.example.com"));
+        assertTrue(db.isBlocked("ads.ok.example.com"));
+        assertFalse(db.isBlocked("exact.example.com"));
+        assertTrue(db.isBlocked("www.exact.example.com"));
+        // Exceptions with options or paths are skipped
+        assertTrue(db.isBlocked("page.example.com"));
+        assertEquals(4, db.getStats().items.get(0).rules);
+
+        // A later list still blocks names an earlier one allows
+        item.state = Configuration.Item.STATE_DENY;
+        assertTrue(db.loadStream(item, stream("exact.example.com\n")));
+        db.commit();
+        assertTrue(db.isBlocked("exact.example.com"));
+        assertFalse(db.isBlocked("ok.example.com"));
+    }
+
+    @Test
+    public void testExceptionsOfIgnoredItem() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.getRoot());
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/block", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/exceptions", Configuration.Item.STATE_DENY));
+        writeItemFile(context, items.get(0), "||example.com^\n");
+        writeItemFile(context, items.get(1), "! Adblock list\n||ads.example.org^\n@@||ok.example.com^\n");
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+        assertTrue(db.isBlocked("example.com"));
+        assertFalse(db.isBlocked("ok.example.com"));
+
+        // The exceptions are a source of the item, so they are ignored along with it
+        RuleIndex index = db.getIndex();
+        long active = RuleDatabase.getSource(0) | RuleDatabase.getExceptionSource(0);
+        assertTrue(index.withSources(active, RuleDatabase.getSource(0)).isBlocked(FrontCodedHostSet.reverseLabels("ok.example.com")));
+        active |= RuleDatabase.getSource(1) | RuleDatabase.getExceptionSource(1);
+        assertFalse(index.withSources(active, RuleDatabase.getSource(0) | RuleDatabase.getSource(1)).isBlocked(FrontCodedHostSet.reverseLabels("ok.example.com")));
+    }
+
+    @Test
+    public void testCommitSwapsIndex() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        Configuration.Item item = new Configuration.Item();
+        item.location = "<some random file>";
+        item.state = Configuration.Item.STATE_DENY;
+
+        assertTrue(db.loadStream(item, stream("old.example.com")));
+        db.commit();
+        db.clearPending();
+
+        // Loading new rules does not affect lookups until they are committed
+        assertTrue(db.loadStream(item, stream("new.example.com")));
+        assertTrue(db.isBlocked("old.example.com"));
+        assertFalse(db.isBlocked("new.example.com"));
+
+        db.commit();
+        assertFalse(db.isBlocked("old.example.com"));
+        assertTrue(db.isBlocked("new.example.com"));
+    }
+
+    @Test
+    public void testLoadItems() throws Exception {
+        File dir = folder.getRoot();
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(dir);
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/a", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/b", Configuration.Item.STATE_ALLOW));
+        items.add(newItem("https://example.com/c", Configuration.Item.STATE_DENY));
+        items.add(newItem("single.example.com", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/ignored", Configuration.Item.STATE_IGNORE));
+
+        writeItemFile(context, items.get(0), "a.com\nb.com\nc.com\n");
+        writeItemFile(context, items.get(1), "b.com\nc.com\n");
+        writeItemFile(context, items.get(2), "c.com\n");
+        writeItemFile(context, items.get(4), "ignored.com\n");
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+
+        assertTrue(db.isBlocked("a.com"));
+        assertFalse(db.isBlocked("b.com"));
+        assertTrue(db.isBlocked("c.com"));
+        assertTrue(db.isBlocked("single.example.com"));
+        assertFalse(db.isBlocked("ignored.com"));
+
+        // A missing file makes the load incomplete
+        items.add(newItem("https://example.com/missing", Configuration.Item.STATE_DENY));
+        assertFalse(new RuleDatabase().loadItems(context, items, false));
+
+        // Interrupted threads stop loading
+        Thread.currentThread().interrupt();
+        try {
+            new RuleDatabase().loadItems(context, items, false);
+            fail("Interrupted thread did not cause loading to be interrupted");
+        } catch (InterruptedException e) {
+
+        }
+    }
+
+    @Test
+    public void testLoadItemsLargeIgnoredFile() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.getRoot());
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/small", Configuration.Item.STATE_IGNORE));
+        items.add(newItem("https://example.com/large", Configuration.Item.STATE_IGNORE));
+        writeItemFile(context, items.get(0), "small.example.com\n");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; large.length() <= RuleDatabase.MAX_IGNORED_FILE_SIZE; i++)
+            large.append("host").append(i).append(".example.com\n");
+        writeItemFile(context, items.get(1), large.toString());
+
+        // Small ignored items are loaded, so they can be enabled without a reload
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+        assertEquals(1, db.getStats().items.get(0).rules);
+        assertEquals(0, db.getStats().items.get(1).rules);
+        assertTrue(db.getIndex().withSources(1, 1).isBlocked(FrontCodedHostSet.reverseLabels("small.example.com")));
+
+        // Enabling a large ignored item changes the key, so it is loaded
+        byte[] key = RuleDatabase.computeIndexKey(context, items);
+        items.get(0).state = Configuration.Item.STATE_DENY;
+        assertArrayEquals(key, RuleDatabase.computeIndexKey(context, items));
+        items.get(1).state = Configuration.Item.STATE_DENY;
+        assertFalse(Arrays.equals(key, RuleDatabase.computeIndexKey(context, items)));
+
+        db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+        assertTrue(db.isBlocked("small.example.com"));
+        assertTrue(db.isBlocked("host0.example.com"));
+    }
+
+    @Test
+    public void testLoadItemsShards() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.newFolder("files"));
+        Mockito.when(context.getCacheDir()).thenReturn(folder.newFolder("cache"));
+
+        Configuration.Item item = newItem("https://example.com/a", Configuration.Item.STATE_DENY);
+        File file = FileHelper.getItemFile(context, item);
+        File shardFile = new File(new File(context.getCacheDir(), "shards"), file.getName());
+        writeItemFile(context, item, "a.example.com\n");
+        long lastModified = file.lastModified();
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, Arrays.asList(item), false));
+        db.commit();
+        assertTrue(db.isBlocked("a.example.com"));
+        assertFalse(db.getStats().items.get(0).cached);
+        awaitShard(shardFile, lastModified);
+
+        // The shard is used while the file has the same size and modification time
+        writeItemFile(context, item, "b.example.com\n");
+        assertTrue(file.setLastModified(lastModified));
+        db = new RuleDatabase();
+        assertTrue(db.loadItems(context, Arrays.asList(item), false));
+        db.commit();
+        assertTrue(db.isBlocked("a.example.com"));
+        assertFalse(db.isBlocked("b.example.com"));
+        assertTrue(db.getStats().items.get(0).cached);
+
+        // A file with a new modification time is compared to the shard
+        writeItemFile(context, item, "a.example.com\n");
+        assertTrue(file.setLastModified(lastModified + 10000));
+        db = new RuleDatabase();
+        assertTrue(db.loadItems(context, Arrays.asList(item), false));
+        db.commit();
+        assertTrue(db.isBlocked("a.example.com"));
+        assertTrue(db.getStats().items.get(0).cached);
+        awaitShard(shardFile, lastModified + 10000);
+
+        // A changed file is parsed again
+        writeItemFile(context, item, "c.example.com\n");
+        assertTrue(file.setLastModified(lastModified + 20000));
+        db = new RuleDatabase();
+        assertTrue(db.loadItems(context, Arrays.asList(item), false));
+        db.commit();
+        assertFalse(db.isBlocked("a.example.com"));
+        assertTrue(db.isBlocked("c.example.com"));
+        assertFalse(db.getStats().items.get(0).cached);
+    }
+
+    /**
+     * Waits for a shard written in the background to describe a file with the given
+     * modification time.
+     */
+    private static void awaitShard(File shardFile, long lastModified) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            ItemShard shard = ItemShard.read(shardFile, null, null);
+            if (shard != null && shard.lastModified == lastModified)
+                return;
+            Thread.sleep(10);
+        }
+        fail("Shard " + shardFile + " was not written");
+    }
+
+    @Test
+    public void testLoadItemsLargeFile() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.getRoot());
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/large", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/allow", Configuration.Item.STATE_ALLOW));
+
+        // Large enough to be split into chunks
+        StringBuilder content = new StringBuilder("# A large hosts file\n");
+        int count = 0;
+        while (content.length() < 9 * 1024 * 1024)
+            content.append("0.0.0.0 host").append(count++).append(".example.com\n");
+        writeItemFile(context, items.get(0), content.toString());
+        writeItemFile(context, items.get(1), "host1.example.com\n");
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+
+        for (int i = 0; i < count; i += 997)
+            assertTrue(db.isBlocked("host" + i + ".example.com"));
+        assertTrue(db.isBlocked("host" + (count - 1) + ".example.com"));
+        assertFalse(db.isBlocked("host1.example.com"));
+        assertFalse(db.isBlocked("host" + count + ".example.com"));
+    }
+
+    @Test
+    public void testLoadItemsDownloads() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.getRoot());
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/large", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/small", Configuration.Item.STATE_DENY));
+
+        StringBuilder content = new StringBuilder("# A large hosts file\n");
+        int count = 0;
+        while (content.length() < RuleDatabase.MIN_SPLIT_FILE_SIZE)
+            content.append("0.0.0.0 host").append(count++).append(".example.com\n");
+        File[] files = new File[items.size()];
+        String[] contents = {content.toString(), "small.example.com\n"};
+        for (int i = 0; i < items.size(); i++) {
+            files[i] = FileHelper.getItemFile(context, items.get(i));
+            File download = new File(files[i].getPath() + FileHelper.DOWNLOAD_SUFFIX);
+            try (FileWriter writer = new FileWriter(download)) {
+                writer.write(contents[i]);
+            }
+            FileHelper.storeDownload(download, files[i]);
+            assertFalse(download.exists());
+        }
+
+        // The large download is stored as it is, so it is split; the small one is compressed
+        assertEquals(content.length(), files[0].length());
+        assertTrue(RuleDatabase.getChunkCount(files[0], 4) > 1);
+        assertEquals(1, RuleDatabase.getChunkCount(files[1], 4));
+        try (InputStream in = new FileInputStream(files[1])) {
+            assertEquals(0x1f, in.read());
+            assertEquals(0x8b, in.read());
+        }
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+
+        for (int i = 0; i < count; i += 997)
+            assertTrue(db.isBlocked("host" + i + ".example.com"));
+        assertTrue(db.isBlocked("host" + (count - 1) + ".example.com"));
+        assertTrue(db.isBlocked("small.example.com"));
+    }
+
+    @Test
+    public void testSplitLines() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap("xxa.com\nb.com\r\nc.com\nd.com".getBytes("UTF-8"));
+        data.position(2);
+
+        List<String> chunks = new ArrayList<>();
+        for (ByteBuffer chunk : RuleDatabase.splitLines(data, 3)) {
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            chunks.add(new String(bytes, "UTF-8"));
+        }
+        assertEquals(Arrays.asList("a.com\nb.com\r\n", "c.com\n", "d.com"), chunks);
+        assertEquals(2, data.position());
+
+        // More chunks than lines
+        assertEquals(1, RuleDatabase.splitLines(ByteBuffer.wrap("a.com\n".getBytes("UTF-8")), 4).size());
+        assertEquals(0, RuleDatabase.splitLines(ByteBuffer.allocate(0), 4).size());
+    }
+
+    @Test
+    public void testLoadItemsSharedSources() throws Exception {
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getExternalFilesDir(null)).thenReturn(folder.getRoot());
+
+        // Items beyond the sources of their own still override earlier items.
+        List<Configuration.Item> items = new ArrayList<>();
+        for (int i = 0; i < RuleDatabase.MAX_SOURCES + 10; i++)
+            items.add(newItem("host" + (i % 5) + ".example.com", i % 2 == 0 ? Configuration.Item.STATE_DENY : Configuration.Item.STATE_ALLOW));
+        items.add(newItem("ignored.example.com", Configuration.Item.STATE_IGNORE));
+        items.add(newItem("host0.example.com", Configuration.Item.STATE_IGNORE));
+
+        RuleDatabase db = new RuleDatabase();
+        assertTrue(db.loadItems(context, items, false));
+        db.commit();
+
+        // The last item listing each host decides, even items block
+        for (int host = 0; host < 5; host++) {
+            int last = host;
+            while (last + 5 < RuleDatabase.MAX_SOURCES + 10)
+                last += 5;
+            assertEquals(last % 2 == 0, db.isBlocked("host" + host + ".example.com"));
+        }
+        assertFalse(db.isBlocked("ignored.example.com"));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        RuleDatabase db = new RuleDatabase();
+        assertNull(db.getStats());
+
+        Configuration.Item first = newItem("<first>", Configuration.Item.STATE_DENY);
+        Configuration.Item second = newItem("<second>", Configuration.Item.STATE_DENY);
+        first.title = "First";
+        assertTrue(db.loadStream(first, stream("a.example.com\nb.example.com\n*.example.org\n*tracker*\n")));
+        assertTrue(db.loadStream(second, stream("b.example.com\nc.example.com\n||example.org^\n")));
+        db.commit();
+
+        RuleStats stats = db.getStats();
+        assertEquals(3, stats.hosts);
+        assertEquals(1, stats.wildcards);
+        assertEquals(1, stats.patterns);
+        assertTrue(stats.hostsBytes > 0);
+        assertTrue(stats.filterBytes > 0);
+        assertTrue(stats.patternsBytes > 0);
+        assertEquals(VerdictCache.SIZE_IN_BYTES, stats.cacheBytes);
+        assertTrue(stats.getTotalBytes() > stats.hostsBytes + stats.filterBytes);
+
+        assertEquals(2, stats.items.size());
+        assertEquals("First", stats.items.get(0).title);
+        assertEquals("<first>", stats.items.get(0).location);
+        assertEquals(4, stats.items.get(0).rules);
+        assertEquals(0, stats.items.get(0).duplicates);
+        assertEquals(3, stats.items.get(1).rules);
+        assertEquals(2, stats.items.get(1).duplicates);
+        assertTrue(stats.items.get(1).complete);
+
+        // Statistics describe the committed rules
+        db.clearPending();
+        assertTrue(db.loadStream(second, stream("d.example.com\n")));
+        assertSame(stats, db.getStats());
+        db.commit();
+        assertEquals(1, db.getStats().hosts);
+        assertEquals(1, db.getStats().items.size());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    private static Configuration.Item newItem(String location, int state) {
+        Configuration.Item item = new Configuration.Item();
+        item.location = location;
+        item.state = state;
+        return item;
+    }
+
+    private static void writeItemFile(Context context, Configuration.Item item, String content) throws IOException {
+        try (FileWriter writer = new FileWriter(FileHelper.getItemFile(context, item))) {
+            writer.write(content);
+        }
+    }
 
     public static class FooException extends RuntimeException {
     }
@@ -0,0 +1,68 @@
+package org.jak_linux.dns66.db;
+
+import org.jak_linux.dns66.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class RuleIndexCompilerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Configuration.Item newItem(String location, int state) {
+        Configuration.Item item = new Configuration.Item();
+        item.location = location;
+        item.state = state;
+        return item;
+    }
+
+    private static boolean isBlocked(RuleIndex index, String host) {
+        return index.isBlocked(FrontCodedHostSet.reverseLabels(host));
+    }
+
+    @Test
+    public void testMain() throws Exception {
+        File hosts = folder.newFile("hosts");
+        try (FileOutputStream out = new FileOutputStream(hosts)) {
+            out.write("0.0.0.0 ads.example.com\n0.0.0.0 tracker.example.com\n".getBytes("UTF-8"));
+        }
+        File compressed = folder.newFile("domains.gz");
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+            out.write("||doubleclick.net^\n".getBytes("UTF-8"));
+        }
+        File index = new File(folder.getRoot(), "default_rules.idx");
+
+        List<Configuration.Item> items = new ArrayList<>();
+        items.add(newItem("https://example.com/hosts", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/domains", Configuration.Item.STATE_DENY));
+        items.add(newItem("https://example.com/missing", Configuration.Item.STATE_IGNORE));
+        items.add(newItem("tracker.example.com", Configuration.Item.STATE_ALLOW));
+
+        RuleIndexCompiler.main(new String[]{index.getPath(),
+                "0", "https://example.com/hosts", hosts.getPath(),
+                "0", "https://example.com/domains", compressed.getPath(),
+                "2", "https://example.com/missing", "-",
+                "1", "tracker.example.com", "-"});
+
+        RuleIndex mapped = RuleIndex.map(index, RuleDatabase.computeIndexKey(null, items));
+        assertNotNull(mapped);
+        mapped = mapped.withSources(RuleDatabase.getSource(0) | RuleDatabase.getSource(1) | RuleDatabase.getSource(3),
+                RuleDatabase.getSource(0) | RuleDatabase.getSource(1));
+        assertTrue(isBlocked(mapped, "ads.example.com"));
+        assertTrue(isBlocked(mapped, "ad.doubleclick.net"));
+        assertFalse(isBlocked(mapped, "tracker.example.com"));
+        assertFalse(isBlocked(mapped, "example.com"));
+
+        // The index is only used for the items it was built from
+        items.remove(2);
+        assertNull(RuleIndex.map(index, RuleDatabase.computeIndexKey(null, items)));
+    }
+}
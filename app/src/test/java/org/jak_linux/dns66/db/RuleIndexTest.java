@@ -0,0 +1,149 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RuleIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RuleIndex buildIndex() {
+        // Source 0 blocks, source 1 allows
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        builder.add("doubleclick.net", 1);
+
+        Map<String, Long> sources = new HashMap<>();
+        sources.put("example.com", 1L);
+        sources.put("ads.example.com", 1L);
+        sources.put("ok.doubleclick.net", 2L);
+        sources.put("both.example.com", 3L);
+        FrontCodedHostSet hosts = FrontCodedHostSet.build(sources);
+
+        PatternAutomaton.Builder patterns = new PatternAutomaton.Builder();
+        patterns.add("*tracker*", 1);
+        patterns.add("*tracker.example.net", 2);
+        return new RuleIndex(hosts, BloomFilter.build(hosts), builder.build(), patterns.build(), 3, 1);
+    }
+
+    private static boolean isBlocked(RuleIndex index, String host) {
+        return index.isBlocked(FrontCodedHostSet.reverseLabels(host));
+    }
+
+    @Test
+    public void testWriteAndMap() throws Exception {
+        File file = new File(folder.getRoot(), "rules.idx");
+        byte[] key = {1, 2, 3};
+
+        buildIndex().write(file, key);
+
+        RuleIndex index = RuleIndex.map(file, key);
+        assertNotNull(index);
+        assertEquals(4, index.hosts.size());
+        assertEquals(1, index.hosts.getSources(FrontCodedHostSet.reverseLabels("example.com")));
+        assertEquals(3, index.hosts.getSources(FrontCodedHostSet.reverseLabels("both.example.com")));
+        assertFalse(index.hosts.contains("www.example.com"));
+        assertTrue(index.filter.mightContain(FrontCodedHostSet.reverseLabels("example.com")));
+        assertEquals(1, index.wildcards.lookup(FrontCodedHostSet.reverseLabels("a.doubleclick.net"), -1));
+        assertEquals(1, index.patterns.match(FrontCodedHostSet.reverseLabels("tracker.example.org")));
+        assertFalse(new File(folder.getRoot(), "rules.idx.tmp").exists());
+
+        // No sources are active in a mapped index
+        assertTrue(index.isEmpty());
+        assertFalse(isBlocked(index, "ads.example.com"));
+
+        index = index.withSources(3, 1);
+        assertFalse(index.isEmpty());
+        assertTrue(isBlocked(index, "ads.example.com"));
+        assertTrue(isBlocked(index, "a.doubleclick.net"));
+        assertFalse(isBlocked(index, "ok.doubleclick.net"));
+        assertFalse(isBlocked(index, "www.example.com"));
+        assertTrue(isBlocked(index, "tracker.example.org"));
+
+        // A different key invalidates the snapshot.
+        assertNull(RuleIndex.map(file, new byte[]{1, 2, 4}));
+    }
+
+    @Test
+    public void testWithSources() throws Exception {
+        RuleIndex index = buildIndex();
+
+        // The later source wins
+        assertFalse(isBlocked(index, "both.example.com"));
+        assertFalse(isBlocked(index, "ok.doubleclick.net"));
+
+        // Wildcards win over patterns, and later sources win among patterns
+        assertTrue(isBlocked(index, "tracker.example.org"));
+        assertTrue(isBlocked(index, "tracker.doubleclick.net"));
+        assertFalse(isBlocked(index, "tracker.example.net"));
+
+        // Disabling the allowing source
+        RuleIndex denyOnly = index.withSources(1, 1);
+        assertTrue(isBlocked(denyOnly, "both.example.com"));
+        assertTrue(isBlocked(denyOnly, "ok.doubleclick.net"));
+
+        // Disabling the denying source
+        RuleIndex allowOnly = index.withSources(2, 1);
+        assertTrue(allowOnly.isEmpty());
+        assertFalse(isBlocked(allowOnly, "example.com"));
+        assertFalse(isBlocked(allowOnly, "a.doubleclick.net"));
+
+        // Making the second source deny too
+        RuleIndex bothDeny = index.withSources(3, 3);
+        assertTrue(isBlocked(bothDeny, "both.example.com"));
+        assertTrue(isBlocked(bothDeny, "ok.doubleclick.net"));
+
+        // The old index is unchanged
+        assertFalse(isBlocked(index, "both.example.com"));
+    }
+
+    @Test
+    public void testMapMissingOrCorrupted() throws Exception {
+        File file = new File(folder.getRoot(), "rules.idx");
+        assertNull(RuleIndex.map(file, new byte[0]));
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{'D', '6', '6', 'R', 0, 0, 0, RuleIndex.VERSION, 0, 0, 0, 0, 0, 0, 0, 5});
+        }
+        try {
+            RuleIndex.map(file, new byte[0]);
+            fail("Corrupted index was mapped");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testMapPartOfFile() throws Exception {
+        File indexFile = new File(folder.getRoot(), "rules.idx");
+        byte[] key = {1, 2, 3};
+        buildIndex().write(indexFile, key);
+        byte[] data = Files.readAllBytes(indexFile.toPath());
+
+        // An index in the middle of a file, like an uncompressed asset in an APK
+        File file = new File(folder.getRoot(), "app.apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[100]);
+            out.write(data);
+            out.write(new byte[100]);
+        }
+
+        RuleIndex index;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            index = RuleIndex.map(raf.getChannel(), 100, data.length, key, "rules.idx");
+            assertNull(RuleIndex.map(raf.getChannel(), 100, data.length, new byte[]{1, 2, 4}, "rules.idx"));
+        }
+        assertNotNull(index);
+        assertEquals(4, index.hosts.size());
+        assertTrue(isBlocked(index.withSources(3, 1), "ads.example.com"));
+    }
+}
@@ -0,0 +1,55 @@
+package org.jak_linux.dns66.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VerdictCacheTest {
+
+    private static long hash(String host) {
+        byte[] key = FrontCodedHostSet.reverseLabels(host);
+        return BloomFilter.hash(key, key.length);
+    }
+
+    @Test
+    public void testGetPut() throws Exception {
+        VerdictCache cache = new VerdictCache();
+        long ads = hash("ads.example.com");
+        long www = hash("www.example.com");
+
+        assertEquals(VerdictCache.UNKNOWN, cache.get(ads, 0));
+        cache.put(ads, 0, true);
+        cache.put(www, 0, false);
+        assertEquals(VerdictCache.DENIED, cache.get(ads, 0));
+        assertEquals(VerdictCache.ALLOWED, cache.get(www, 0));
+        assertEquals(VerdictCache.UNKNOWN, cache.get(hash("example.com"), 0));
+    }
+
+    @Test
+    public void testGeneration() throws Exception {
+        VerdictCache cache = new VerdictCache();
+        long ads = hash("ads.example.com");
+
+        cache.put(ads, 1, true);
+        assertEquals(VerdictCache.UNKNOWN, cache.get(ads, 2));
+        assertEquals(VerdictCache.DENIED, cache.get(ads, 1));
+
+        cache.put(ads, 2, false);
+        assertEquals(VerdictCache.ALLOWED, cache.get(ads, 2));
+        assertEquals(VerdictCache.UNKNOWN, cache.get(ads, 1));
+    }
+
+    @Test
+    public void testSameSlot() throws Exception {
+        VerdictCache cache = new VerdictCache();
+        long hash = 0x123456789abcdef0L;
+        long other = hash + VerdictCache.SIZE * 0x1000000L;
+
+        // A name replaces another one in its slot, and is not mistaken for it
+        cache.put(hash, 0, true);
+        assertEquals(VerdictCache.UNKNOWN, cache.get(other, 0));
+        cache.put(other, 0, false);
+        assertEquals(VerdictCache.ALLOWED, cache.get(other, 0));
+        assertEquals(VerdictCache.UNKNOWN, cache.get(hash, 0));
+    }
+}
@@ -1,6 +1,5 @@
 package org.jak_linux.dns66.vpn;
 
-import android.content.Context;
 import android.util.Log;
 
 import org.jak_linux.dns66.Configuration;
@@ -10,7 +9,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pcap4j.packet.IllegalRawDataException;
 import org.pcap4j.packet.IpPacket;
+import org.pcap4j.packet.IpSelector;
 import org.pcap4j.packet.IpV4Packet;
 import org.pcap4j.packet.IpV4Rfc791Tos;
 import org.pcap4j.packet.IpV6Packet;
@@ -27,22 +30,29 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
 
 import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.anyString;
 import static org.xbill.DNS.Rcode.NOERROR;
 import static org.xbill.DNS.Rcode.NXDOMAIN;
+import static org.xbill.DNS.Rcode.REFUSED;
+import static org.xbill.DNS.Rcode.SERVFAIL;
 
 /**
  * Various tests for the core DNS packet proxying code.
@@ -65,7 +75,15 @@ public class DnsPacketProxyTest {
         item.location = "blocked.example.com";
         item.state = Configuration.Item.STATE_DENY;
 
-        Mockito.when(ruleDatabase.isBlocked("blocked.example.com")).thenReturn(true);
+        // Names are passed in wire format, straight from the packet
+        Mockito.when(ruleDatabase.isBlocked(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                byte[] data = Arrays.copyOfRange((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                return new Name(new DNSInput(data)).toString(true).equals("blocked.example.com");
+            }
+        });
 
         PowerMockito.mockStatic(Log.class);
     }
@@ -73,6 +91,8 @@ public class DnsPacketProxyTest {
     public void tinySetUp() {
         mockEventLoop.lastOutgoing = null;
         mockEventLoop.lastResponse = null;
+        mockEventLoop.lastRefresh = null;
+        mockEventLoop.responses.clear();
         dnsPacketProxy.upstreamDnsServers.clear();
     }
 
@@ -80,7 +100,7 @@ public class DnsPacketProxyTest {
     public void testInitialize() throws Exception {
         ArrayList<InetAddress> dnsServers = new ArrayList<>();
         dnsPacketProxy = new DnsPacketProxy(mockEventLoop, Mockito.mock(RuleDatabase.class));
-        dnsPacketProxy.initialize(Mockito.mock(Context.class), dnsServers);
+        dnsPacketProxy.initialize(dnsServers);
         assertSame(dnsServers, dnsPacketProxy.upstreamDnsServers);
     }
 
@@ -369,18 +389,388 @@ public class DnsPacketProxyTest {
         assertTrue(responseMsg.getSectionArray(Section.AUTHORITY)[0].getTTL() > 0);
     }
 
+    @Test
+    public void testCachedDnsQuery() throws Exception {
+        Name name = new Name("notblocked.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+        assertNotNull(mockEventLoop.lastResponse);
+
+        // The same question is answered from the cache, with the ID of the new query
+        tinySetUp();
+        Message secondQuery = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        secondQuery.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(secondQuery.toWire()).getRawData());
+
+        assertNull(mockEventLoop.lastOutgoing);
+        assertNotNull(mockEventLoop.lastResponse);
+        Message cachedMsg = new Message(mockEventLoop.lastResponse.getPayload().getPayload().getRawData());
+        assertEquals(secondQuery.getHeader().getID(), cachedMsg.getHeader().getID());
+        assertEquals(1, cachedMsg.getSectionArray(Section.ANSWER).length);
+        assertTrue(cachedMsg.getSectionArray(Section.ANSWER)[0].getTTL() <= 3600);
+        assertEquals(1, dnsPacketProxy.responseCache.getHits());
+    }
+
+    @Test
+    public void testUnmatchedDnsResponse() throws Exception {
+        Name name = new Name("unmatched.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        // A response with another ID is ignored
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        assertFalse(dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire()));
+
+        // So is a response with the same ID for another question
+        Name otherName = new Name("other.example.com.");
+        Message otherResponse = Message.newQuery(Record.newRecord(otherName, Type.A, DClass.IN));
+        otherResponse.getHeader().setID(query.getHeader().getID());
+        otherResponse.getHeader().setFlag(Flags.QR);
+        otherResponse.addRecord(new ARecord(otherName, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        assertFalse(dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), otherResponse.toWire()));
+        assertFalse(dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), null, otherResponse.toWire()));
+
+        assertNull(mockEventLoop.lastResponse);
+        assertEquals(0, dnsPacketProxy.responseCache.size());
+
+        // The query is still waited for
+        response.getHeader().setID(query.getHeader().getID());
+        assertTrue(dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire()));
+        assertNotNull(mockEventLoop.lastResponse);
+        assertEquals(1, dnsPacketProxy.responseCache.size());
+    }
+
+    @Test
+    public void testRefreshDnsQuery() throws Exception {
+        Name name = new Name("popular.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 100, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        byte[] responseData = response.toWire();
+
+        // A response that has 5 seconds left, so it expires soon
+        dnsPacketProxy.responseCache.put(responseData, responseData.length, System.currentTimeMillis() - 95 * 1000);
+
+        // It is answered from the cache, and refreshed once it is popular
+        for (int i = 1; i < DnsResponseCache.REFRESH_MIN_FREQUENCY; i++) {
+            tinySetUp();
+            dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire()).getRawData());
+            assertNotNull(mockEventLoop.lastResponse);
+            assertNull(mockEventLoop.lastRefresh);
+        }
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire()).getRawData());
+        assertNotNull(mockEventLoop.lastResponse);
+        assertNull(mockEventLoop.lastOutgoing);
+        assertNotNull(mockEventLoop.lastRefresh);
+        assertEquals(Inet4Address.getByAddress(new byte[]{8, 8, 8, 8}), mockEventLoop.lastRefresh.getAddress());
+
+        // The refresh is only sent once
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire()).getRawData());
+        assertNull(mockEventLoop.lastRefresh);
+
+        // Its response is stored, but not sent to the device
+        tinySetUp();
+        assertTrue(dnsPacketProxy.handleDnsResponse(query.toWire(), null, responseData));
+        assertNull(mockEventLoop.lastResponse);
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire()).getRawData());
+        Message cachedMsg = new Message(mockEventLoop.lastResponse.getPayload().getPayload().getRawData());
+        assertTrue(cachedMsg.getSectionArray(Section.ANSWER)[0].getTTL() > 90);
+        assertNull(mockEventLoop.lastRefresh);
+        assertEquals(1, dnsPacketProxy.responseCache.getRefreshes());
+    }
+
+    @Test
+    public void testStaleDnsQuery() throws Exception {
+        Name name = new Name("stale.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 100, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        byte[] responseData = response.toWire();
+
+        // Nothing cached
+        assertFalse(dnsPacketProxy.handleDnsTimeout(queryPacket.getRawData()));
+        assertNull(mockEventLoop.lastResponse);
+
+        // An expired response is forwarded, and served stale if upstream does not answer
+        dnsPacketProxy.responseCache.put(responseData, responseData.length, System.currentTimeMillis() - 200 * 1000);
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        assertNull(mockEventLoop.lastResponse);
+        assertTrue(dnsPacketProxy.handleDnsTimeout(queryPacket.getRawData()));
+        Message staleMsg = new Message(mockEventLoop.lastResponse.getPayload().getPayload().getRawData());
+        assertEquals(DnsResponseCache.STALE_TTL_SECONDS, staleMsg.getSectionArray(Section.ANSWER)[0].getTTL());
+
+        // Then the next query is answered stale right away, and refreshed
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+        assertNotNull(mockEventLoop.lastResponse);
+        assertNotNull(mockEventLoop.lastRefresh);
+
+        // A server failure is answered stale, too
+        tinySetUp();
+        Message failure = new Message(query.toWire());
+        failure.getHeader().setFlag(Flags.QR);
+        failure.getHeader().setRcode(SERVFAIL);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), failure.toWire());
+        staleMsg = new Message(mockEventLoop.lastResponse.getPayload().getPayload().getRawData());
+        assertEquals(NOERROR, staleMsg.getHeader().getRcode());
+        assertEquals(1, staleMsg.getSectionArray(Section.ANSWER).length);
+    }
+
+    @Test
+    public void testCoalescedDnsQuery() throws Exception {
+        Name name = new Name("coalesced.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+        Message secondQuery = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        secondQuery.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+        IpPacket secondQueryPacket = newUdpPacket(secondQuery.toWire(), 12345);
+
+        // Only the first query is sent upstream
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(secondQueryPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+        assertNull(mockEventLoop.lastResponse);
+
+        // Its response is sent to both, with their own IDs and ports
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+        assertEquals(2, mockEventLoop.responses.size());
+        Message firstMsg = new Message(mockEventLoop.responses.get(0).getPayload().getPayload().getRawData());
+        Message secondMsg = new Message(mockEventLoop.responses.get(1).getPayload().getPayload().getRawData());
+        assertEquals(query.getHeader().getID(), firstMsg.getHeader().getID());
+        assertEquals(secondQuery.getHeader().getID(), secondMsg.getHeader().getID());
+        assertEquals(1, secondMsg.getSectionArray(Section.ANSWER).length);
+        UdpPacket secondUdp = (UdpPacket) mockEventLoop.responses.get(1).getPayload();
+        assertEquals(12345, secondUdp.getHeader().getDstPort().valueAsInt());
+
+        // The query is not in flight anymore
+        tinySetUp();
+        dnsPacketProxy.responseCache.clear();
+        dnsPacketProxy.handleDnsRequest(secondQueryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        // If it cannot be sent, the next query is sent again
+        tinySetUp();
+        dnsPacketProxy.handleDnsFailure(secondQueryPacket.getRawData());
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        // Once it may have been lost, another client does not wait for it, but sends it again.
+        // The first client is still answered on the socket of its own query.
+        Thread.sleep(DnsPacketProxy.IN_FLIGHT_RETRY_MILLIS + 100);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(secondQueryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        response.getHeader().setID(secondQuery.getHeader().getID());
+        dnsPacketProxy.handleDnsResponse(dnsPayload(secondQueryPacket), secondQueryPacket.getRawData(), response.toWire());
+        assertEquals(1, mockEventLoop.responses.size());
+        secondUdp = (UdpPacket) mockEventLoop.responses.get(0).getPayload();
+        assertEquals(12345, secondUdp.getHeader().getDstPort().valueAsInt());
+    }
+
+    @Test
+    public void testRetransmittedDnsQuery() throws Exception {
+        Name name = new Name("retransmitted.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        // A retransmission is neither sent upstream nor answered twice
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+        // The same ID from another port is another request
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire(), 12345).getRawData());
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(query.toWire(), 12345).getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+        assertEquals(2, mockEventLoop.responses.size());
+    }
+
+    @Test
+    public void testCoalescedDnsQueryHeaderOnlyResponse() throws Exception {
+        Name name = new Name("refused.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+        Message secondQuery = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        secondQuery.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(newUdpPacket(secondQuery.toWire(), 12345).getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+
+        // Upstream refuses the query with a bare header, without the question
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setRcode(REFUSED);
+        assertEquals(12, response.toWire().length);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+
+        assertEquals(2, mockEventLoop.responses.size());
+        Message secondResponse = new Message(mockEventLoop.responses.get(1).getPayload().getPayload().getRawData());
+        assertEquals(secondQuery.getHeader().getID(), secondResponse.getHeader().getID());
+        assertEquals(REFUSED, secondResponse.getHeader().getRcode());
+        assertEquals(0, secondResponse.getHeader().getCount(Section.QUESTION));
+    }
+
+    @Test
+    public void testLostDnsQuery() throws Exception {
+        Name name = new Name("lost.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+        IpPacket otherPacket = newUdpPacket(query.toWire(), 12345);
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(otherPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+
+        // Upstream does not answer, so a retransmission is sent again, once
+        Thread.sleep(DnsPacketProxy.IN_FLIGHT_RETRY_MILLIS + 100);
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+
+        // The response to it answers both requests
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+        assertEquals(2, mockEventLoop.responses.size());
+        UdpPacket otherUdp = (UdpPacket) mockEventLoop.responses.get(1).getPayload();
+        assertEquals(12345, otherUdp.getHeader().getDstPort().valueAsInt());
+    }
+
+    @Test
+    public void testDnsQuerySentAgainForAnotherRequest() throws Exception {
+        Name name = new Name("resent.example.com.");
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        IpPacket queryPacket = newUdpPacket(query.toWire());
+        IpPacket otherPacket = newUdpPacket(query.toWire(), 12345);
+
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+
+        // The query is sent again for another request, which then owns it
+        Thread.sleep(DnsPacketProxy.IN_FLIGHT_RETRY_MILLIS + 100);
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(otherPacket.getRawData());
+        assertNotNull(mockEventLoop.lastOutgoing);
+        // The first request still waits for its own socket, so its retransmission is dropped
+        tinySetUp();
+        dnsPacketProxy.handleDnsRequest(queryPacket.getRawData());
+        assertNull(mockEventLoop.lastOutgoing);
+
+        Message response = new Message(query.toWire());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(new ARecord(name, DClass.IN, 3600, Inet4Address.getByAddress(new byte[]{1, 2, 3, 4})), Section.ANSWER);
+
+        // The response to the first query only answers the first request
+        dnsPacketProxy.handleDnsResponse(dnsPayload(queryPacket), queryPacket.getRawData(), response.toWire());
+        assertEquals(1, mockEventLoop.responses.size());
+        UdpPacket udp = (UdpPacket) mockEventLoop.responses.get(0).getPayload();
+        assertEquals(UdpPort.DOMAIN.valueAsInt(), udp.getHeader().getDstPort().valueAsInt());
+
+        // The response to the query sent again answers the other request, and no other
+        dnsPacketProxy.handleDnsResponse(dnsPayload(otherPacket), otherPacket.getRawData(), response.toWire());
+        assertEquals(2, mockEventLoop.responses.size());
+        udp = (UdpPacket) mockEventLoop.responses.get(1).getPayload();
+        assertEquals(12345, udp.getHeader().getDstPort().valueAsInt());
+    }
+
+    private static byte[] dnsPayload(IpPacket packet) {
+        return packet.getPayload().getPayload().getRawData();
+    }
+
+    private static IpPacket newUdpPacket(byte[] payload) throws Exception {
+        return newUdpPacket(payload, UdpPort.DOMAIN.valueAsInt());
+    }
+
+    private static IpPacket newUdpPacket(byte[] payload, int srcPort) throws Exception {
+        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder()
+                .srcPort(UdpPort.getInstance((short) srcPort))
+                .dstPort(UdpPort.DOMAIN)
+                .srcAddr(InetAddress.getByAddress(new byte[]{8, 8, 4, 4}))
+                .dstAddr(InetAddress.getByAddress(new byte[]{8, 8, 8, 8}))
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .payloadBuilder(
+                        new UnknownPacket.Builder()
+                                .rawData(payload)
+                );
+
+        return new IpV4Packet.Builder()
+                .version(IpVersion.IPV4)
+                .tos(IpV4Rfc791Tos.newInstance((byte) 0))
+                .protocol(IpNumber.UDP)
+                .srcAddr((Inet4Address) Inet4Address.getByAddress(new byte[]{8, 8, 4, 4}))
+                .dstAddr((Inet4Address) Inet4Address.getByAddress(new byte[]{8, 8, 8, 8}))
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .payloadBuilder(payLoadBuilder)
+                .build();
+    }
+
     private static class MockEventLoop implements DnsPacketProxy.EventLoop {
         DatagramPacket lastOutgoing;
         IpPacket lastResponse;
+        DatagramPacket lastRefresh;
+        ArrayList<IpPacket> responses = new ArrayList<>();
 
         @Override
-        public void forwardPacket(DatagramPacket packet, IpPacket requestPacket) throws AdVpnThread.VpnNetworkException {
+        public void forwardPacket(DatagramPacket packet, byte[] requestPacket) throws AdVpnThread.VpnNetworkException {
             lastOutgoing = packet;
         }
 
         @Override
-        public void queueDeviceWrite(IpPacket packet) {
-            lastResponse = packet;
+        public void refreshPacket(DatagramPacket packet) throws AdVpnThread.VpnNetworkException {
+            lastRefresh = packet;
+        }
+
+        @Override
+        public void queueDeviceWrite(byte[] packet) {
+            try {
+                lastResponse = (IpPacket) IpSelector.newPacket(packet, 0, packet.length);
+            } catch (IllegalRawDataException e) {
+                throw new RuntimeException(e);
+            }
+            responses.add(lastResponse);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,397 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DnsResponseCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int FLAGS_QUERY = 0x0100;
+    private static final int FLAGS_RESPONSE = 0x8180;
+    private static final int FLAGS_TRUNCATED = 0x8380;
+    private static final int FLAGS_NXDOMAIN = 0x8183;
+    private static final int FLAGS_SERVFAIL = 0x8182;
+
+    /**
+     * Builds a record whose name points to the question.
+     */
+    static byte[] record(int type, long ttl, byte[] rdata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0xC00C);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeInt((int) ttl);
+        out.writeShort(rdata.length);
+        out.write(rdata);
+        return bytes.toByteArray();
+    }
+
+    static byte[] a(long ttl) throws IOException {
+        return record(TYPE_A, ttl, new byte[]{1, 2, 3, 4});
+    }
+
+    static byte[] soa(long ttl, int minimum) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{0, 0});
+        for (int i = 0; i < 4; i++)
+            out.writeInt(1);
+        out.writeInt(minimum);
+        return record(TYPE_SOA, ttl, bytes.toByteArray());
+    }
+
+    /**
+     * Builds a message with a question for an A record, followed by the given answer and
+     * authority records.
+     */
+    static byte[] message(int id, int flags, String name, byte[][] answers, byte[][] authorities) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(id);
+        out.writeShort(flags);
+        out.writeShort(1);
+        out.writeShort(answers.length);
+        out.writeShort(authorities.length);
+        out.writeShort(0);
+        for (String label : name.split("\\.")) {
+            out.writeByte(label.length());
+            out.writeBytes(label);
+        }
+        out.writeByte(0);
+        out.writeShort(TYPE_A);
+        out.writeShort(1);
+        for (byte[] record : answers)
+            out.write(record);
+        for (byte[] record : authorities)
+            out.write(record);
+        return bytes.toByteArray();
+    }
+
+    static byte[] query(int id, String name) throws IOException {
+        return message(id, FLAGS_QUERY, name, new byte[0][], new byte[0][]);
+    }
+
+    private static byte[] get(DnsResponseCache cache, byte[] query, long now) {
+        return cache.get(query, 0, query.length, now);
+    }
+
+    private static boolean put(DnsResponseCache cache, byte[] response, long now) {
+        return cache.put(response, response.length, now);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    @Test
+    public void testGetPut() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[] response = message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(300), a(60)}, new byte[0][]);
+
+        assertNull(get(cache, query(2, "example.com"), 0));
+        assertTrue(put(cache, response, 0));
+        assertEquals(1, cache.size());
+
+        // The ID is rewritten, the case of the question kept, and the TTLs decreased
+        byte[] cached = get(cache, query(0x1234, "Example.COM"), 10500);
+        assertNotNull(cached);
+        assertEquals(response.length, cached.length);
+        assertEquals(0x12, cached[0]);
+        assertEquals(0x34, cached[1]);
+        assertEquals('E', cached[13]);
+        int answerOffset = 12 + 13 + 4;
+        assertEquals(290, readInt(cached, answerOffset + 6));
+        assertEquals(50, readInt(cached, answerOffset + 16 + 6));
+
+        // The response expires with its shortest TTL, but is kept to be served stale
+        assertNotNull(get(cache, query(3, "example.com"), 59999));
+        assertNull(get(cache, query(3, "example.com"), 60000));
+        assertEquals(1, cache.size());
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertNull(get(cache, query(4, "www.example.com"), 0));
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testOffset() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(300)}, new byte[0][]), 0));
+
+        // Queries are read in place, e.g. from the packet they arrived in
+        byte[] query = query(0x1234, "example.com");
+        byte[] packet = new byte[28 + query.length + 3];
+        Arrays.fill(packet, (byte) 0xFF);
+        System.arraycopy(query, 0, packet, 28, query.length);
+        byte[] cached = cache.get(packet, 28, query.length, 1000);
+        assertNotNull(cached);
+        assertEquals(0x12, cached[0]);
+        assertEquals(0x34, cached[1]);
+        assertEquals(299, readInt(cached, 12 + 13 + 4 + 6));
+        assertNull(cache.get(packet, 28, query.length - 1, 1000));
+    }
+
+    @Test
+    public void testNegative() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+
+        // NXDOMAIN is cached for the TTL of the SOA record, limited by its minimum field
+        assertTrue(put(cache, message(1, FLAGS_NXDOMAIN, "nx.example.com", new byte[0][], new byte[][]{soa(900, 60)}), 0));
+        assertNotNull(get(cache, query(2, "nx.example.com"), 59999));
+        assertNull(get(cache, query(2, "nx.example.com"), 60000));
+
+        // No data
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "nodata.example.com", new byte[0][], new byte[][]{soa(30, 60)}), 0));
+        assertNotNull(get(cache, query(2, "nodata.example.com"), 29999));
+        assertNull(get(cache, query(2, "nodata.example.com"), 30000));
+
+        // Negative responses without SOA record are not cached
+        assertFalse(put(cache, message(1, FLAGS_NXDOMAIN, "nosoa.example.com", new byte[0][], new byte[0][]), 0));
+    }
+
+    @Test
+    public void testNotCached() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[][] none = new byte[0][];
+
+        assertFalse(put(cache, message(1, FLAGS_TRUNCATED, "example.com", new byte[][]{a(300)}, none), 0));
+        assertFalse(put(cache, message(1, FLAGS_SERVFAIL, "example.com", none, new byte[][]{soa(300, 300)}), 0));
+        assertFalse(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(0)}, none), 0));
+        assertFalse(put(cache, query(1, "example.com"), 0));
+
+        // Truncated messages
+        byte[] response = message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(300)}, none);
+        assertFalse(cache.put(response, response.length - 1, 0));
+        assertFalse(cache.put(response, 5, 0));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Appends an OPT record to the additional section of a message.
+     */
+    static byte[] withOpt(byte[] message, boolean dnssecOk) {
+        byte[] opt = {0, 0, TYPE_OPT, 0x10, 0, 0, 0, (byte) (dnssecOk ? 0x80 : 0), 0, 0, 0};
+        byte[] result = Arrays.copyOf(message, message.length + opt.length);
+        System.arraycopy(opt, 0, result, message.length, opt.length);
+        result[11]++;
+        return result;
+    }
+
+    @Test
+    public void testOptRecord() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[] response = message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(300)}, new byte[0][]);
+        byte[] withOpt = withOpt(response, true);
+
+        assertTrue(put(cache, withOpt, 0));
+        byte[] cached = get(cache, withOpt(query(2, "example.com"), true), 100000);
+        assertNotNull(cached);
+        // The flags of the OPT record are not a TTL
+        assertEquals(0x8000, readInt(cached, response.length + 5));
+        assertEquals(200, readInt(cached, cached.length - 11 - 10));
+    }
+
+    @Test
+    public void testEdns() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[] plain = message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(300)}, new byte[0][]);
+        byte[] query = query(2, "example.com");
+
+        // A response to a DNSSEC query is only served to the same kind of query
+        assertTrue(put(cache, withOpt(plain, true), 0));
+        assertNull(get(cache, query, 1000));
+        assertNull(get(cache, withOpt(query, false), 1000));
+        assertNotNull(get(cache, withOpt(query, true), 1000));
+
+        // And the other way round, each is cached separately
+        assertTrue(put(cache, plain, 0));
+        assertEquals(2, cache.size());
+        assertEquals(plain.length, get(cache, query, 1000).length);
+        assertEquals(plain.length + 11, get(cache, withOpt(query, true), 1000).length);
+
+        // Checking disabled is another query, too
+        byte[] unchecked = query.clone();
+        unchecked[3] |= 0x10;
+        assertNull(get(cache, unchecked, 1000));
+
+        // A query whose records do not fit is not cached
+        byte[] broken = withOpt(query, true);
+        assertNull(cache.get(broken, 0, broken.length - 1, 1000));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[] query = query(2, "example.com");
+        assertFalse(cache.startRefresh(query, 0, query.length, 0));
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(100)}, new byte[0][]), 0));
+
+        // Popular, but not about to expire
+        for (int i = 0; i < DnsResponseCache.REFRESH_MIN_FREQUENCY; i++)
+            assertNotNull(get(cache, query, 80000));
+        assertFalse(cache.startRefresh(query, 0, query.length, 80000));
+
+        // In the last tenth of its lifetime, the refresh is started once
+        assertTrue(cache.startRefresh(query, 0, query.length, 90000));
+        assertFalse(cache.startRefresh(query, 0, query.length, 91000));
+        assertEquals(1, cache.getRefreshes());
+
+        // The new response is refreshed in the last tenth of its own lifetime
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(1000)}, new byte[0][]), 92000));
+        assertFalse(cache.startRefresh(query, 0, query.length, 92000));
+        assertTrue(cache.startRefresh(query, 0, query.length, 992000));
+        // After a while, an unanswered refresh is started again
+        assertFalse(cache.startRefresh(query, 0, query.length, 1001999));
+        assertTrue(cache.startRefresh(query, 0, query.length, 1002000));
+        assertFalse(cache.startRefresh(query, 0, query.length, 1092000));
+
+        // Rarely used responses are not refreshed
+        byte[] rareQuery = query(2, "rare.example.com");
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "rare.example.com", new byte[][]{a(100)}, new byte[0][]), 0));
+        assertNotNull(get(cache, rareQuery, 95000));
+        assertFalse(cache.startRefresh(rareQuery, 0, rareQuery.length, 95000));
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[] query = query(2, "example.com");
+        int ttlOffset = 12 + 13 + 4 + 6;
+        assertNull(cache.getStale(query, 0, query.length, 0));
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(100)}, new byte[0][]), 0));
+
+        // A valid response is served as is
+        byte[] response = cache.getStale(query, 0, query.length, 10000);
+        assertEquals(90, readInt(response, ttlOffset));
+        assertEquals(0, cache.getStaleHits());
+
+        // An expired one with a short TTL, and for a while without waiting for upstream
+        assertNull(get(cache, query, 100000));
+        response = cache.getStale(query, 0, query.length, 200000);
+        assertEquals(DnsResponseCache.STALE_TTL_SECONDS, readInt(response, ttlOffset));
+        response = get(cache, query, 200000 + DnsResponseCache.STALE_RECHECK_MILLIS - 1);
+        assertEquals(DnsResponseCache.STALE_TTL_SECONDS, readInt(response, ttlOffset));
+        assertEquals(2, cache.getStaleHits());
+
+        // While it is served, it is refreshed
+        assertTrue(cache.startRefresh(query, 0, query.length, 200000));
+        assertFalse(cache.startRefresh(query, 0, query.length, 201000));
+        assertNull(get(cache, query, 200000 + DnsResponseCache.STALE_RECHECK_MILLIS));
+        assertFalse(cache.startRefresh(query, 0, query.length, 200000 + DnsResponseCache.STALE_RECHECK_MILLIS));
+
+        // Until it is too old
+        assertNotNull(cache.getStale(query, 0, query.length, 100000 + DnsResponseCache.MAX_STALE_MILLIS - 1));
+        assertNull(cache.getStale(query, 0, query.length, 100000 + DnsResponseCache.MAX_STALE_MILLIS));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        DnsResponseCache cache = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        byte[][] none = new byte[0][];
+        long day = 24 * 60 * 60 * 1000;
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(3600)}, none), 0));
+        assertTrue(put(cache, message(1, FLAGS_NXDOMAIN, "nx.example.com", none, new byte[][]{soa(60, 60)}), 0));
+        assertTrue(put(cache, message(1, FLAGS_RESPONSE, "old.example.com", new byte[][]{a(60)}, none), -2 * day));
+        File file = new File(folder.getRoot(), "responses");
+        assertEquals(0, cache.load(file, 0));
+
+        // Responses too old to be served stale are not saved
+        DnsResponseCache.writeSnapshot(file, cache.snapshot(1000));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // The remaining TTLs account for the time in between
+        DnsResponseCache loaded = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        assertEquals(2, loaded.load(file, 600000));
+        assertEquals(2, loaded.size());
+        byte[] response = get(loaded, query(2, "example.com"), 600000);
+        assertEquals(3000, readInt(response, 12 + 13 + 4 + 6));
+        byte[] nxQuery = query(2, "nx.example.com");
+        assertNull(get(loaded, nxQuery, 600000));
+        assertNotNull(loaded.getStale(nxQuery, 0, nxQuery.length, 600000));
+
+        // Questions that are cached already are kept
+        assertTrue(put(loaded, message(1, FLAGS_RESPONSE, "example.com", new byte[][]{a(3600)}, none), 600000));
+        assertEquals(0, loaded.load(file, 600000));
+        assertEquals(3600, readInt(get(loaded, query(2, "example.com"), 600000), 12 + 13 + 4 + 6));
+
+        // Nothing is left a day later
+        loaded = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        assertEquals(1, loaded.load(file, day + 60000));
+        loaded = new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES);
+        assertEquals(0, loaded.load(file, day + 3600000));
+
+        // Truncated and other files
+        byte[] snapshot = cache.snapshot(1000);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(Arrays.copyOf(snapshot, snapshot.length - 1));
+        }
+        try {
+            new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES).load(file, 1000);
+            fail("Truncated snapshot was loaded");
+        } catch (IOException e) {
+            // Expected
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(query(1, "example.com"));
+        }
+        assertEquals(0, new DnsResponseCache(DnsResponseCache.DEFAULT_MAX_SIZE_IN_BYTES).load(file, 1000));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        byte[] response = message(1, FLAGS_RESPONSE, "popular.example.com", new byte[][]{a(3600)}, new byte[0][]);
+        // Room for about a dozen responses
+        DnsResponseCache cache = new DnsResponseCache(10 * (response.length + 200));
+
+        assertTrue(put(cache, response, 0));
+        for (int i = 0; i < 5; i++)
+            assertNotNull(get(cache, query(2, "popular.example.com"), 0));
+
+        // Names that are looked up once do not replace the popular one
+        for (int i = 0; i < 100; i++) {
+            String name = "name" + i + ".example.com";
+            get(cache, query(2, name), 0);
+            put(cache, message(1, FLAGS_RESPONSE, name, new byte[][]{a(3600)}, new byte[0][]), 0);
+        }
+        assertTrue(cache.sizeInBytes() <= 10 * (response.length + 200));
+        assertTrue(cache.getEvictions() >= 80);
+        assertNotNull(get(cache, query(2, "popular.example.com"), 0));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+        assertNull(get(cache, query(2, "popular.example.com"), 0));
+    }
+
+    @Test
+    public void testCopyHeader() throws Exception {
+        // A refusal of a query without recursion desired, repeating the question
+        byte[] response = message(1, 0x8005, "example.com", new byte[0][], new byte[0][]);
+        byte[] header = DnsResponseCache.copyHeader(response, query(0x1234, "example.com"), 0);
+
+        assertEquals(12, header.length);
+        assertEquals(0x12, header[0]);
+        assertEquals(0x34, header[1]);
+        assertEquals((byte) 0x81, header[2]);
+        assertEquals(0x05, header[3]);
+        for (int i = 4; i < 12; i++)
+            assertEquals(0, header[i]);
+    }
+}
@@ -0,0 +1,38 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void testIncrement() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency(42));
+
+        sketch.increment(42);
+        sketch.increment(42);
+        sketch.increment(43);
+        assertEquals(2, sketch.frequency(42));
+        assertEquals(1, sketch.frequency(43));
+
+        // Counters saturate
+        for (int i = 0; i < 20; i++)
+            sketch.increment(42);
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(42));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++)
+            sketch.increment(42);
+        assertEquals(8, sketch.frequency(42));
+
+        // Many other keys age the popular one
+        for (long key = 1000; key < 1000 + 10 * 16; key++)
+            sketch.increment(key * 0x9e3779b97f4a7c15L);
+        assertTrue(sketch.frequency(42) < 8);
+    }
+}
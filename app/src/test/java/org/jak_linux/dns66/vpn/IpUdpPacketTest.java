@@ -0,0 +1,175 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class IpUdpPacketTest {
+    private static final byte[] PAYLOAD = {1, 2, 3, 4, 5};
+
+    private static byte[] newIpV4Packet(byte[] payload) {
+        byte[] packet = new byte[20 + 8 + payload.length];
+        packet[0] = 0x45;
+        packet[2] = (byte) (packet.length >> 8);
+        packet[3] = (byte) packet.length;
+        packet[8] = 64;
+        packet[9] = 17;
+        System.arraycopy(new byte[]{10, 0, 0, 2, 10, 0, 0, 3}, 0, packet, 12, 8);
+        packet[20] = (byte) 0xd4;
+        packet[21] = 0x31;
+        packet[23] = 53;
+        packet[25] = (byte) (8 + payload.length);
+        System.arraycopy(payload, 0, packet, 28, payload.length);
+        return packet;
+    }
+
+    private static byte[] newIpV6Packet(byte[] payload) {
+        byte[] packet = new byte[40 + 8 + payload.length];
+        packet[0] = 0x60;
+        packet[5] = (byte) (8 + payload.length);
+        packet[6] = 17;
+        packet[7] = 64;
+        packet[8] = (byte) 0xfd;
+        packet[23] = 2;
+        packet[24] = (byte) 0xfd;
+        packet[39] = 3;
+        packet[40] = (byte) 0xd4;
+        packet[41] = 0x31;
+        packet[43] = 53;
+        packet[45] = (byte) (8 + payload.length);
+        System.arraycopy(payload, 0, packet, 48, payload.length);
+        return packet;
+    }
+
+    /* Sums the pseudo header and the UDP packet, which gives 0xFFFF for a correct checksum */
+    private static int udpChecksum(byte[] packet, int udpOffset) {
+        int addressLength = IpUdpPacket.addressLength(packet);
+        int udpLength = packet.length - udpOffset;
+        int sum = IpUdpPacket.checksum(packet, IpUdpPacket.sourceAddressOffset(packet), 2 * addressLength, 17 + udpLength);
+        return IpUdpPacket.checksum(packet, udpOffset, udpLength, sum);
+    }
+
+    @Test
+    public void testIpV4() {
+        byte[] packet = newIpV4Packet(PAYLOAD);
+        int udpOffset = IpUdpPacket.udpOffset(packet, packet.length);
+        assertEquals(20, udpOffset);
+        assertEquals(4, IpUdpPacket.version(packet));
+        assertEquals(0xd431, IpUdpPacket.sourcePort(packet, udpOffset));
+        assertEquals(53, IpUdpPacket.destinationPort(packet, udpOffset));
+        assertEquals(28, IpUdpPacket.payloadOffset(udpOffset));
+        assertEquals(PAYLOAD.length, IpUdpPacket.payloadLength(packet, udpOffset));
+        assertEquals(3, packet[IpUdpPacket.destinationAddressOffset(packet) + IpUdpPacket.addressLength(packet) - 1]);
+
+        // Bytes after the packet are ignored
+        byte[] buffer = Arrays.copyOf(packet, 1500);
+        assertEquals(20, IpUdpPacket.udpOffset(buffer, packet.length + 10));
+        assertEquals(PAYLOAD.length, IpUdpPacket.payloadLength(buffer, udpOffset));
+    }
+
+    @Test
+    public void testIpV6() {
+        byte[] packet = newIpV6Packet(PAYLOAD);
+        int udpOffset = IpUdpPacket.udpOffset(packet, packet.length);
+        assertEquals(40, udpOffset);
+        assertEquals(6, IpUdpPacket.version(packet));
+        assertEquals(16, IpUdpPacket.addressLength(packet));
+        assertEquals(0xd431, IpUdpPacket.sourcePort(packet, udpOffset));
+        assertEquals(53, IpUdpPacket.destinationPort(packet, udpOffset));
+        assertEquals(PAYLOAD.length, IpUdpPacket.payloadLength(packet, udpOffset));
+        assertEquals(3, packet[IpUdpPacket.destinationAddressOffset(packet) + IpUdpPacket.addressLength(packet) - 1]);
+    }
+
+    @Test
+    public void testInvalid() {
+        assertEquals(-1, IpUdpPacket.udpOffset(new byte[]{'f', 'o', 'o'}, 3));
+
+        byte[] packet = newIpV4Packet(PAYLOAD);
+        assertEquals(-1, IpUdpPacket.udpOffset(packet, packet.length - 1));
+
+        byte[] tcp = packet.clone();
+        tcp[9] = 6;
+        assertEquals(-1, IpUdpPacket.udpOffset(tcp, tcp.length));
+
+        byte[] fragment = packet.clone();
+        fragment[6] = 0x20;
+        assertEquals(-1, IpUdpPacket.udpOffset(fragment, fragment.length));
+
+        byte[] shortHeader = packet.clone();
+        shortHeader[0] = 0x44;
+        assertEquals(-1, IpUdpPacket.udpOffset(shortHeader, shortHeader.length));
+
+        byte[] longUdp = packet.clone();
+        longUdp[25]++;
+        assertEquals(-1, IpUdpPacket.udpOffset(longUdp, longUdp.length));
+
+        byte[] shortUdp = packet.clone();
+        shortUdp[25] = 7;
+        assertEquals(-1, IpUdpPacket.udpOffset(shortUdp, shortUdp.length));
+
+        byte[] extension = newIpV6Packet(PAYLOAD);
+        extension[6] = 0;
+        assertEquals(-1, IpUdpPacket.udpOffset(extension, extension.length));
+    }
+
+    @Test
+    public void testIsSameSource() {
+        byte[] packet = newIpV4Packet(PAYLOAD);
+        assertTrue(IpUdpPacket.isSameSource(packet, 20, newIpV4Packet(new byte[0]), 20));
+        assertFalse(IpUdpPacket.isSameSource(packet, 20, newIpV6Packet(PAYLOAD), 40));
+
+        byte[] otherPort = newIpV4Packet(PAYLOAD);
+        otherPort[21]++;
+        assertFalse(IpUdpPacket.isSameSource(packet, 20, otherPort, 20));
+
+        byte[] otherAddress = newIpV4Packet(PAYLOAD);
+        otherAddress[15]++;
+        assertFalse(IpUdpPacket.isSameSource(packet, 20, otherAddress, 20));
+    }
+
+    @Test
+    public void testNewResponseIpV4() {
+        byte[] request = newIpV4Packet(PAYLOAD);
+        byte[] payload = {9, 8, 7, 6, 5, 4, 3};
+        byte[] response = IpUdpPacket.newResponse(request, 20, payload);
+
+        int udpOffset = IpUdpPacket.udpOffset(response, response.length);
+        assertEquals(20, udpOffset);
+        assertArrayEquals(new byte[]{10, 0, 0, 3, 10, 0, 0, 2}, Arrays.copyOfRange(response, 12, 20));
+        assertEquals(53, IpUdpPacket.sourcePort(response, udpOffset));
+        assertEquals(0xd431, IpUdpPacket.destinationPort(response, udpOffset));
+        assertEquals(payload.length, IpUdpPacket.payloadLength(response, udpOffset));
+        assertArrayEquals(payload, Arrays.copyOfRange(response, 28, response.length));
+
+        assertEquals(0xFFFF, IpUdpPacket.checksum(response, 0, 20, 0));
+        assertEquals(0xFFFF, udpChecksum(response, udpOffset));
+    }
+
+    @Test
+    public void testNewResponseIpV6() {
+        byte[] request = newIpV6Packet(PAYLOAD);
+        byte[] payload = {9, 8, 7, 6};
+        byte[] response = IpUdpPacket.newResponse(request, 40, payload);
+
+        int udpOffset = IpUdpPacket.udpOffset(response, response.length);
+        assertEquals(40, udpOffset);
+        assertArrayEquals(Arrays.copyOfRange(request, 24, 40), Arrays.copyOfRange(response, 8, 24));
+        assertArrayEquals(Arrays.copyOfRange(request, 8, 24), Arrays.copyOfRange(response, 24, 40));
+        assertEquals(53, IpUdpPacket.sourcePort(response, udpOffset));
+        assertEquals(0xd431, IpUdpPacket.destinationPort(response, udpOffset));
+        assertArrayEquals(payload, Arrays.copyOfRange(response, 48, response.length));
+
+        assertEquals(0xFFFF, udpChecksum(response, udpOffset));
+    }
+
+    @Test
+    public void testChecksum() {
+        // The example from RFC 1071, section 3
+        byte[] data = {0x00, 0x01, (byte) 0xf2, 0x03, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6, (byte) 0xf7};
+        assertEquals(0xddf2, IpUdpPacket.checksum(data, 0, data.length, 0));
+        // An odd byte at the end is padded
+        assertEquals(0x0100 + 0x0200, IpUdpPacket.checksum(new byte[]{1, 0, 2}, 0, 3, 0));
+    }
+}